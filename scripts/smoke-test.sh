@@ -0,0 +1,64 @@
+#!/usr/bin/env bash
+# Boots the bot with the stubbed Discord layer and checks that the queue API
+# answers. Prints the time until the API answered and the resident memory, so
+# startups with different JVM options can be compared.
+#
+# Usage:
+#   scripts/smoke-test.sh
+#   scripts/smoke-test.sh java -XX:SharedArchiveFile=target/crlinkingbot-0.0.1-SNAPSHOT.jsa \
+#     -jar target/crlinkingbot-0.0.1-SNAPSHOT.jar
+set -euo pipefail
+
+if [ $# -eq 0 ]; then
+	set -- java -jar target/crlinkingbot-0.0.1-SNAPSHOT.jar
+fi
+
+PORT=${SMOKE_PORT:-18090}
+SECRET=smoke-test
+BASE_URL="http://localhost:$PORT"
+LOG=$(mktemp)
+
+start=$(date +%s%N)
+DISCORD_STUB=true \
+	QUEUE_API_SECRET=$SECRET \
+	QUEUE_API_PORT=$PORT \
+	GOOGLE_GENAI_API_KEY=smoke-test \
+	LOSTCRMANAGER_API_URL=http://localhost:9 \
+	LOSTCRMANAGER_API_SECRET=smoke-test \
+	"$@" >"$LOG" 2>&1 &
+pid=$!
+trap 'kill $pid 2>/dev/null || true; rm -f "$LOG"' EXIT
+
+fail() {
+	echo "FAIL: $1"
+	echo "--- bot output ---"
+	cat "$LOG"
+	exit 1
+}
+
+# Wait up to 30 seconds for the API
+for _ in $(seq 1 300); do
+	if curl -sf "$BASE_URL/api/health" >/dev/null 2>&1; then
+		break
+	fi
+	kill -0 $pid 2>/dev/null || fail "bot exited during startup"
+	sleep 0.1
+done
+elapsed=$((($(date +%s%N) - start) / 1000000))
+
+status() {
+	curl -s -o /dev/null -w '%{http_code}' "$@"
+}
+
+health=$(curl -sf "$BASE_URL/api/health") || fail "health endpoint did not answer"
+echo "$health" | grep -q '"status":"warming_up"' || fail "unexpected health response: $health"
+
+[ "$(status "$BASE_URL/api/queue/stats")" = 401 ] || fail "stats without secret was not rejected"
+[ "$(status -H "Authorization: Bearer $SECRET" "$BASE_URL/api/queue/stats")" = 200 ] || fail "stats failed"
+[ "$(status -H "Authorization: Bearer $SECRET" "$BASE_URL/api/queue/pending")" = 503 ] \
+	|| fail "pending did not report warming up"
+[ "$(status -H "Authorization: Bearer $SECRET" -H "Accept-Encoding: gzip" "$BASE_URL/api/cache/stats")" = 200 ] \
+	|| fail "cache stats failed"
+
+rss=$(ps -o rss= -p $pid | tr -d ' ')
+echo "OK: API answered after ${elapsed}ms, RSS ${rss} KB"
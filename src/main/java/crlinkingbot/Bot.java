@@ -1,14 +1,34 @@
 package crlinkingbot;
 
 import crlinkingbot.api.QueueAPIServer;
+import crlinkingbot.images.ImageCache;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.images.ProfileScreenshotClassifier;
+import crlinkingbot.images.ScreenshotIndex;
+import crlinkingbot.listeners.LinkAllCommand;
 import crlinkingbot.listeners.LinkCommand;
+import crlinkingbot.listeners.ReadyListener;
+import crlinkingbot.listeners.RequestInvalidationListener;
+import crlinkingbot.queue.DeadLetterStore;
+import crlinkingbot.queue.HistoryStore;
 import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.replay.TrafficRecorder;
+import crlinkingbot.replay.TrafficReplay;
+import crlinkingbot.services.CacheProfile;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.MessageResolver;
+import crlinkingbot.services.ResultProcessor;
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.StartupTracker;
+import crlinkingbot.worker.TagExtractor;
+import crlinkingbot.worker.WorkerPool;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
-import net.dv8tion.jda.api.interactions.commands.OptionType;
-import net.dv8tion.jda.api.interactions.commands.build.Commands;
-import net.dv8tion.jda.api.interactions.commands.build.OptionData;
-import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.json.JSONArray;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Main bot class that initializes the Discord bot and stores configuration.
@@ -21,11 +41,28 @@ public class Bot {
 
 	// Queue system components
 	private static RequestQueue requestQueue;
+	private static DeadLetterStore deadLetterStore;
+	private static HistoryStore historyStore;
 	private static QueueAPIServer apiServer;
+	private static DiscordGateway discordGateway;
+	private static WorkerPool workerPool;
+	private static ImagePrefetcher imagePrefetcher;
+	private static ResultProcessor resultProcessor;
+	private static TrafficRecorder trafficRecorder;
+	private static final StartupTracker startup = new StartupTracker();
 
 	public static void main(String[] args) {
 		System.out.println("Starting CR Linking Bot...");
 
+		if (args.length > 0 && "--training-run".equals(args[0])) {
+			trainingRun();
+			return;
+		}
+		if (args.length > 0 && "--replay".equals(args[0])) {
+			replay(args);
+			return;
+		}
+
 		// Load environment variables
 		if (!loadEnvironmentVariables()) {
 			System.out.println("Failed to load environment variables. Exiting.");
@@ -33,36 +70,75 @@ public class Bot {
 		}
 
 		System.out.println("Configuration loaded successfully");
+		startup.reached(StartupTracker.Phase.CONFIG_LOADED);
 
-		// Initialize request queue before JDA
-		System.out.println("Initializing request queue...");
-		requestQueue = new RequestQueue();
-
-		// Initialize JDA
-		String botToken = System.getenv("CRLINKING_BOT_TOKEN");
 		try {
-			JDA jda = JDABuilder.createDefault(botToken)
-					.enableIntents(GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT,
-							GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.GUILD_MEMBERS)
-					.addEventListeners(new LinkCommand(requestQueue)).build();
+			// Log in first, the gateway handshake is the slowest part of startup and
+			// continues in the background while the local state is loaded
+			String botToken = System.getenv("CRLINKING_BOT_TOKEN");
+			String shardCount = System.getenv("SHARD_COUNT");
+			CacheProfile cacheProfile = CacheProfile.fromEnv();
+			System.out.println("Using JDA cache profile " + cacheProfile);
+			ReadyListener readyListener = new ReadyListener(Bot::onShardReady);
+			if (EnvUtil.getBoolean("DISCORD_STUB", false)) {
+				// No Discord connection, only the queue and the API are served
+				System.out.println("Running with stubbed Discord layer, no shard will become ready");
+				discordGateway = DiscordGateway.stub(cacheProfile);
+			} else if (shardCount == null || shardCount.isEmpty()) {
+				JDA jda = cacheProfile.createBuilder(botToken).addEventListeners(readyListener).build();
+				discordGateway = DiscordGateway.single(jda, cacheProfile);
+			} else {
+				// Shards log in independently, the API serves guilds whose shard is ready
+				DefaultShardManagerBuilder builder = cacheProfile.createShardManagerBuilder(botToken)
+						.addEventListeners(readyListener);
+				if (!"auto".equalsIgnoreCase(shardCount)) {
+					builder.setShardsTotal(Integer.parseInt(shardCount));
+				}
+				ShardManager shardManager = builder.build();
+				discordGateway = DiscordGateway.sharded(shardManager, cacheProfile);
+
+				System.out.println("Shard manager started with " + shardManager.getShardsTotal() + " shards");
+			}
+			startup.reached(StartupTracker.Phase.DISCORD_LOGIN_STARTED);
 
-			jda.awaitReady();
+			// Load the stores and caches in parallel
+			System.out.println("Initializing request queue...");
+			CompletableFuture<RequestQueue> queueLoad = CompletableFuture.supplyAsync(RequestQueue::new);
+			CompletableFuture<DeadLetterStore> deadLetterLoad = CompletableFuture.supplyAsync(DeadLetterStore::new);
+			CompletableFuture<HistoryStore> historyLoad = CompletableFuture.supplyAsync(HistoryStore::new);
+			CompletableFuture<ProfileScreenshotClassifier> classifierLoad = CompletableFuture
+					.supplyAsync(ProfileScreenshotClassifier::new);
+			ImageCache imageCache = new ImageCache();
+			ScreenshotIndex screenshotIndex = new ScreenshotIndex();
+			requestQueue = queueLoad.join();
+			deadLetterStore = deadLetterLoad.join();
+			historyStore = historyLoad.join();
+			startup.reached(StartupTracker.Phase.QUEUE_LOADED);
 
-			// Register slash commands
-			jda.updateCommands().addCommands(Commands
-					.slash("link", "Link einen Clash Royale Account über eine Nachricht mit Screenshots")
-					.addOption(OptionType.STRING, "message_link", "Link zur Nachricht mit den CR Screenshots", true)
-					.addOptions(
-							new OptionData(OptionType.STRING, "noping", "Ping abschalten").addChoice("true", "true")))
-					.queue();
+			MessageResolver messageResolver = new MessageResolver(discordGateway);
+			resultProcessor = new ResultProcessor(requestQueue, deadLetterStore, historyStore, discordGateway,
+					messageResolver, screenshotIndex);
 
-			System.out.println("CR Linking Bot is ready! Logged in as: " + jda.getSelfUser().getAsTag());
-			System.out.println("Slash command '/link' registered successfully");
+			// Download queued screenshots once, workers and retries read them from disk.
+			// Screenshots that were seen before complete right away.
+			imagePrefetcher = new ImagePrefetcher(imageCache, classifierLoad.join(), requestQueue, discordGateway,
+					messageResolver);
+			imagePrefetcher.setCachedListener(resultProcessor::completeFromIndex);
 
-			// Initialize and start queue API server
+			// Slash commands only arrive once a shard is ready, long after the queue is loaded.
+			// Deleted or edited messages and channels drop their requests right away.
+			LinkCommand linkCommand = new LinkCommand(requestQueue);
+			discordGateway.addEventListener(linkCommand, new LinkAllCommand(requestQueue, linkCommand),
+					new RequestInvalidationListener(requestQueue, historyStore, messageResolver, imagePrefetcher));
+
+			// Initialize and start queue API server, endpoints that need Discord report
+			// that they are warming up until the first shard is ready
 			System.out.println("Starting queue API server...");
-			apiServer = new QueueAPIServer(requestQueue, jda);
+			trafficRecorder = TrafficRecorder.fromEnv();
+			apiServer = new QueueAPIServer(requestQueue, deadLetterStore, historyStore, discordGateway,
+					messageResolver, resultProcessor, imagePrefetcher, screenshotIndex, startup, trafficRecorder);
 			apiServer.start();
+			startup.reached(StartupTracker.Phase.API_STARTED);
 
 			// Add shutdown hook
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -70,8 +146,26 @@ public class Bot {
 				if (apiServer != null) {
 					apiServer.shutdown();
 				}
+				synchronized (Bot.class) {
+					if (workerPool != null) {
+						workerPool.shutdown();
+					}
+				}
+				imagePrefetcher.shutdown();
+				discordGateway.shutdown();
+				requestQueue.close();
+				historyStore.close();
+				screenshotIndex.close();
+				if (trafficRecorder != null) {
+					trafficRecorder.close();
+				}
 			}));
 
+			// Catch up with shards that became ready while the local state was loading
+			if (discordGateway.getReadyShardCount() > 0) {
+				onShardReady();
+			}
+
 		} catch (Exception e) {
 			System.out.println("Failed to initialize JDA: " + e);
 			e.printStackTrace();
@@ -79,6 +173,101 @@ public class Bot {
 		}
 	}
 
+	/**
+	 * Start the work that needs Discord. Called whenever a shard is ready.
+	 */
+	private static synchronized void onShardReady() {
+		if (imagePrefetcher == null) {
+			// Still loading, main() calls again once it is done
+			return;
+		}
+		startup.reached(StartupTracker.Phase.DISCORD_READY);
+		imagePrefetcher.prefetchQueued();
+
+		// Optionally process the queue in-process instead of through an external worker
+		if (workerPool == null && EnvUtil.getBoolean("WORKER_ENABLED", false)) {
+			workerPool = new WorkerPool(requestQueue, discordGateway, resultProcessor,
+					TagExtractor.fromEnv(genaiApiKey), imagePrefetcher);
+			workerPool.start();
+			startup.reached(StartupTracker.Phase.WORKERS_STARTED);
+		}
+	}
+
+	/**
+	 * Load the classes of a regular startup without connecting to Discord. Used
+	 * by the appcds build profile to record the class-data-sharing archive.
+	 */
+	private static void trainingRun() {
+		try {
+			requestQueue = new RequestQueue();
+			deadLetterStore = new DeadLetterStore();
+			historyStore = new HistoryStore();
+			ImageCache imageCache = new ImageCache();
+			ScreenshotIndex screenshotIndex = new ScreenshotIndex();
+			ProfileScreenshotClassifier classifier = new ProfileScreenshotClassifier();
+			LinkCommand linkCommand = new LinkCommand(requestQueue);
+			CacheProfile.fromEnv().createBuilder("training").addEventListeners(new ReadyListener(() -> {
+			}), linkCommand, new LinkAllCommand(requestQueue, linkCommand));
+
+			MessageResolver messageResolver = new MessageResolver(null);
+			resultProcessor = new ResultProcessor(requestQueue, deadLetterStore, historyStore, null, messageResolver,
+					screenshotIndex);
+			imagePrefetcher = new ImagePrefetcher(imageCache, classifier, requestQueue, null, messageResolver);
+			apiServer = new QueueAPIServer(requestQueue, deadLetterStore, historyStore, null, messageResolver,
+					resultProcessor, imagePrefetcher, screenshotIndex, startup, null);
+			apiServer.start();
+
+			apiServer.shutdown();
+			imagePrefetcher.shutdown();
+			requestQueue.close();
+			historyStore.close();
+			screenshotIndex.close();
+			System.out.println("Training run finished");
+			System.exit(0);
+		} catch (Exception e) {
+			System.out.println("Training run failed: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Replay a captured session against a local queue API with stubbed Discord
+	 * and lostcrmanager, once per speed factor, and print the reports. Usage:
+	 * --replay &lt;capture.jsonl&gt; [speed ...], the speeds default to 1, 10
+	 * and 100.
+	 */
+	private static void replay(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: --replay <capture.jsonl> [speed ...]");
+			System.exit(1);
+		}
+		try {
+			TrafficReplay replay = new TrafficReplay(new File(args[1]));
+			lostCRManagerUrl = replay.startLostCRManagerStub();
+			lostCRManagerSecret = "replay";
+
+			JSONArray reports = new JSONArray();
+			if (args.length > 2) {
+				for (int i = 2; i < args.length; i++) {
+					reports.put(replay.run(Double.parseDouble(args[i].replace("x", ""))));
+				}
+			} else {
+				for (double speed : new double[] { 1, 10, 100 }) {
+					reports.put(replay.run(speed));
+				}
+			}
+			replay.shutdown();
+
+			System.out.println(reports.toString(2));
+			System.exit(0);
+		} catch (Exception e) {
+			System.out.println("Replay failed: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
 	/**
 	 * Load required environment variables
 	 */
@@ -88,7 +277,7 @@ public class Bot {
 		lostCRManagerUrl = System.getenv("LOSTCRMANAGER_API_URL");
 		lostCRManagerSecret = System.getenv("LOSTCRMANAGER_API_SECRET");
 
-		if (botToken == null || botToken.isEmpty()) {
+		if ((botToken == null || botToken.isEmpty()) && !EnvUtil.getBoolean("DISCORD_STUB", false)) {
 			System.out.println("CRLINKING_BOT_TOKEN environment variable is not set");
 			return false;
 		}
@@ -139,4 +328,32 @@ public class Bot {
 	public static RequestQueue getRequestQueue() {
 		return requestQueue;
 	}
+
+	/**
+	 * Get the Discord gateway
+	 */
+	public static DiscordGateway getDiscordGateway() {
+		return discordGateway;
+	}
+
+	/**
+	 * Get the image prefetcher, null until the Discord connection was started
+	 */
+	public static ImagePrefetcher getImagePrefetcher() {
+		return imagePrefetcher;
+	}
+
+	/**
+	 * Get the traffic recorder, null unless TRAFFIC_CAPTURE is enabled
+	 */
+	public static TrafficRecorder getTrafficRecorder() {
+		return trafficRecorder;
+	}
+
+	/**
+	 * Get the dead-letter store
+	 */
+	public static DeadLetterStore getDeadLetterStore() {
+		return deadLetterStore;
+	}
 }
@@ -1,13 +1,26 @@
 package crlinkingbot.api;
 
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import crlinkingbot.images.ImageCache;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.images.ScreenshotIndex;
+import crlinkingbot.queue.DeadLetterEntry;
+import crlinkingbot.queue.DeadLetterStore;
+import crlinkingbot.queue.HistoryStore;
 import crlinkingbot.queue.LinkingRequest;
 import crlinkingbot.queue.RequestQueue;
-import crlinkingbot.services.LostCRManagerClient;
-import crlinkingbot.util.MessageUtil;
-import net.dv8tion.jda.api.JDA;
+import crlinkingbot.queue.RequestTracer;
+import crlinkingbot.replay.TrafficRecorder;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.MessageResolver;
+import crlinkingbot.services.ResultProcessor;
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.RateLimiter;
+import crlinkingbot.util.StartupTracker;
+import crlinkingbot.util.TimingWheel;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
 import net.dv8tion.jda.api.entities.emoji.Emoji;
@@ -19,29 +32,70 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
  * REST API server for queue management
  */
 public class QueueAPIServer {
-	private static final int MAX_RETRIES = 3;
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	private static final int MAX_PAGE_SIZE = 500;
+	private static final int DEFAULT_CLAIM_LIMIT = 10;
+	private static final int DEFAULT_LEASE_SECONDS = 300;
+	private static final List<String> HISTORY_GROUPS = List.of(HistoryStore.GROUP_DAY, HistoryStore.GROUP_GUILD,
+			HistoryStore.GROUP_OUTCOME, HistoryStore.GROUP_REASON);
 
 	private final RequestQueue requestQueue;
-	private final JDA jda;
+	private final DeadLetterStore deadLetterStore;
+	private final HistoryStore historyStore;
+	private final ResultProcessor resultProcessor;
+	private final ImagePrefetcher imagePrefetcher;
+	private final ScreenshotIndex screenshotIndex;
+	private final ResultCache resultCache;
+	private final ResponseCompressor compressor;
+	private final RateLimiter apiRateLimiter;
+	private final long statsEtagMillis;
+	// Bounds for the lease a worker may ask for
+	private final int minLeaseSeconds;
+	private final int maxLeaseSeconds;
+	private final DiscordGateway discord;
+	private final MessageResolver messageResolver;
+	private final StartupTracker startup;
+	private final TrafficRecorder trafficRecorder;
 	private final HttpServer server;
 	private final String apiSecret;
 	private final int port;
 
 	/**
 	 * Constructor
+	 *
+	 * @param trafficRecorder Recorder every call is captured to, or null
 	 */
-	public QueueAPIServer(RequestQueue requestQueue, JDA jda) throws IOException {
+	public QueueAPIServer(RequestQueue requestQueue, DeadLetterStore deadLetterStore, HistoryStore historyStore,
+			DiscordGateway discord, MessageResolver messageResolver, ResultProcessor resultProcessor,
+			ImagePrefetcher imagePrefetcher, ScreenshotIndex screenshotIndex, StartupTracker startup,
+			TrafficRecorder trafficRecorder) throws IOException {
 		this.requestQueue = requestQueue;
-		this.jda = jda;
+		this.deadLetterStore = deadLetterStore;
+		this.historyStore = historyStore;
+		this.discord = discord;
+		this.messageResolver = messageResolver;
+		this.resultProcessor = resultProcessor;
+		this.imagePrefetcher = imagePrefetcher;
+		this.screenshotIndex = screenshotIndex;
+		this.startup = startup;
+		this.trafficRecorder = trafficRecorder;
 
 		// Get configuration from environment
 		String portStr = System.getenv("QUEUE_API_PORT");
@@ -55,6 +109,16 @@ public class QueueAPIServer {
 		}
 		this.port = portValue;
 
+		int resultCacheSize = EnvUtil.getInt("RESULT_CACHE_SIZE", 1000);
+		int resultCacheTtlMinutes = EnvUtil.getInt("RESULT_CACHE_TTL_MINUTES", 60);
+		this.resultCache = new ResultCache(resultCacheSize, resultCacheTtlMinutes * 60_000L);
+		this.compressor = new ResponseCompressor(EnvUtil.getBoolean("API_COMPRESSION", true),
+				EnvUtil.getInt("API_COMPRESSION_MIN_BYTES", 1024));
+		this.apiRateLimiter = RateLimiter.perMinuteFromEnv("api-client", "API_RATE_LIMIT_PER_MINUTE", 120);
+		this.statsEtagMillis = Math.max(1, EnvUtil.getInt("STATS_ETAG_SECONDS", 10)) * 1000L;
+		this.minLeaseSeconds = Math.max(1, EnvUtil.getInt("CLAIM_LEASE_MIN_SECONDS", 30));
+		this.maxLeaseSeconds = Math.max(minLeaseSeconds, EnvUtil.getInt("CLAIM_LEASE_MAX_SECONDS", 3600));
+
 		this.apiSecret = System.getenv("QUEUE_API_SECRET");
 		if (apiSecret == null || apiSecret.isEmpty()) {
 			throw new IllegalStateException("QUEUE_API_SECRET environment variable must be set");
@@ -64,10 +128,20 @@ public class QueueAPIServer {
 		this.server = HttpServer.create(new InetSocketAddress(port), 0);
 
 		// Register endpoints
-		server.createContext("/api/queue/pending", new PendingHandler());
-		server.createContext("/api/queue/result", new ResultHandler());
-		server.createContext("/api/queue/stats", new StatsHandler());
-		server.createContext("/api/health", new HealthHandler());
+		createContext("/api/queue/pending", new PendingHandler());
+		createContext("/api/queue/result", new ResultHandler());
+		createContext("/api/queue/results", new BatchResultHandler());
+		createContext("/api/queue/image/", new ImageHandler());
+		createContext("/api/queue/stats", new StatsHandler());
+		createContext("/api/queue/trace", new TraceHandler());
+		createContext("/api/deadletter", new DeadLetterListHandler());
+		createContext("/api/deadletter/replay", new DeadLetterReplayHandler());
+		createContext("/api/history", new HistoryHandler());
+		createContext("/api/history/counts", new HistoryCountsHandler());
+		createContext("/api/history/durations", new HistoryDurationsHandler());
+		createContext("/api/cache/stats", new CacheStatsHandler());
+		createContext("/api/cache/links/invalidate", new LinkCacheInvalidateHandler());
+		createContext("/api/health", new HealthHandler());
 
 		// Use default executor (creates a thread pool)
 		server.setExecutor(null);
@@ -75,6 +149,16 @@ public class QueueAPIServer {
 		System.out.println("Queue API Server initialized on port " + port);
 	}
 
+	/**
+	 * Register an endpoint, captured if traffic capture is enabled
+	 */
+	private void createContext(String path, HttpHandler handler) {
+		HttpContext context = server.createContext(path, handler);
+		if (trafficRecorder != null) {
+			context.getFilters().add(trafficRecorder.filter());
+		}
+	}
+
 	/**
 	 * Start the server
 	 */
@@ -110,16 +194,89 @@ public class QueueAPIServer {
 		return apiSecret.equals(token);
 	}
 
+	/**
+	 * Reject the request with 429 if the calling client exceeded its rate limit.
+	 * Clients are keyed by remote address, since all workers share the same API
+	 * secret.
+	 *
+	 * @return true if a 429 response was sent
+	 */
+	private boolean isRateLimited(HttpExchange exchange) throws IOException {
+		String clientKey = exchange.getRemoteAddress().getAddress().getHostAddress();
+		long retryAfterMillis = apiRateLimiter.tryAcquire(clientKey);
+		if (retryAfterMillis == 0) {
+			return false;
+		}
+
+		long retryAfterSeconds = Math.max(1, (retryAfterMillis + 999) / 1000);
+		System.out.println("Rate limit exceeded for " + clientKey + " on " + exchange.getRequestURI().getPath()
+				+ ", retry after " + retryAfterSeconds + "s");
+		JSONObject error = new JSONObject();
+		error.put("success", false);
+		error.put("error", "Too many requests");
+		error.put("retryAfterSeconds", retryAfterSeconds);
+		exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+		sendJsonResponse(exchange, 429, error);
+		return true;
+	}
+
 	/**
 	 * Send JSON response
 	 */
 	private void sendJsonResponse(HttpExchange exchange, int statusCode, JSONObject response) throws IOException {
 		byte[] responseBytes = response.toString().getBytes(StandardCharsets.UTF_8);
 		exchange.getResponseHeaders().set("Content-Type", "application/json");
-		exchange.sendResponseHeaders(statusCode, responseBytes.length);
-		try (OutputStream os = exchange.getResponseBody()) {
-			os.write(responseBytes);
+		compressor.send(exchange, statusCode, responseBytes);
+	}
+
+	/**
+	 * Answer 503 if no shard is connected yet, e.g. right after startup
+	 *
+	 * @return true if the 503 was sent and nothing else must be done
+	 */
+	private boolean isWarmingUp(HttpExchange exchange) throws IOException {
+		if (discord.getReadyShardCount() > 0) {
+			return false;
+		}
+		JSONObject error = new JSONObject();
+		error.put("success", false);
+		error.put("error", "Discord connection is warming up");
+		error.put("warmingUp", true);
+		error.put("phases", startup.toJSON());
+		exchange.getResponseHeaders().set("Retry-After", "5");
+		sendJsonResponse(exchange, 503, error);
+		return true;
+	}
+
+	/**
+	 * Set the ETag of the current state and answer 304 Not Modified if the
+	 * client already has it
+	 *
+	 * @param etag The entity tag, or null if the state cannot be versioned
+	 * @return true if the 304 was sent and nothing else must be done
+	 */
+	private boolean isNotModified(HttpExchange exchange, String etag) throws IOException {
+		if (etag == null) {
+			return false;
 		}
+		exchange.getResponseHeaders().set("ETag", etag);
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			// Weak comparison is enough for GET
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag) || candidate.equals("*")) {
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -132,6 +289,70 @@ public class QueueAPIServer {
 		}
 	}
 
+	/**
+	 * Parse URL query parameters
+	 */
+	private Map<String, String> parseQueryParams(HttpExchange exchange) {
+		Map<String, String> params = new HashMap<>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null || query.isEmpty()) {
+			return params;
+		}
+
+		for (String pair : query.split("&")) {
+			int idx = pair.indexOf('=');
+			String key = idx >= 0 ? pair.substring(0, idx) : pair;
+			String value = idx >= 0 ? pair.substring(idx + 1) : "";
+			params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	/**
+	 * Parse a non-negative integer parameter, falling back to a default
+	 */
+	private static int parseIntParam(String value, int defaultValue) {
+		if (value == null || value.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(value));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Parse a time parameter given in epoch milliseconds or as a UTC date
+	 * (yyyy-MM-dd)
+	 *
+	 * @param endOfDay Whether a date means the end of that day, for upper
+	 *                 bounds
+	 */
+	private static long parseTimeParam(String value, long defaultValue, boolean endOfDay) {
+		if (value == null || value.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			// Not epoch milliseconds, try a date
+		}
+		try {
+			LocalDate date = LocalDate.parse(value);
+			return (endOfDay ? date.plusDays(1) : date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid time: " + value + ", use epoch milliseconds or yyyy-MM-dd");
+		}
+	}
+
+	/**
+	 * Read an optional filter value, treating empty strings as absent
+	 */
+	private static String optFilter(String value) {
+		return value == null || value.isEmpty() ? null : value;
+	}
+
 	/**
 	 * Handler for GET /api/queue/pending
 	 */
@@ -141,6 +362,11 @@ public class QueueAPIServer {
 			System.out.println("API Request: GET /api/queue/pending from " + exchange.getRemoteAddress());
 
 			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
 				// Check authentication
 				if (!validateAuth(exchange)) {
 					System.out.println("Authentication failed for GET /api/queue/pending");
@@ -160,31 +386,63 @@ public class QueueAPIServer {
 					return;
 				}
 
-				// Get all pending requests
-				List<LinkingRequest> requests = requestQueue.getAll();
+				// Nothing can be delivered before Discord is connected, do not lease anything
+				if (isWarmingUp(exchange)) {
+					return;
+				}
 
-				JSONArray requestsArray = new JSONArray();
+				// Either lease a batch to the calling worker or list everything
+				Map<String, String> params = parseQueryParams(exchange);
+				String worker = optFilter(params.get("claim"));
+
+				// Listing an unchanged queue again is answered from the client's copy.
+				// Readiness is part of the tag, deferred requests show up once their
+				// shard connects.
+				long version = requestQueue.getVersion();
+				if (worker == null && version >= 0
+						&& isNotModified(exchange, "\"q" + version + "-r" + discord.getReadyShardCount() + "\"")) {
+					return;
+				}
+
+				List<LinkingRequest> requests;
+				if (worker != null) {
+					int limit = Math.min(parseIntParam(params.get("limit"), DEFAULT_CLAIM_LIMIT), MAX_PAGE_SIZE);
+					int leaseSeconds = Math.max(minLeaseSeconds, Math.min(maxLeaseSeconds,
+							parseIntParam(params.get("leaseSeconds"), DEFAULT_LEASE_SECONDS)));
+					// Requests for guilds whose shard is still connecting are not leased at all
+					requests = requestQueue.claim(worker, limit, leaseSeconds * 1000L,
+							request -> discord.isGuildReady(request.getGuildId()));
+				} else {
+					requests = requestQueue.getAll();
+				}
+
+				// Requests for guilds whose shard is still connecting stay queued
+				List<LinkingRequest> deliverable = new ArrayList<>();
 				for (LinkingRequest request : requests) {
+					if (discord.isGuildReady(request.getGuildId())) {
+						deliverable.add(request);
+					} else if (worker != null) {
+						// The shard dropped after the claim, hand the request back right away
+						request.releaseClaim();
+						requestQueue.update(request);
+					}
+				}
+				int deferred = requests.size() - deliverable.size();
+
+				// Fetch the messages channel by channel instead of one call per request
+				Map<String, Message> messages = messageResolver.resolveAll(deliverable);
+
+				JSONArray requestsArray = new JSONArray();
+				for (LinkingRequest request : deliverable) {
 					// Dynamically fetch image URLs from Discord message
 					List<String> imageUrls = new ArrayList<>();
-					try {
-						MessageChannelUnion channel = jda.getChannelById(MessageChannelUnion.class, request.getChannelId());
-						if (channel != null) {
-							try {
-								Message message = channel.retrieveMessageById(request.getMessageId()).complete();
-								imageUrls = message.getAttachments().stream()
-									.filter(attachment -> attachment.isImage())
-									.map(attachment -> attachment.getUrl())
-									.collect(Collectors.toList());
-							} catch (Exception e) {
-								System.out.println("Warning: Could not retrieve message " + request.getMessageId() + 
-									" in channel " + request.getChannelId() + " - " + e.getMessage());
-							}
-						} else {
-							System.out.println("Warning: Channel " + request.getChannelId() + " not found for request " + request.getId());
-						}
-					} catch (Exception e) {
-						System.out.println("Warning: Error fetching images for request " + request.getId() + " - " + e.getMessage());
+					Message message = messages.get(request.getMessageId());
+					if (message != null) {
+						imageUrls = message.getAttachments().stream()
+							.filter(attachment -> attachment.isImage())
+							.filter(attachment -> request.includesAttachment(attachment.getId()))
+							.map(attachment -> attachment.getUrl())
+							.collect(Collectors.toList());
 					}
 
 					JSONObject reqJson = new JSONObject();
@@ -197,15 +455,40 @@ public class QueueAPIServer {
 					reqJson.put("imageUrls", new JSONArray(imageUrls));
 					reqJson.put("timestamp", request.getTimestamp());
 					reqJson.put("retryCount", request.getRetryCount());
+					// Cached copies spare workers the CDN download; start caching if not done yet
+					if (!request.getImageHashes().isEmpty()) {
+						JSONArray images = new JSONArray();
+						for (String hash : request.getImageHashes()) {
+							JSONObject image = new JSONObject();
+							image.put("hash", hash);
+							image.put("path", "/api/queue/image/" + hash);
+							images.put(image);
+						}
+						reqJson.put("images", images);
+					} else {
+						imagePrefetcher.prefetch(request);
+					}
+					if (request.getClaimedBy() != null) {
+						reqJson.put("claimedBy", request.getClaimedBy());
+						reqJson.put("leaseUntil", request.getLeaseUntil());
+					}
 					requestsArray.put(reqJson);
+					if (worker == null) {
+						// Claims are traced by the queue, plain listings only here
+						requestQueue.getTracer().record(request.getId(), RequestTracer.Event.LISTED);
+					}
 				}
 
 				JSONObject response = new JSONObject();
 				response.put("success", true);
-				response.put("count", requests.size());
+				response.put("count", requestsArray.length());
 				response.put("requests", requestsArray);
+				if (deferred > 0) {
+					response.put("deferred", deferred);
+				}
 
-				System.out.println("Returning " + requests.size() + " pending requests");
+				System.out.println("Returning " + requestsArray.length() + " pending requests (" + deferred
+						+ " deferred until their shard is ready)");
 				sendJsonResponse(exchange, 200, response);
 
 			} catch (Exception e) {
@@ -229,6 +512,11 @@ public class QueueAPIServer {
 			System.out.println("API Request: POST /api/queue/result from " + exchange.getRemoteAddress());
 
 			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
 				// Check authentication
 				if (!validateAuth(exchange)) {
 					System.out.println("Authentication failed for POST /api/queue/result");
@@ -261,148 +549,262 @@ public class QueueAPIServer {
 					return;
 				}
 
-				// Validate required fields
-				if (!requestBody.has("requestId") || !requestBody.has("success")) {
-					JSONObject error = new JSONObject();
-					error.put("success", false);
-					error.put("error", "Missing required fields: requestId and success");
-					sendJsonResponse(exchange, 400, error);
-					return;
+				ResultResponse result = submitResult(requestBody);
+				if (result.statusCode == 503) {
+					exchange.getResponseHeaders().set("Retry-After", "5");
 				}
+				if (result.replay) {
+					exchange.getResponseHeaders().set("X-Idempotent-Replay", "true");
+				}
+				sendJsonResponse(exchange, result.statusCode, result.body);
+
+			} catch (Exception e) {
+				System.out.println("Error handling POST /api/queue/result: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Response to one submitted result
+	 */
+	private static class ResultResponse {
+		final int statusCode;
+		final JSONObject body;
+		final boolean replay;
+
+		ResultResponse(int statusCode, JSONObject body, boolean replay) {
+			this.statusCode = statusCode;
+			this.body = body;
+			this.replay = replay;
+		}
+	}
+
+	/**
+	 * Apply one result submitted by a worker. Shared by the single and the
+	 * batched result endpoint, both replay the response of a result that was
+	 * already handled.
+	 */
+	private ResultResponse submitResult(JSONObject requestBody) throws Exception {
+		// Validate required fields
+		if (!requestBody.has("requestId") || !requestBody.has("success")) {
+			JSONObject error = new JSONObject();
+			error.put("success", false);
+			error.put("error", "Missing required fields: requestId and success");
+			return new ResultResponse(400, error, false);
+		}
 
-				String requestId = requestBody.getString("requestId");
-				boolean success = requestBody.getBoolean("success");
-				String playerTag = requestBody.optString("playerTag", null);
-				String errorMessage = requestBody.optString("errorMessage", null);
+		String requestId = requestBody.getString("requestId");
+		boolean success = requestBody.getBoolean("success");
+		String playerTag = requestBody.optString("playerTag", null);
+		String errorMessage = requestBody.optString("errorMessage", null);
+		double confidence = requestBody.optDouble("confidence", 1.0);
+
+		System.out.println("Processing result for request " + requestId + ", success=" + success);
+
+		// Results for guilds whose shard is not ready cannot be delivered yet
+		LinkingRequest queued = requestQueue.findById(requestId);
+		if (queued != null && !discord.isGuildReady(queued.getGuildId())) {
+			System.out.println("Shard not ready for guild " + queued.getGuildId() + ", deferring result for "
+					+ requestId);
+			JSONObject error = new JSONObject();
+			error.put("success", false);
+			error.put("error", "Discord shard for this guild is not ready");
+			error.put("warmingUp", !startup.hasReached(StartupTracker.Phase.DISCORD_READY));
+			return new ResultResponse(503, error, false);
+		}
+
+		// A queued request is on a new attempt, an earlier response no longer applies
+		if (queued != null) {
+			resultCache.invalidate(requestId);
+		}
+
+		// Replay the original response if this result was already handled
+		ResultCache.CachedResult cached = resultCache.begin(requestId);
+		if (cached != null) {
+			System.out.println("Replaying cached result for request " + requestId);
+			return new ResultResponse(cached.getStatusCode(), cached.getBody(), true);
+		}
+
+		// Find and remove the request from the queue
+		LinkingRequest request = requestQueue.removeById(requestId);
+
+		if (request == null) {
+			resultCache.abort(requestId);
+			System.out.println("Request not found: " + requestId);
+			JSONObject error = new JSONObject();
+			error.put("success", false);
+			error.put("error", "Request not found in queue");
+			return new ResultResponse(404, error, false);
+		}
 
-				System.out.println("Processing result for request " + requestId + ", success=" + success);
+		try {
+			ResultProcessor.Outcome outcome = resultProcessor.process(request, success, playerTag, errorMessage,
+					confidence);
+			if (requestQueue.findById(requestId) != null) {
+				// Re-queued for a retry, the next result for this ID is a new attempt
+				resultCache.release(requestId, outcome.getStatusCode(), outcome.getBody());
+			} else {
+				resultCache.complete(requestId, outcome.getStatusCode(), outcome.getBody());
+			}
+			return new ResultResponse(outcome.getStatusCode(), outcome.getBody(), false);
+		} finally {
+			// No-op if a response was recorded
+			resultCache.abort(requestId);
+		}
+	}
+
+	/**
+	 * Handler for POST /api/queue/results, submits several results in one call
+	 */
+	private class BatchResultHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: POST /api/queue/results from " + exchange.getRemoteAddress());
 
-				// Find and remove the request from the queue
-				LinkingRequest request = requestQueue.removeById(requestId);
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
 
-				if (request == null) {
-					System.out.println("Request not found: " + requestId);
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for POST /api/queue/results");
 					JSONObject error = new JSONObject();
 					error.put("success", false);
-					error.put("error", "Request not found in queue");
-					sendJsonResponse(exchange, 404, error);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
 					return;
 				}
 
-				// Get Discord message
-				MessageChannelUnion channel = jda.getChannelById(MessageChannelUnion.class, request.getChannelId());
-				if (channel == null) {
-					System.out.println("Channel not found: " + request.getChannelId());
+				// Check method
+				if (!"POST".equals(exchange.getRequestMethod())) {
 					JSONObject error = new JSONObject();
 					error.put("success", false);
-					error.put("error", "Channel not found");
-					sendJsonResponse(exchange, 500, error);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
 					return;
 				}
 
-				Message message;
+				JSONArray submitted;
 				try {
-					message = channel.retrieveMessageById(request.getMessageId()).complete();
+					submitted = new JSONObject(readRequestBody(exchange)).getJSONArray("results");
 				} catch (Exception e) {
-					System.out.println("Message not found: " + request.getMessageId());
-					JSONObject error = new JSONObject();
-					error.put("success", false);
-					error.put("error", "Message not found");
-					sendJsonResponse(exchange, 500, error);
-					return;
-				}
-
-				// Process based on success/failure
-				if (success) {
-					// Success - remove processing reaction, add success reaction
-					message.removeReaction(Emoji.fromUnicode("⏳")).queue();
-					message.addReaction(Emoji.fromUnicode("✅")).queue();
-
-					// Link player if tag provided
-					if (playerTag != null && !playerTag.isEmpty()) {
-						JSONObject linkResult = LostCRManagerClient.linkPlayer(playerTag, request.getUserId());
-
-						if (linkResult.getBoolean("success")) {
-							System.out.println(linkResult.toString());
-							String playerName = linkResult.getJSONObject("data").getString("playerName");
-							String successMsg = String.format(
-									"Account wurde erfolgreich verknüpft!\n\n**Spieler-Name:** `%s`\n"
-											+ "**Spieler-Tag:** `%s`\n" + "**Discord User:** <@%s>",
-									playerName, playerTag, request.getUserId());
-							MessageUtil.sendSuccess(channel, "Account verknüpft", successMsg);
-
-							String individualMsg = "Hallo <@" + request.getUserId() + ">,\r\n"
-									+ "die Verlinkung mit unserem **Tracking-Bot** wurde erfolgreich abgeschlossen!\r\n"
-									+ "\r\n"
-									+ "Du befindest dich jetzt **in unserer Warteschlange** für den Clanbeitritt.\r\n"
-									+ "Die Reihenfolge des Beitritts und der Clan, dem wir dich zuordnen werden, richten sich nach deiner **Leistung im Ranked** – diese hat **Priorität vor den Trophäen**.\r\n"
-									+ "Zudem fließt unsere Einschätzung mit ein.\r\n"
-									+ "Es lohnt sich also, weiter zu **grinden**, um deine Chancen zu erhöhen. <:Peepo_Stonks:1312189892008087563>\r\n"
-									+ "\r\n"
-									+ "Sobald du **in einem unserer Clans bist**, greift unser **internes Auf- und Abstiegssystem**. Dieses wird **zu Beginn jeder Season** angewendet und basiert auf **deiner Leistung der beendeten Season**. Dadurch sind innerhalb der Clan-Family **Auf- und Abstiege** zwischen den Clans möglich.\r\n"
-									+ "\r\n"
-									+ "Sobald du für einen Clanplatz ausgewählt wirst, **melden wir uns wieder bei dir**.\r\n"
-									+ "Das kann **schon bald**, je nach Aktivität der anderen Bewerber aber auch **etwas länger dauern**.\r\n"
-									+ "\r\n" + "Bleib aktiv und viel Erfolg beim Pushen!\r\n" + "LG die CR-Vize";
-
-							channel.sendMessage(individualMsg).queue();
-
-						} else {
-							String errorMsg = "Es gab einen Fehler beim Verknüpfen des Accounts. \nEin Vize muss sich manuell um die Anfrage kümmern.";
-							if (linkResult.has("data") && linkResult.getJSONObject("data").has("message")) {
-								errorMsg += "\n\n**Fehler:** " + linkResult.getJSONObject("data").getString("message");
-							}
-							MessageUtil.sendError(channel, "Verknüpfung fehlgeschlagen", errorMsg);
-						}
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Request body must be a JSON object with a results array");
+					sendJsonResponse(exchange, 400, error);
+					return;
+				}
+				if (submitted.length() > MAX_PAGE_SIZE) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "At most " + MAX_PAGE_SIZE + " results per call");
+					sendJsonResponse(exchange, 400, error);
+					return;
+				}
+
+				// Each result is answered on its own, one failure does not fail the batch
+				JSONArray results = new JSONArray();
+				for (int i = 0; i < submitted.length(); i++) {
+					JSONObject requestBody = submitted.optJSONObject(i);
+					ResultResponse result;
+					if (requestBody == null) {
+						JSONObject error = new JSONObject();
+						error.put("success", false);
+						error.put("error", "Result must be a JSON object");
+						result = new ResultResponse(400, error, false);
 					} else {
-						String successMsg = String.format(
-								"Anfrage wurde erfolgreich verarbeitet!\n\n" + "**Discord User:** <@%s>",
-								request.getUserId());
-						MessageUtil.sendSuccess(channel, "Verarbeitung erfolgreich", successMsg);
+						result = submitResult(requestBody);
 					}
+					JSONObject item = new JSONObject();
+					item.put("requestId", requestBody != null ? requestBody.opt("requestId") : JSONObject.NULL);
+					item.put("status", result.statusCode);
+					item.put("replay", result.replay);
+					item.put("response", result.body);
+					results.put(item);
+				}
 
-					JSONObject response = new JSONObject();
-					response.put("success", true);
-					response.put("action", "completed");
-					response.put("message", "Player linked successfully");
-					sendJsonResponse(exchange, 200, response);
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("count", results.length());
+				response.put("results", results);
+				sendJsonResponse(exchange, 200, response);
 
-				} else {
-					// Failure - check retry count
-					if (request.getRetryCount() < MAX_RETRIES) {
-						// Re-queue for retry
-						request.incrementRetryCount();
-						requestQueue.enqueue(request);
-
-						System.out.println(
-								"Request re-queued for retry (" + request.getRetryCount() + "/" + MAX_RETRIES + ")");
-
-						JSONObject response = new JSONObject();
-						response.put("success", true);
-						response.put("action", "requeued");
-						response.put("message", "Request re-queued for retry (attempt " + request.getRetryCount() + "/"
-								+ MAX_RETRIES + ")");
-						sendJsonResponse(exchange, 200, response);
+			} catch (Exception e) {
+				System.out.println("Error handling POST /api/queue/results: " + e.getMessage());
+				e.printStackTrace();
 
-					} else {
-						// Max retries reached - final failure
-						message.removeReaction(Emoji.fromUnicode("⏳")).queue();
-						message.addReaction(Emoji.fromUnicode("❌")).queue();
-
-						String errorMsg = errorMessage != null ? errorMessage : "Die Verarbeitung ist fehlgeschlagen.";
-						errorMsg += "\n\n*Maximale Anzahl an Wiederholungsversuchen erreicht.*";
-						MessageUtil.sendError(channel, "Verarbeitung fehlgeschlagen", errorMsg);
-
-						JSONObject response = new JSONObject();
-						response.put("success", true);
-						response.put("action", "failed");
-						response.put("message", "Request failed after max retries");
-						sendJsonResponse(exchange, 200, response);
-					}
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for GET /api/queue/image/{hash}
+	 */
+	private class ImageHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET " + exchange.getRequestURI().getPath() + " from "
+					+ exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/queue/image");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				String path = exchange.getRequestURI().getPath();
+				String hash = path.substring(path.lastIndexOf('/') + 1);
+				byte[] image = ImageCache.isValidHash(hash) ? imagePrefetcher.getCache().get(hash) : null;
+				if (image == null) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Image not found");
+					sendJsonResponse(exchange, 404, error);
+					return;
+				}
+
+				// Content-addressed, so the image behind a hash never changes
+				exchange.getResponseHeaders().set("Content-Type", ImageCache.mimeTypeOf(image));
+				exchange.getResponseHeaders().set("Cache-Control", "private, max-age=31536000, immutable");
+				exchange.getResponseHeaders().set("ETag", "\"" + hash + "\"");
+				exchange.sendResponseHeaders(200, image.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(image);
 				}
 
 			} catch (Exception e) {
-				System.out.println("Error handling POST /api/queue/result: " + e.getMessage());
+				System.out.println("Error handling GET /api/queue/image: " + e.getMessage());
 				e.printStackTrace();
 
 				JSONObject error = new JSONObject();
@@ -422,6 +824,11 @@ public class QueueAPIServer {
 			System.out.println("API Request: GET /api/queue/stats from " + exchange.getRemoteAddress());
 
 			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
 				// Check authentication
 				if (!validateAuth(exchange)) {
 					System.out.println("Authentication failed for GET /api/queue/stats");
@@ -441,28 +848,32 @@ public class QueueAPIServer {
 					return;
 				}
 
-				// Get queue statistics
-				List<LinkingRequest> requests = requestQueue.getAll();
-				int queueSize = requests.size();
-
-				Long oldestRequest = null;
-				Long newestRequest = null;
-
-				if (!requests.isEmpty()) {
-					oldestRequest = requests.get(0).getTimestamp();
-					newestRequest = requests.get(requests.size() - 1).getTimestamp();
+				// Statistics of an unchanged queue are answered from the client's copy.
+				// Ages, rates and counters move without a version bump, so the tag
+				// also changes every STATS_ETAG_SECONDS.
+				long version = requestQueue.getVersion();
+				long timeBucket = System.currentTimeMillis() / statsEtagMillis;
+				if (version >= 0 && isNotModified(exchange,
+						"\"q" + version + "-d" + deadLetterStore.getVersion() + "-t" + timeBucket + "\"")) {
+					return;
 				}
 
+				// Read the running statistics, the queue itself is not copied
+				JSONObject statistics = requestQueue.getStatisticsJSON();
+				int queueSize = statistics.getInt("depth");
+
 				JSONObject response = new JSONObject();
 				response.put("success", true);
 				response.put("queueSize", queueSize);
 
-				if (oldestRequest != null) {
-					response.put("oldestRequest", oldestRequest);
-				}
-				if (newestRequest != null) {
-					response.put("newestRequest", newestRequest);
+				if (statistics.has("oldestRequest")) {
+					response.put("oldestRequest", statistics.getLong("oldestRequest"));
+					response.put("newestRequest", statistics.getLong("newestRequest"));
 				}
+				response.put("statistics", statistics);
+				response.put("deadLetterSize", deadLetterStore.size());
+				response.put("rateLimits", RateLimiter.allToJSON());
+				response.put("timers", TimingWheel.getDefault().getStats());
 
 				System.out.println("Returning queue stats: size=" + queueSize);
 				sendJsonResponse(exchange, 200, response);
@@ -479,6 +890,565 @@ public class QueueAPIServer {
 		}
 	}
 
+	/**
+	 * Handler for GET /api/queue/trace/{id} and GET /api/queue/trace for the
+	 * stage latency breakdown
+	 */
+	private class TraceHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET " + exchange.getRequestURI().getPath() + " from "
+					+ exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/queue/trace");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				RequestTracer tracer = requestQueue.getTracer();
+				String path = exchange.getRequestURI().getPath();
+				String requestId = path.length() > "/api/queue/trace/".length()
+						? path.substring("/api/queue/trace/".length())
+						: null;
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				if (requestId == null) {
+					response.put("traces", tracer.getStats());
+					sendJsonResponse(exchange, 200, response);
+					return;
+				}
+
+				JSONObject trace = tracer.getTrace(requestId);
+				if (trace == null) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "No trace for request " + requestId);
+					sendJsonResponse(exchange, 404, error);
+					return;
+				}
+				response.put("trace", trace);
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (Exception e) {
+				System.out.println("Error handling GET /api/queue/trace: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for GET /api/deadletter
+	 */
+	private class DeadLetterListHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET /api/deadletter from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/deadletter");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				Map<String, String> params = parseQueryParams(exchange);
+				String guildId = optFilter(params.get("guildId"));
+				String userId = optFilter(params.get("userId"));
+				String errorFilter = optFilter(params.get("error"));
+				int offset = parseIntParam(params.get("offset"), 0);
+				int limit = Math.min(parseIntParam(params.get("limit"), DEFAULT_PAGE_SIZE), MAX_PAGE_SIZE);
+
+				List<DeadLetterEntry> entries = deadLetterStore.find(guildId, userId, errorFilter, offset, limit);
+
+				JSONArray entriesArray = new JSONArray();
+				for (DeadLetterEntry entry : entries) {
+					entriesArray.put(entry.toJSON());
+				}
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("total", deadLetterStore.count(guildId, userId, errorFilter));
+				response.put("offset", offset);
+				response.put("limit", limit);
+				response.put("count", entries.size());
+				response.put("entries", entriesArray);
+
+				System.out.println("Returning " + entries.size() + " dead-lettered requests");
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (Exception e) {
+				System.out.println("Error handling GET /api/deadletter: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for POST /api/deadletter/replay
+	 */
+	private class DeadLetterReplayHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: POST /api/deadletter/replay from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for POST /api/deadletter/replay");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				// Read and parse filter, an empty body replays everything
+				String body = readRequestBody(exchange);
+				JSONObject filter;
+				try {
+					filter = body.isBlank() ? new JSONObject() : new JSONObject(body);
+				} catch (Exception e) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Invalid JSON in request body");
+					sendJsonResponse(exchange, 400, error);
+					return;
+				}
+
+				String guildId = optFilter(filter.optString("guildId", null));
+				String userId = optFilter(filter.optString("userId", null));
+				String errorFilter = optFilter(filter.optString("error", null));
+				int limit = filter.optInt("limit", Integer.MAX_VALUE);
+
+				List<DeadLetterEntry> entries = deadLetterStore.removeMatching(guildId, userId, errorFilter, limit);
+
+				// Replay copies, so entries that cannot be replayed go back unchanged
+				List<LinkingRequest> candidates = new ArrayList<>();
+				for (DeadLetterEntry entry : entries) {
+					LinkingRequest request = LinkingRequest.fromJSON(entry.getRequest().toJSON());
+					request.resetRetryCount();
+					candidates.add(request);
+				}
+				List<LinkingRequest> replayed = requestQueue.enqueueAll(candidates);
+
+				// Requests whose message is already queued again stay dead-lettered
+				Set<String> replayedIds = new HashSet<>();
+				JSONArray requestIds = new JSONArray();
+				for (LinkingRequest request : replayed) {
+					replayedIds.add(request.getId());
+					requestIds.put(request.getId());
+				}
+				List<DeadLetterEntry> skipped = new ArrayList<>();
+				for (DeadLetterEntry entry : entries) {
+					if (!replayedIds.contains(entry.getRequest().getId())) {
+						skipped.add(entry);
+					}
+				}
+				deadLetterStore.restore(skipped);
+
+				// Swap the failure reaction back to processing, best effort
+				for (LinkingRequest request : replayed) {
+					MessageChannelUnion channel = discord.getMessageChannel(request.getGuildId(), request.getChannelId());
+					if (channel != null) {
+						channel.retrieveMessageById(request.getMessageId()).queue(message -> {
+							message.removeReaction(Emoji.fromUnicode("❌")).queue();
+							message.addReaction(Emoji.fromUnicode("⏳")).queue();
+						}, error -> System.out.println("Warning: Could not update reactions for replayed request "
+								+ request.getId() + " - " + error.getMessage()));
+					}
+				}
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("replayed", replayed.size());
+				response.put("skipped", skipped.size());
+				response.put("requestIds", requestIds);
+
+				System.out.println("Replayed " + replayed.size() + " dead-lettered requests");
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (Exception e) {
+				System.out.println("Error handling POST /api/deadletter/replay: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for GET /api/history
+	 */
+	private class HistoryHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET /api/history from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/history");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("history", historyStore.getStats());
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (IllegalArgumentException e) {
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", e.getMessage());
+				sendJsonResponse(exchange, 400, error);
+			} catch (Exception e) {
+				System.out.println("Error handling GET /api/history: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for GET /api/history/counts
+	 */
+	private class HistoryCountsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET /api/history/counts from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/history/counts");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				Map<String, String> params = parseQueryParams(exchange);
+				String groupBy = optFilter(params.get("groupBy"));
+				if (groupBy != null && !HISTORY_GROUPS.contains(groupBy)) {
+					throw new IllegalArgumentException("groupBy must be one of " + HISTORY_GROUPS);
+				}
+				long from = parseTimeParam(params.get("from"), 0, false);
+				long to = parseTimeParam(params.get("to"), Long.MAX_VALUE, true);
+
+				JSONObject response = historyStore.count(from, to, optFilter(params.get("guildId")),
+						optFilter(params.get("outcome")), groupBy);
+				response.put("success", true);
+
+				System.out.println("Returning history counts, " + response.getInt("segmentsScanned")
+						+ " segments scanned");
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (IllegalArgumentException e) {
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", e.getMessage());
+				sendJsonResponse(exchange, 400, error);
+			} catch (Exception e) {
+				System.out.println("Error handling GET /api/history/counts: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for GET /api/history/durations
+	 */
+	private class HistoryDurationsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET /api/history/durations from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/history/durations");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				Map<String, String> params = parseQueryParams(exchange);
+				long from = parseTimeParam(params.get("from"), 0, false);
+				long to = parseTimeParam(params.get("to"), Long.MAX_VALUE, true);
+
+				JSONObject response = historyStore.durations(from, to, optFilter(params.get("guildId")),
+						optFilter(params.get("outcome")));
+				response.put("success", true);
+
+				System.out.println("Returning history durations, " + response.getInt("segmentsScanned")
+						+ " segments scanned");
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (IllegalArgumentException e) {
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", e.getMessage());
+				sendJsonResponse(exchange, 400, error);
+			} catch (Exception e) {
+				System.out.println("Error handling GET /api/history/durations: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for GET /api/cache/stats
+	 */
+	private class CacheStatsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: GET /api/cache/stats from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for GET /api/cache/stats");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				JSONObject response = discord.getCacheStats();
+				response.put("images", imagePrefetcher.getCache().getStats());
+				response.put("screenshotIndex", screenshotIndex.getStats());
+				response.put("links", resultProcessor.getLinkResultCache().getStats());
+				response.put("compression", compressor.getStats());
+				response.put("messages", messageResolver.getStats());
+				response.put("success", true);
+
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (Exception e) {
+				System.out.println("Error handling GET /api/cache/stats: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
+	/**
+	 * Handler for POST /api/cache/links/invalidate
+	 */
+	private class LinkCacheInvalidateHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			System.out.println("API Request: POST /api/cache/links/invalidate from " + exchange.getRemoteAddress());
+
+			try {
+				// Check rate limit before doing any work
+				if (isRateLimited(exchange)) {
+					return;
+				}
+
+				// Check authentication
+				if (!validateAuth(exchange)) {
+					System.out.println("Authentication failed for POST /api/cache/links/invalidate");
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Unauthorized");
+					sendJsonResponse(exchange, 401, error);
+					return;
+				}
+
+				// Check method
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Method not allowed");
+					sendJsonResponse(exchange, 405, error);
+					return;
+				}
+
+				// Read and parse filter, an empty body clears the whole cache
+				String body = readRequestBody(exchange);
+				JSONObject filter;
+				try {
+					filter = body.isBlank() ? new JSONObject() : new JSONObject(body);
+				} catch (Exception e) {
+					JSONObject error = new JSONObject();
+					error.put("success", false);
+					error.put("error", "Invalid JSON in request body");
+					sendJsonResponse(exchange, 400, error);
+					return;
+				}
+
+				String playerTag = optFilter(filter.optString("playerTag", null));
+				String userId = optFilter(filter.optString("userId", null));
+				int removed = resultProcessor.getLinkResultCache().invalidate(playerTag, userId);
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("invalidated", removed);
+
+				System.out.println("Invalidated " + removed + " cached links");
+				sendJsonResponse(exchange, 200, response);
+
+			} catch (Exception e) {
+				System.out.println("Error handling POST /api/cache/links/invalidate: " + e.getMessage());
+				e.printStackTrace();
+
+				JSONObject error = new JSONObject();
+				error.put("success", false);
+				error.put("error", "Internal server error: " + e.getMessage());
+				sendJsonResponse(exchange, 500, error);
+			}
+		}
+	}
+
 	/**
 	 * Handler for GET /api/health No authentication required
 	 */
@@ -497,9 +1467,17 @@ public class QueueAPIServer {
 					return;
 				}
 
+				// Healthy as soon as the API is up, ready once Discord is connected
+				boolean ready = startup.hasReached(StartupTracker.Phase.DISCORD_READY);
 				JSONObject response = new JSONObject();
-				response.put("status", "healthy");
+				response.put("status", ready ? "healthy" : "warming_up");
+				response.put("ready", ready);
+				response.put("phases", startup.toJSON());
 				response.put("queueSize", requestQueue.size());
+				response.put("deadLetterSize", deadLetterStore.size());
+				response.put("sharded", discord.isSharded());
+				response.put("readyShards", discord.getReadyShardCount());
+				response.put("shards", discord.getShardStatus());
 				response.put("timestamp", System.currentTimeMillis());
 
 				sendJsonResponse(exchange, 200, response);
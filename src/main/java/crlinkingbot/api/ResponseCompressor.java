@@ -0,0 +1,194 @@
+package crlinkingbot.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes response bodies gzip- or deflate-compressed when the client accepts
+ * it and the body is large enough to be worth it. The compressed stream is
+ * written straight to the connection in chunks, so the compressed body is
+ * never held in memory. Keeps per-endpoint statistics on the achieved ratio
+ * and the CPU time spent.
+ */
+public class ResponseCompressor {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final boolean enabled;
+	private final int minBytes;
+	private final Map<String, EndpointStats> stats;
+	private final ThreadMXBean threadBean;
+
+	private static class EndpointStats {
+		final AtomicLong responses = new AtomicLong();
+		final AtomicLong compressed = new AtomicLong();
+		final AtomicLong originalBytes = new AtomicLong();
+		final AtomicLong compressedBytes = new AtomicLong();
+		final AtomicLong cpuNanos = new AtomicLong();
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param enabled  Whether responses may be compressed at all
+	 * @param minBytes Smallest body that is compressed
+	 */
+	public ResponseCompressor(boolean enabled, int minBytes) {
+		this.enabled = enabled;
+		this.minBytes = minBytes;
+		this.stats = new ConcurrentHashMap<>();
+		this.threadBean = ManagementFactory.getThreadMXBean();
+	}
+
+	/**
+	 * Send the response headers and body, compressed if the client supports it
+	 *
+	 * @param exchange   The exchange to answer
+	 * @param statusCode HTTP status code
+	 * @param body       The uncompressed body
+	 */
+	public void send(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+		EndpointStats endpoint = stats.computeIfAbsent(exchange.getHttpContext().getPath(), k -> new EndpointStats());
+		endpoint.responses.incrementAndGet();
+		endpoint.originalBytes.addAndGet(body.length);
+		exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+
+		String encoding = body.length >= minBytes && enabled
+				? chooseEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"))
+				: null;
+		if (encoding == null) {
+			exchange.sendResponseHeaders(statusCode, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+			endpoint.compressedBytes.addAndGet(body.length);
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Encoding", encoding);
+		// Length 0 selects chunked transfer, the size is not known up front
+		exchange.sendResponseHeaders(statusCode, 0);
+		long cpuStart = cpuTime();
+		CountingOutputStream counter = new CountingOutputStream(exchange.getResponseBody());
+		try (OutputStream os = "gzip".equals(encoding) ? new GZIPOutputStream(counter, BUFFER_SIZE)
+				: new DeflaterOutputStream(counter, new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE)) {
+			os.write(body);
+		}
+		endpoint.cpuNanos.addAndGet(Math.max(0, cpuTime() - cpuStart));
+		endpoint.compressed.incrementAndGet();
+		endpoint.compressedBytes.addAndGet(counter.count);
+	}
+
+	/**
+	 * Get compression statistics per endpoint
+	 */
+	public JSONObject getStats() {
+		JSONObject json = new JSONObject();
+		json.put("enabled", enabled);
+		json.put("minBytes", minBytes);
+		JSONObject endpoints = new JSONObject();
+		for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+			EndpointStats endpoint = entry.getValue();
+			long original = endpoint.originalBytes.get();
+			long sent = endpoint.compressedBytes.get();
+			JSONObject endpointJson = new JSONObject();
+			endpointJson.put("responses", endpoint.responses.get());
+			endpointJson.put("compressed", endpoint.compressed.get());
+			endpointJson.put("originalBytes", original);
+			endpointJson.put("sentBytes", sent);
+			endpointJson.put("ratio", original == 0 ? 1.0 : (double) sent / original);
+			endpointJson.put("cpuMillis", endpoint.cpuNanos.get() / 1_000_000.0);
+			endpoints.put(entry.getKey(), endpointJson);
+		}
+		json.put("endpoints", endpoints);
+		return json;
+	}
+
+	/**
+	 * Pick gzip or deflate from an Accept-Encoding header, honoring q=0
+	 *
+	 * @return The encoding to use, or null to send the body as is
+	 */
+	static String chooseEncoding(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		boolean deflate = false;
+		for (String part : acceptEncoding.split(",")) {
+			String[] tokens = part.trim().split(";");
+			String coding = tokens[0].trim().toLowerCase();
+			if (isRejected(tokens)) {
+				continue;
+			}
+			if ("gzip".equals(coding) || "*".equals(coding)) {
+				return "gzip";
+			}
+			if ("deflate".equals(coding)) {
+				deflate = true;
+			}
+		}
+		return deflate ? "deflate" : null;
+	}
+
+	private static boolean isRejected(String[] tokens) {
+		for (int i = 1; i < tokens.length; i++) {
+			String param = tokens[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2)) <= 0;
+				} catch (NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private long cpuTime() {
+		return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Counts the compressed bytes on their way to the connection
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
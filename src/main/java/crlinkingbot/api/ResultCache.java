@@ -0,0 +1,185 @@
+package crlinkingbot.api;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, time-windowed cache of the responses sent for recently completed
+ * result submissions. A worker that retries a POST to /api/queue/result gets
+ * the original response replayed instead of triggering the work again or
+ * receiving a 404. Only final outcomes are kept: a request that went back
+ * into the queue must accept the result of its next attempt.
+ */
+public class ResultCache {
+	private static final long IN_FLIGHT_WAIT_SECONDS = 30;
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	// Insertion order is completion order, so the eldest entry expires first
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * Cached response for a request ID
+	 */
+	public static class CachedResult {
+		private final int statusCode;
+		private final String body;
+
+		CachedResult(int statusCode, JSONObject body) {
+			this.statusCode = statusCode;
+			this.body = body.toString();
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public JSONObject getBody() {
+			return new JSONObject(body);
+		}
+	}
+
+	private static class Entry {
+		final CompletableFuture<CachedResult> result = new CompletableFuture<>();
+		long completedAt;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxEntries Maximum number of cached responses
+	 * @param ttlMillis  How long a response stays replayable
+	 */
+	public ResultCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Start handling a result submission. If the request ID was already handled
+	 * or is being handled right now, the original response is returned (waiting
+	 * for an in-flight submission to finish) and the caller must not process it
+	 * again.
+	 *
+	 * @param requestId The request ID of the submission
+	 * @return The response to replay, or null if the caller owns the submission
+	 *         and must call {@link #complete} or {@link #abort}
+	 */
+	public CachedResult begin(String requestId) throws Exception {
+		while (true) {
+			CompletableFuture<CachedResult> existing;
+			synchronized (this) {
+				evictExpired();
+				Entry entry = entries.get(requestId);
+				if (entry == null) {
+					entries.put(requestId, new Entry());
+					return null;
+				}
+				existing = entry.result;
+			}
+
+			CachedResult result = existing.get(IN_FLIGHT_WAIT_SECONDS, TimeUnit.SECONDS);
+			if (result != null) {
+				return result;
+			}
+			// The other submission was aborted, try to take over
+		}
+	}
+
+	/**
+	 * Record the response sent for a submission so it can be replayed
+	 */
+	public void complete(String requestId, int statusCode, JSONObject body) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(requestId);
+			if (entry == null) {
+				return;
+			}
+			entry.completedAt = System.currentTimeMillis();
+			// Re-insert so the map stays ordered by completion time
+			entries.remove(requestId);
+			entries.put(requestId, entry);
+			Iterator<Entry> it = entries.values().iterator();
+			while (entries.size() > maxEntries && it.hasNext()) {
+				if (it.next().result.isDone()) {
+					it.remove();
+				}
+			}
+		}
+		entry.result.complete(new CachedResult(statusCode, body));
+	}
+
+	/**
+	 * Answer submissions waiting for this one without keeping the response,
+	 * e.g. because the request was re-queued and its next result must be
+	 * processed
+	 */
+	public void release(String requestId, int statusCode, JSONObject body) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.remove(requestId);
+			if (entry == null) {
+				return;
+			}
+		}
+		entry.result.complete(new CachedResult(statusCode, body));
+	}
+
+	/**
+	 * Drop the response of a finished submission, e.g. because its request was
+	 * queued again by a dead-letter replay. A submission still in flight is
+	 * kept, so duplicates of it keep waiting for its response.
+	 */
+	public synchronized void invalidate(String requestId) {
+		Entry entry = entries.get(requestId);
+		if (entry != null && entry.result.isDone()) {
+			entries.remove(requestId);
+		}
+	}
+
+	/**
+	 * Forget a submission that was not processed, e.g. because the request was
+	 * not in the queue. Waiting duplicates fall through to their own handling.
+	 */
+	public void abort(String requestId) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(requestId);
+			if (entry == null || entry.result.isDone()) {
+				return;
+			}
+			entries.remove(requestId);
+		}
+		entry.result.complete(null);
+	}
+
+	/**
+	 * Get number of cached responses
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void evictExpired() {
+		long cutoff = System.currentTimeMillis() - ttlMillis;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next().getValue();
+			if (!entry.result.isDone()) {
+				// In-flight entries are not ordered by completion time
+				continue;
+			}
+			if (entry.completedAt >= cutoff) {
+				break;
+			}
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package crlinkingbot.images;
+
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.util.EnvUtil;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed disk cache for normalized screenshots. Files are named
+ * after the SHA-256 of their content, so the same image is stored once no
+ * matter how many requests reference it. The least recently used files are
+ * evicted once the cache exceeds its size limit.
+ */
+public class ImageCache {
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	private final File directory;
+	private final long maxBytes;
+	private final int maxDimension;
+	// Hash to file size, in access order so the eldest entry is evicted first
+	private final LinkedHashMap<String, Long> entries;
+	private long totalBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong originalBytes = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+
+	/**
+	 * Constructor reads the cache limits from the environment and indexes the
+	 * files already on disk
+	 */
+	public ImageCache() {
+		String jarDir = RequestQueue.getRunningJarDirectory().getAbsolutePath();
+		this.directory = new File(jarDir, "/crlinkingbot/image_cache");
+		this.maxBytes = EnvUtil.getInt("IMAGE_CACHE_MAX_MB", 256) * 1024L * 1024L;
+		this.maxDimension = EnvUtil.getInt("IMAGE_MAX_DIMENSION", 1280);
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			System.out.println("Could not create image cache directory " + directory.getAbsolutePath());
+		}
+		loadIndex();
+	}
+
+	/**
+	 * Normalize an image and store it
+	 *
+	 * @param original The downloaded image bytes
+	 * @return The content hash of the stored image
+	 */
+	public String put(byte[] original) throws IOException {
+		byte[] normalized = ImageNormalizer.normalize(original, maxDimension);
+		String hash = sha256(normalized);
+		originalBytes.addAndGet(original.length);
+
+		synchronized (this) {
+			if (entries.get(hash) != null) {
+				return hash;
+			}
+		}
+
+		// Write to a temp file first so readers never see a partial image
+		File target = new File(directory, hash);
+		Path temp = Files.createTempFile(directory.toPath(), hash, ".tmp");
+		Files.write(temp, normalized);
+		Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		storedBytes.addAndGet(normalized.length);
+
+		synchronized (this) {
+			if (entries.put(hash, (long) normalized.length) == null) {
+				totalBytes += normalized.length;
+			}
+			evict();
+		}
+		return hash;
+	}
+
+	/**
+	 * Read a cached image
+	 *
+	 * @return The image bytes, or null if the hash is unknown or was evicted
+	 */
+	public byte[] get(String hash) {
+		if (!isValidHash(hash)) {
+			return null;
+		}
+		synchronized (this) {
+			if (entries.get(hash) == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+		try {
+			byte[] data = Files.readAllBytes(new File(directory, hash).toPath());
+			hits.incrementAndGet();
+			return data;
+		} catch (IOException e) {
+			// Deleted behind our back
+			synchronized (this) {
+				Long size = entries.remove(hash);
+				if (size != null) {
+					totalBytes -= size;
+				}
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Check whether an image is cached without counting it as an access
+	 */
+	public synchronized boolean contains(String hash) {
+		return entries.containsKey(hash);
+	}
+
+	/**
+	 * Get cache statistics
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		synchronized (this) {
+			stats.put("entries", entries.size());
+			stats.put("bytes", totalBytes);
+		}
+		stats.put("maxBytes", maxBytes);
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		stats.put("originalBytes", originalBytes.get());
+		stats.put("storedBytes", storedBytes.get());
+		return stats;
+	}
+
+	/**
+	 * Check that a string is a cache key, which also rules out path traversal
+	 */
+	public static boolean isValidHash(String hash) {
+		return hash != null && HASH_PATTERN.matcher(hash).matches();
+	}
+
+	/**
+	 * Detect the image type from its magic bytes
+	 */
+	public static String mimeTypeOf(byte[] data) {
+		if (data.length >= 3 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+			return "image/jpeg";
+		}
+		if (data.length >= 8 && (data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+			return "image/png";
+		}
+		if (data.length >= 6 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
+			return "image/gif";
+		}
+		if (data.length >= 12 && data[0] == 'R' && data[1] == 'I' && data[8] == 'W' && data[9] == 'E') {
+			return "image/webp";
+		}
+		return "application/octet-stream";
+	}
+
+	/**
+	 * Drop the least recently used files until the cache fits its limit
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			totalBytes -= eldest.getValue();
+			evictions.incrementAndGet();
+			if (!new File(directory, eldest.getKey()).delete()) {
+				System.out.println("Could not delete evicted image " + eldest.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Index the files on disk, oldest first
+	 */
+	private synchronized void loadIndex() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files) {
+			if (isValidHash(file.getName())) {
+				entries.put(file.getName(), file.length());
+				totalBytes += file.length();
+			} else if (file.getName().endsWith(".tmp")) {
+				file.delete();
+			}
+		}
+		evict();
+		System.out.println("Image cache holds " + entries.size() + " images (" + (totalBytes / 1024) + " KB)");
+	}
+
+	private static String sha256(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+}
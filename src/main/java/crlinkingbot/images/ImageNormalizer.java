@@ -0,0 +1,147 @@
+package crlinkingbot.images;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Shrinks screenshots before they are cached: trims uniform borders (letterbox
+ * bars, empty margins around the profile), downscales to a maximum edge length
+ * and re-encodes as JPEG.
+ */
+public class ImageNormalizer {
+	private static final float JPEG_QUALITY = 0.85f;
+	// Max per-channel difference for a pixel to count as border color
+	private static final int BORDER_TOLERANCE = 12;
+	// Never crop away more than this share of either dimension
+	private static final double MAX_CROP_RATIO = 0.5;
+
+	/**
+	 * Normalize an image. Images that cannot be decoded are returned unchanged.
+	 *
+	 * @param data         The original image bytes
+	 * @param maxDimension Maximum width or height of the result
+	 * @return The normalized image, or the original if it was not cropped or
+	 *         scaled and is already smaller
+	 */
+	public static byte[] normalize(byte[] data, int maxDimension) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+		if (image == null) {
+			return data;
+		}
+
+		int originalWidth = image.getWidth();
+		int originalHeight = image.getHeight();
+		image = trimBorders(image);
+		image = downscale(image, maxDimension);
+		byte[] encoded = encodeJpeg(image);
+
+		if (image.getWidth() == originalWidth && image.getHeight() == originalHeight) {
+			return encoded.length < data.length ? encoded : data;
+		}
+		// Flat synthetic images compress better as PNG, keep the smaller one
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		return png.size() < encoded.length ? png.toByteArray() : encoded;
+	}
+
+	/**
+	 * Crop rows and columns at the edges that have the same color as the top
+	 * left corner
+	 */
+	static BufferedImage trimBorders(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int border = image.getRGB(0, 0);
+
+		int top = 0;
+		while (top < height * MAX_CROP_RATIO && isUniformRow(image, top, border)) {
+			top++;
+		}
+		int bottom = height - 1;
+		while (bottom > height * (1 - MAX_CROP_RATIO) && isUniformRow(image, bottom, border)) {
+			bottom--;
+		}
+		int left = 0;
+		while (left < width * MAX_CROP_RATIO && isUniformColumn(image, left, top, bottom, border)) {
+			left++;
+		}
+		int right = width - 1;
+		while (right > width * (1 - MAX_CROP_RATIO) && isUniformColumn(image, right, top, bottom, border)) {
+			right--;
+		}
+
+		if (top == 0 && left == 0 && bottom == height - 1 && right == width - 1) {
+			return image;
+		}
+		return image.getSubimage(left, top, right - left + 1, bottom - top + 1);
+	}
+
+	private static boolean isUniformRow(BufferedImage image, int y, int border) {
+		// Sampling every few pixels is enough to find solid bars
+		for (int x = 0; x < image.getWidth(); x += 4) {
+			if (!isSimilar(image.getRGB(x, y), border)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isUniformColumn(BufferedImage image, int x, int top, int bottom, int border) {
+		for (int y = top; y <= bottom; y += 4) {
+			if (!isSimilar(image.getRGB(x, y), border)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isSimilar(int rgb, int other) {
+		return Math.abs(((rgb >> 16) & 0xff) - ((other >> 16) & 0xff)) <= BORDER_TOLERANCE
+				&& Math.abs(((rgb >> 8) & 0xff) - ((other >> 8) & 0xff)) <= BORDER_TOLERANCE
+				&& Math.abs((rgb & 0xff) - (other & 0xff)) <= BORDER_TOLERANCE;
+	}
+
+	/**
+	 * Scale the image down so its longer edge is at most maxDimension. Also
+	 * converts it to RGB, which the JPEG encoder requires.
+	 */
+	static BufferedImage downscale(BufferedImage image, int maxDimension) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double scale = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+		int targetWidth = Math.max(1, (int) Math.round(width * scale));
+		int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+		BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		graphics.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+		graphics.dispose();
+		return scaled;
+	}
+
+	private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(stream);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPEG_QUALITY);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+}
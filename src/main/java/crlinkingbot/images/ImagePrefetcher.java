@@ -0,0 +1,371 @@
+package crlinkingbot.images;
+
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.MessageResolver;
+import crlinkingbot.util.EnvUtil;
+import net.dv8tion.jda.api.entities.Message;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Downloads the screenshots of queued requests once, right after they were
+ * queued, and stores them in the {@link ImageCache}. The hashes are saved on
+ * the request, so retries and workers read the cache instead of the Discord
+ * CDN.
+ */
+public class ImagePrefetcher {
+	private static final int MAX_IMAGES_PER_REQUEST = 4;
+	// Attachments looked at when screening a message at enqueue time
+	private static final int MAX_SCREENED_ATTACHMENTS = 10;
+	private static final long RESOLVE_TIMEOUT_SECONDS = 60;
+
+	private final ImageCache cache;
+	private final ProfileScreenshotClassifier classifier;
+	private final RequestQueue requestQueue;
+	private final DiscordGateway discord;
+	private final MessageResolver messageResolver;
+	private final HttpClient httpClient;
+	private final ExecutorService executor;
+	// Downloads in progress per request ID, so a request is fetched only once
+	private final Map<String, CompletableFuture<List<String>>> inFlight;
+	// Notified after a request's images were cached
+	private volatile Consumer<LinkingRequest> cachedListener;
+
+	/**
+	 * Outcome of screening a message's attachments
+	 */
+	public static class Screening {
+		private final List<String> attachmentIds = new ArrayList<>();
+		private final List<String> imageHashes = new ArrayList<>();
+		private final List<String> rejected = new ArrayList<>();
+		private boolean conclusive = true;
+
+		/**
+		 * IDs of the attachments that may be profile screenshots, best first
+		 */
+		public List<String> getAttachmentIds() {
+			return attachmentIds;
+		}
+
+		/**
+		 * Cache hashes of the accepted attachments
+		 */
+		public List<String> getImageHashes() {
+			return imageHashes;
+		}
+
+		/**
+		 * File names and reasons of the dropped attachments
+		 */
+		public List<String> getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * False if some attachments could not be checked, e.g. because the
+		 * download failed. An empty inconclusive screening is no reason to
+		 * reject a request.
+		 */
+		public boolean isConclusive() {
+			return conclusive;
+		}
+	}
+
+	/**
+	 * Constructor
+	 */
+	public ImagePrefetcher(ImageCache cache, ProfileScreenshotClassifier classifier, RequestQueue requestQueue,
+			DiscordGateway discord, MessageResolver messageResolver) {
+		this.cache = cache;
+		this.classifier = classifier;
+		this.requestQueue = requestQueue;
+		this.discord = discord;
+		this.messageResolver = messageResolver;
+		this.inFlight = new ConcurrentHashMap<>();
+		this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10))
+				.followRedirects(HttpClient.Redirect.NORMAL).build();
+		int threads = EnvUtil.getInt("IMAGE_PREFETCH_THREADS", 2);
+		this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setName("image-prefetch-" + thread.getId());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Get the cache the images are stored in
+	 */
+	public ImageCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set the callback invoked on the download thread after a request's images
+	 * were cached
+	 */
+	public void setCachedListener(Consumer<LinkingRequest> cachedListener) {
+		this.cachedListener = cachedListener;
+	}
+
+	/**
+	 * Start downloading the request's images in the background. If they are
+	 * already cached, only the listener is notified.
+	 */
+	public void prefetch(LinkingRequest request) {
+		if (!isCached(request)) {
+			start(request);
+			return;
+		}
+		try {
+			executor.execute(() -> notifyCached(request));
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	/**
+	 * Download and score a message's image attachments before a request is
+	 * queued. Plausible profile screenshots are stored in the cache, the best
+	 * ones first, everything else is dropped. Runs on the calling thread.
+	 *
+	 * @param attachments The message's attachments
+	 * @return The accepted and rejected attachments
+	 */
+	public Screening screen(List<Message.Attachment> attachments) {
+		List<Message.Attachment> accepted = new ArrayList<>();
+		Map<String, Double> scores = new HashMap<>();
+		Map<String, String> hashes = new HashMap<>();
+		Screening screening = new Screening();
+
+		int screened = 0;
+		for (Message.Attachment attachment : attachments) {
+			if (!attachment.isImage() || screened++ >= MAX_SCREENED_ATTACHMENTS) {
+				continue;
+			}
+			byte[] data;
+			try {
+				HttpResponse<byte[]> response = httpClient.send(
+						HttpRequest.newBuilder(URI.create(attachment.getUrl())).timeout(Duration.ofSeconds(20)).build(),
+						HttpResponse.BodyHandlers.ofByteArray());
+				if (response.statusCode() != 200) {
+					screening.conclusive = false;
+					continue;
+				}
+				data = response.body();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				screening.conclusive = false;
+				break;
+			} catch (Exception e) {
+				screening.conclusive = false;
+				continue;
+			}
+
+			try {
+				BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+				// Formats ImageIO cannot decode get the benefit of the doubt
+				double score = 1.0;
+				if (image != null) {
+					ProfileScreenshotClassifier.Score result = classifier.classify(image);
+					if (!classifier.isEnabled()) {
+						// Until the threshold is calibrated the score is only logged and keeps the order
+						System.out.println(String.format("Profile score of %s: %.2f (%s)", attachment.getFileName(),
+								result.getValue(), result.getReason()));
+					} else if (!classifier.accepts(result)) {
+						screening.rejected.add(attachment.getFileName() + " (" + result.getReason() + ")");
+						continue;
+					} else {
+						score = result.getValue();
+					}
+				}
+				hashes.put(attachment.getId(), cache.put(data));
+				scores.put(attachment.getId(), score);
+				accepted.add(attachment);
+			} catch (IOException e) {
+				System.out.println("Could not screen attachment " + attachment.getFileName() + ": " + e.getMessage());
+				screening.conclusive = false;
+			}
+		}
+
+		accepted.sort(Comparator.comparingDouble((Message.Attachment a) -> scores.get(a.getId())).reversed());
+		for (Message.Attachment attachment : accepted.subList(0, Math.min(accepted.size(), MAX_IMAGES_PER_REQUEST))) {
+			screening.attachmentIds.add(attachment.getId());
+			screening.imageHashes.add(hashes.get(attachment.getId()));
+		}
+		return screening;
+	}
+
+	/**
+	 * Prefetch every queued request whose images are not cached yet, e.g. after
+	 * a restart
+	 */
+	public void prefetchQueued() {
+		int started = 0;
+		for (LinkingRequest request : requestQueue.getAll()) {
+			if (!isCached(request) && discord.isGuildReady(request.getGuildId())) {
+				start(request);
+				started++;
+			}
+		}
+		if (started > 0) {
+			System.out.println("Prefetching images for " + started + " queued requests");
+		}
+	}
+
+	/**
+	 * Get the hashes of the request's cached images, downloading them first if
+	 * needed
+	 *
+	 * @return The image hashes, empty if the message has no downloadable images
+	 */
+	public List<String> resolve(LinkingRequest request) throws Exception {
+		if (isCached(request)) {
+			return request.getImageHashes();
+		}
+		return start(request).get(RESOLVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop waiting for the images of a request that left the queue. A running
+	 * download still finishes, but nobody is handed its result.
+	 */
+	public void cancel(String requestId) {
+		CompletableFuture<List<String>> future = inFlight.remove(requestId);
+		if (future != null) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Stop the download threads
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private boolean isCached(LinkingRequest request) {
+		List<String> hashes = request.getImageHashes();
+		if (hashes.isEmpty()) {
+			return false;
+		}
+		for (String hash : hashes) {
+			if (!cache.contains(hash)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private CompletableFuture<List<String>> start(LinkingRequest request) {
+		CompletableFuture<List<String>> future = new CompletableFuture<>();
+		CompletableFuture<List<String>> existing = inFlight.putIfAbsent(request.getId(), future);
+		if (existing != null) {
+			return existing;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					List<String> hashes = download(request);
+					inFlight.remove(request.getId(), future);
+					future.complete(hashes);
+				} catch (RuntimeException e) {
+					inFlight.remove(request.getId(), future);
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			inFlight.remove(request.getId(), future);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Download the image attachments of the request's message into the cache
+	 * and record their hashes on the request
+	 */
+	private List<String> download(LinkingRequest request) {
+		List<String> hashes = new ArrayList<>();
+		long start = System.currentTimeMillis();
+		Message message = messageResolver.resolve(request);
+		if (message == null) {
+			System.out.println("Warning: Message " + request.getMessageId() + " not found for request "
+					+ request.getId());
+			return hashes;
+		}
+
+		try {
+			for (Message.Attachment attachment : message.getAttachments()) {
+				if (!attachment.isImage() || !request.includesAttachment(attachment.getId())
+						|| hashes.size() >= MAX_IMAGES_PER_REQUEST) {
+					continue;
+				}
+				HttpResponse<byte[]> response = httpClient.send(
+						HttpRequest.newBuilder(URI.create(attachment.getUrl())).timeout(Duration.ofSeconds(20)).build(),
+						HttpResponse.BodyHandlers.ofByteArray());
+				if (response.statusCode() != 200) {
+					System.out.println("Warning: Could not download attachment " + attachment.getFileName()
+							+ " (HTTP " + response.statusCode() + ")");
+					continue;
+				}
+				hashes.add(cache.put(response.body()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return hashes;
+		} catch (Exception e) {
+			System.out.println("Warning: Could not prefetch images of message " + request.getMessageId()
+					+ " in channel " + request.getChannelId() + " - " + e.getMessage());
+			return hashes;
+		}
+
+		if (!hashes.isEmpty()) {
+			request.setImageHashes(hashes);
+			requestQueue.update(request);
+		}
+		System.out.println("Prefetched " + hashes.size() + " images for request " + request.getId() + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		if (!hashes.isEmpty()) {
+			notifyCached(request);
+		}
+		return hashes;
+	}
+
+	private void notifyCached(LinkingRequest request) {
+		Consumer<LinkingRequest> listener = cachedListener;
+		if (listener == null) {
+			return;
+		}
+		try {
+			listener.accept(request);
+		} catch (Exception e) {
+			System.out.println("Error in image cache listener for request " + request.getId() + ": " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
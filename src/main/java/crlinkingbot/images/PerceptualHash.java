@@ -0,0 +1,102 @@
+package crlinkingbot.images;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 256-bit difference hash (dHash) of an image. The image is shrunk to 17x16
+ * grayscale pixels and every bit records whether a pixel is brighter than its
+ * right neighbour. Re-encoded, rescaled or slightly cropped copies of the same
+ * screenshot end up within a few bits of each other.
+ */
+public final class PerceptualHash {
+	private static final int WIDTH = 16;
+	private static final int HEIGHT = 16;
+	public static final int BITS = WIDTH * HEIGHT;
+
+	private final long[] bits;
+
+	private PerceptualHash(long[] bits) {
+		this.bits = bits;
+	}
+
+	/**
+	 * Hash encoded image bytes
+	 *
+	 * @return The hash, or null if the image cannot be decoded
+	 */
+	public static PerceptualHash of(byte[] imageData) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
+		return image != null ? of(image) : null;
+	}
+
+	/**
+	 * Hash a decoded image
+	 */
+	public static PerceptualHash of(BufferedImage image) {
+		BufferedImage small = new BufferedImage(WIDTH + 1, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = small.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.drawImage(image, 0, 0, WIDTH + 1, HEIGHT, null);
+		graphics.dispose();
+
+		long[] bits = new long[BITS / 64];
+		int bit = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int left = small.getRaster().getSample(x, y, 0);
+				int right = small.getRaster().getSample(x + 1, y, 0);
+				if (left > right) {
+					bits[bit / 64] |= 1L << (bit % 64);
+				}
+				bit++;
+			}
+		}
+		return new PerceptualHash(bits);
+	}
+
+	/**
+	 * Parse a hash written by {@link #toHex()}
+	 */
+	public static PerceptualHash fromHex(String hex) {
+		long[] bits = new long[BITS / 64];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = Long.parseUnsignedLong(hex.substring(i * 16, (i + 1) * 16), 16);
+		}
+		return new PerceptualHash(bits);
+	}
+
+	/**
+	 * Number of differing bits
+	 */
+	public int distance(PerceptualHash other) {
+		int distance = 0;
+		for (int i = 0; i < bits.length; i++) {
+			distance += Long.bitCount(bits[i] ^ other.bits[i]);
+		}
+		return distance;
+	}
+
+	public String toHex() {
+		StringBuilder hex = new StringBuilder();
+		for (long word : bits) {
+			hex.append(String.format("%016x", word));
+		}
+		return hex.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof PerceptualHash && Arrays.equals(bits, ((PerceptualHash) o).bits);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bits);
+	}
+}
@@ -0,0 +1,170 @@
+package crlinkingbot.images;
+
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.util.EnvUtil;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cheap local check whether an image can be a Clash Royale profile
+ * screenshot. It scores dimensions, aspect ratio and the share of the blue
+ * tones that dominate the profile screen and, if reference screenshots are
+ * placed in the templates directory, how close the layout is to them. Only
+ * obviously unrelated images (memes, photos, tiny images) should score below
+ * the threshold.
+ */
+public class ProfileScreenshotClassifier {
+	private static final int MIN_SIDE = 240;
+	// Share of blue pixels at which the color score is maxed out
+	private static final double FULL_BLUE_SHARE = 0.3;
+	// dHash distance of unrelated images is around half of the bits
+	private static final double UNRELATED_DISTANCE = PerceptualHash.BITS / 2.0;
+	private static final int SAMPLE_STEP = 4;
+
+	private final boolean enabled;
+	private final double minScore;
+	private final List<PerceptualHash> templates;
+
+	/**
+	 * Result of classifying one image
+	 */
+	public static class Score {
+		private final double value;
+		private final String reason;
+
+		Score(double value, String reason) {
+			this.value = value;
+			this.reason = reason;
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+	}
+
+	/**
+	 * Constructor reads the threshold from the environment and hashes the
+	 * reference screenshots
+	 */
+	public ProfileScreenshotClassifier() {
+		this.enabled = EnvUtil.getBoolean("PROFILE_FILTER", false);
+		this.minScore = EnvUtil.getInt("PROFILE_MIN_SCORE_PERCENT", 50) / 100.0;
+		this.templates = loadTemplates();
+	}
+
+	/**
+	 * Whether images below the threshold should be dropped
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Check whether a score is high enough for the image to be kept
+	 */
+	public boolean accepts(Score score) {
+		return !enabled || score.getValue() >= minScore;
+	}
+
+	/**
+	 * Score an image between 0 (certainly not a profile) and 1
+	 */
+	public Score classify(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		if (Math.min(width, height) < MIN_SIDE) {
+			return new Score(0, "zu klein (" + width + "x" + height + ")");
+		}
+
+		// The game only runs in portrait mode
+		double aspect = (double) height / width;
+		double aspectScore;
+		if (aspect >= 1.3 && aspect <= 2.5) {
+			aspectScore = 1.0;
+		} else if (aspect >= 1.0 && aspect < 1.3) {
+			aspectScore = 0.5;
+		} else {
+			aspectScore = 0.2;
+		}
+
+		double colorScore = Math.min(1.0, blueShare(image) / FULL_BLUE_SHARE);
+
+		double score;
+		if (templates.isEmpty()) {
+			score = 0.4 * aspectScore + 0.6 * colorScore;
+		} else {
+			score = 0.3 * aspectScore + 0.4 * colorScore + 0.3 * templateScore(image);
+		}
+
+		String reason = String.format("Seitenverhältnis %.2f, Farbe %.2f", aspect, colorScore);
+		return new Score(score, reason);
+	}
+
+	/**
+	 * Share of saturated blue pixels, the background color of the profile
+	 * screen
+	 */
+	private static double blueShare(BufferedImage image) {
+		float[] hsb = new float[3];
+		long blue = 0;
+		long total = 0;
+		for (int y = 0; y < image.getHeight(); y += SAMPLE_STEP) {
+			for (int x = 0; x < image.getWidth(); x += SAMPLE_STEP) {
+				int rgb = image.getRGB(x, y);
+				Color.RGBtoHSB((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, hsb);
+				float hueDegrees = hsb[0] * 360;
+				if (hueDegrees >= 190 && hueDegrees <= 250 && hsb[1] >= 0.3f && hsb[2] >= 0.2f) {
+					blue++;
+				}
+				total++;
+			}
+		}
+		return total == 0 ? 0 : (double) blue / total;
+	}
+
+	/**
+	 * Layout similarity to the closest reference screenshot, 0 for unrelated
+	 * images
+	 */
+	private double templateScore(BufferedImage image) {
+		PerceptualHash hash = PerceptualHash.of(image);
+		int best = PerceptualHash.BITS;
+		for (PerceptualHash template : templates) {
+			best = Math.min(best, template.distance(hash));
+		}
+		return Math.max(0, 1 - best / UNRELATED_DISTANCE);
+	}
+
+	/**
+	 * Hash the reference profile screenshots in the templates directory
+	 */
+	private static List<PerceptualHash> loadTemplates() {
+		List<PerceptualHash> templates = new ArrayList<>();
+		String jarDir = RequestQueue.getRunningJarDirectory().getAbsolutePath();
+		File[] files = new File(jarDir, "/crlinkingbot/profile_templates").listFiles();
+		if (files == null) {
+			return templates;
+		}
+		for (File file : files) {
+			try {
+				PerceptualHash hash = PerceptualHash.of(Files.readAllBytes(file.toPath()));
+				if (hash != null) {
+					templates.add(hash);
+				}
+			} catch (Exception e) {
+				System.out.println("Could not load profile template " + file.getName() + ": " + e.getMessage());
+			}
+		}
+		System.out.println("Loaded " + templates.size() + " profile screenshot templates");
+		return templates;
+	}
+}
@@ -0,0 +1,260 @@
+package crlinkingbot.images;
+
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.util.EnvUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded index from the content hashes of cached screenshots to the player
+ * tag that was extracted from them. Lets a reposted screenshot complete
+ * without another model call. Only exact copies match: the cache normalizes
+ * every image the same way, so the same upload always has the same hash,
+ * while similar screenshots of different accounts never do. The least
+ * recently matched entries are dropped first.
+ */
+public class ScreenshotIndex {
+
+	/**
+	 * A known player tag for a request's screenshots
+	 */
+	public static class Match {
+		private final String playerTag;
+		private final double confidence;
+
+		Match(String playerTag, double confidence) {
+			this.playerTag = playerTag;
+			this.confidence = confidence;
+		}
+
+		public String getPlayerTag() {
+			return playerTag;
+		}
+
+		public double getConfidence() {
+			return confidence;
+		}
+	}
+
+	private static class Entry {
+		final String playerTag;
+		final double confidence;
+		final long updatedAt;
+
+		Entry(String playerTag, double confidence, long updatedAt) {
+			this.playerTag = playerTag;
+			this.confidence = confidence;
+			this.updatedAt = updatedAt;
+		}
+	}
+
+	private final boolean enabled;
+	private final int maxEntries;
+	private final double minConfidence;
+	// Content hash to tag, in access order so the least recently matched entry is evicted first
+	private final LinkedHashMap<String, Entry> entries;
+	private final File indexFile;
+	// Single writer thread, records only touch memory
+	private final ExecutorService writer;
+	private boolean saveScheduled;
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+
+	/**
+	 * Constructor reads the limits from the environment and loads the index
+	 * from file
+	 */
+	public ScreenshotIndex() {
+		this.enabled = EnvUtil.getBoolean("SCREENSHOT_DEDUPE", true);
+		this.maxEntries = EnvUtil.getInt("SCREENSHOT_INDEX_SIZE", 10000);
+		this.minConfidence = EnvUtil.getInt("SCREENSHOT_MIN_CONFIDENCE_PERCENT", 90) / 100.0;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+
+		String jarDir = RequestQueue.getRunningJarDirectory().getAbsolutePath();
+		this.indexFile = new File(jarDir, "/crlinkingbot/screenshot_index.json");
+		this.writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "screenshot-index-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		loadIndex();
+	}
+
+	/**
+	 * Look up the request's cached screenshots. Every screenshot must be known
+	 * and all of them must point to the same player tag, otherwise there is no
+	 * match.
+	 *
+	 * @return The known player tag, or null if the screenshots are unknown
+	 */
+	public synchronized Match findMatch(LinkingRequest request) {
+		if (!enabled || request.getImageHashes().isEmpty()) {
+			return null;
+		}
+		lookups.incrementAndGet();
+
+		Match match = null;
+		for (String imageHash : request.getImageHashes()) {
+			// Marks the entry as recently used
+			Entry entry = entries.get(imageHash);
+			if (entry == null) {
+				return null;
+			}
+			if (match != null && !match.getPlayerTag().equals(entry.playerTag)) {
+				// Screenshots of different players, do not guess
+				return null;
+			}
+			if (match == null || entry.confidence < match.getConfidence()) {
+				match = new Match(entry.playerTag, entry.confidence);
+			}
+		}
+
+		hits.incrementAndGet();
+		return match;
+	}
+
+	/**
+	 * Remember the player tag extracted from the request's screenshots. The
+	 * index file is written in the background.
+	 */
+	public void record(LinkingRequest request, String playerTag, double confidence) {
+		if (!enabled || confidence < minConfidence || request.getImageHashes().isEmpty()) {
+			return;
+		}
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (String imageHash : request.getImageHashes()) {
+				entries.put(imageHash, new Entry(playerTag, confidence, now));
+			}
+			while (entries.size() > maxEntries) {
+				String eldest = entries.keySet().iterator().next();
+				entries.remove(eldest);
+			}
+			saveIndex();
+		}
+		records.incrementAndGet();
+	}
+
+	/**
+	 * Get index statistics
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("enabled", enabled);
+		synchronized (this) {
+			stats.put("entries", entries.size());
+		}
+		stats.put("maxEntries", maxEntries);
+		stats.put("lookups", lookups.get());
+		stats.put("hits", hits.get());
+		stats.put("records", records.get());
+		return stats;
+	}
+
+	/**
+	 * Write out pending changes
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writeIndex();
+	}
+
+	/**
+	 * Load index from file on startup
+	 */
+	private synchronized void loadIndex() {
+		if (!indexFile.exists()) {
+			return;
+		}
+
+		try {
+			String content = Files.readString(indexFile.toPath(), StandardCharsets.UTF_8);
+			JSONArray jsonArray = new JSONArray(content);
+			for (int i = 0; i < jsonArray.length(); i++) {
+				JSONObject json = jsonArray.getJSONObject(i);
+				// Entries of the former perceptual-hash index have no content hash
+				String imageHash = json.optString("imageHash", null);
+				if (imageHash == null) {
+					continue;
+				}
+				entries.put(imageHash, new Entry(json.getString("playerTag"), json.getDouble("confidence"),
+						json.getLong("updatedAt")));
+			}
+			System.out.println("Loaded " + entries.size() + " screenshot hashes from index file");
+		} catch (Exception e) {
+			System.out.println("Error loading screenshot index: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Schedule a write of the index file after a modification. Called while
+	 * holding the monitor.
+	 */
+	private void saveIndex() {
+		if (saveScheduled) {
+			return;
+		}
+		saveScheduled = true;
+		try {
+			writer.execute(this::writeIndex);
+		} catch (RejectedExecutionException e) {
+			// Closing, the final write in close() picks this change up
+		}
+	}
+
+	/**
+	 * Write a snapshot of the index, least recently used first. The snapshot
+	 * is taken under the monitor, the disk write happens outside of it.
+	 */
+	private void writeIndex() {
+		JSONArray jsonArray = new JSONArray();
+		synchronized (this) {
+			saveScheduled = false;
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				JSONObject json = new JSONObject();
+				json.put("imageHash", entry.getKey());
+				json.put("playerTag", entry.getValue().playerTag);
+				json.put("confidence", entry.getValue().confidence);
+				json.put("updatedAt", entry.getValue().updatedAt);
+				jsonArray.put(json);
+			}
+		}
+
+		try {
+			// Write a temporary file and move it over the index, a crash never leaves half a file
+			File tempFile = new File(indexFile.getPath() + ".tmp");
+			try (FileWriter writer = new FileWriter(tempFile, StandardCharsets.UTF_8)) {
+				writer.write(jsonArray.toString());
+			}
+			Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Error saving screenshot index: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
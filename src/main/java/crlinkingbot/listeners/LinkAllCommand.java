@@ -0,0 +1,368 @@
+package crlinkingbot.listeners;
+
+import crlinkingbot.Bot;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.replay.TrafficRecorder;
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.MessageUtil;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.MessageReaction;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.channel.ChannelType;
+import net.dv8tion.jda.api.entities.channel.middleman.GuildMessageChannel;
+import net.dv8tion.jda.api.entities.channel.unions.GuildChannelUnion;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Bulk variant of /link. Scans a ticket channel, or every text channel of a
+ * category, and queues the newest screenshot message of each applicant that
+ * is neither queued nor linked yet. All requests are added to the queue in one
+ * write, and the progress is shown by editing a single reply.
+ */
+public class LinkAllCommand extends ListenerAdapter {
+	// Discord returns at most 100 messages per history call
+	private static final int PAGE_SIZE = 100;
+	private static final int MAX_MESSAGES_PER_CHANNEL = 1000;
+	// The reply is edited at most this often while scanning
+	private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+	private static final String TITLE = "CR Account Link (alle)";
+
+	private final RequestQueue requestQueue;
+	private final LinkCommand linkCommand;
+	private final int defaultMessagesPerChannel;
+	// Guilds with a scan in progress, a second one would only find the same messages
+	private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Progress of one scan, shown in the reply
+	 */
+	private static class Progress {
+		final int channels;
+		String phase = "Durchsuche Kanäle...";
+		int channelsScanned;
+		int channelsFailed;
+		int messagesScanned;
+		int candidates;
+		int screened;
+		int queued;
+		int alreadyQueued;
+		int alreadyProcessed;
+		int fromStaff;
+		int olderDuplicates;
+		int noProfileScreenshot;
+		long lastReportAt;
+
+		Progress(int channels) {
+			this.channels = channels;
+		}
+
+		String describe() {
+			StringBuilder text = new StringBuilder(phase).append("\n\n");
+			text.append("**Kanäle:** ").append(channelsScanned).append("/").append(channels).append(" durchsucht");
+			if (channelsFailed > 0) {
+				text.append(" (").append(channelsFailed).append(" nicht lesbar)");
+			}
+			text.append("\n**Nachrichten:** ").append(messagesScanned).append(" geprüft");
+			if (screened > 0) {
+				text.append("\n**Screenshots:** ").append(screened).append("/").append(candidates).append(" geprüft");
+			}
+			text.append("\n**Neue Anfragen:** ").append(queued);
+			text.append("\n\n**Übersprungen:**");
+			text.append("\n- ").append(alreadyQueued).append(" bereits in der Warteschlange");
+			text.append("\n- ").append(alreadyProcessed).append(" bereits verarbeitet oder verknüpft");
+			text.append("\n- ").append(fromStaff).append(" von Teammitgliedern");
+			text.append("\n- ").append(olderDuplicates).append(" ältere Nachrichten desselben Nutzers");
+			text.append("\n- ").append(noProfileScreenshot).append(" ohne Profil-Screenshot");
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Constructor accepts RequestQueue and the /link command, whose rate limits
+	 * also apply to /linkall
+	 */
+	public LinkAllCommand(RequestQueue requestQueue, LinkCommand linkCommand) {
+		this.requestQueue = requestQueue;
+		this.linkCommand = linkCommand;
+		this.defaultMessagesPerChannel = Math.min(EnvUtil.getInt("LINKALL_MESSAGES_PER_CHANNEL", 200),
+				MAX_MESSAGES_PER_CHANNEL);
+	}
+
+	@Override
+	public void onSlashCommandInteraction(SlashCommandInteractionEvent event) {
+		if (!event.getName().equals("linkall")) {
+			return;
+		}
+
+		// Same budget as /link, checked before deferring so spam costs no thread
+		if (linkCommand.isRateLimited(event, TITLE)) {
+			return;
+		}
+
+		// Only the invoking staff member needs to see the progress
+		event.deferReply(true).queue();
+
+		new Thread(() -> {
+			Member member = event.getMember();
+			if (member == null || event.getGuild() == null) {
+				event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(TITLE,
+						"Dieser Befehl kann nur auf einem Server ausgeführt werden.")).queue();
+				return;
+			}
+			if (!LinkCommand.hasStaffRole(member)) {
+				event.getHook().editOriginalEmbeds(
+						MessageUtil.createErrorEmbed(TITLE, "Du hast keine Berechtigung, diesen Befehl auszuführen."))
+						.queue();
+				System.out.println(
+						"User " + event.getUser().getAsTag() + " attempted to use linkall command without permission");
+				return;
+			}
+
+			OptionMapping channelOption = event.getOption("channel");
+			if (channelOption == null) {
+				event.getHook().editOriginalEmbeds(
+						MessageUtil.createErrorEmbed(TITLE, "Der Parameter `channel` ist erforderlich.")).queue();
+				return;
+			}
+			GuildChannelUnion target = channelOption.getAsChannel();
+			List<GuildMessageChannel> channels = new ArrayList<>();
+			if (target.getType() == ChannelType.CATEGORY) {
+				channels.addAll(target.asCategory().getTextChannels());
+			} else if (target.getType().isMessage()) {
+				channels.add(target.asGuildMessageChannel());
+			} else {
+				event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(TITLE,
+						"Bitte wähle einen Textkanal oder eine Kategorie mit Ticket-Kanälen.")).queue();
+				return;
+			}
+			OptionMapping limitOption = event.getOption("limit");
+			int limit = limitOption != null
+					? Math.max(1, Math.min(limitOption.getAsInt(), MAX_MESSAGES_PER_CHANNEL))
+					: defaultMessagesPerChannel;
+
+			String guildId = event.getGuild().getId();
+			if (!Bot.getDiscordGateway().isGuildReady(guildId)) {
+				event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(TITLE,
+						"Der Bot ist für diesen Server noch nicht bereit. Bitte versuche es in Kürze erneut."))
+						.queue();
+				return;
+			}
+			if (!running.add(guildId)) {
+				event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(TITLE,
+						"Auf diesem Server läuft bereits ein `/linkall`. Bitte warte, bis er abgeschlossen ist."))
+						.queue();
+				return;
+			}
+
+			try {
+				System.out.println("User " + event.getUser().getAsTag() + " started linkall over " + channels.size()
+						+ " channels in guild " + guildId);
+				linkAll(event, guildId, channels, limit);
+			} catch (Exception e) {
+				System.out.println("Error in linkall command: " + e);
+				e.printStackTrace();
+				event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(TITLE,
+						"Beim Durchsuchen der Kanäle ist ein Fehler aufgetreten: " + e.getMessage())).queue();
+			} finally {
+				running.remove(guildId);
+			}
+		}, "LinkAllCommand-" + event.getUser().getId() + "-" + System.currentTimeMillis()).start();
+	}
+
+	/**
+	 * Scan the channels, screen the picked messages and queue them in one batch
+	 */
+	private void linkAll(SlashCommandInteractionEvent event, String guildId, List<GuildMessageChannel> channels,
+			int limit) {
+		Progress progress = new Progress(channels.size());
+		reportProgress(event, progress, true);
+
+		// Applicants who already wait in the queue, e.g. through /link
+		Set<String> queuedUsers = requestQueue.getAll().stream().map(LinkingRequest::getUserId)
+				.collect(Collectors.toSet());
+
+		Map<String, Message> picked = new LinkedHashMap<>();
+		Map<String, GuildMessageChannel> channelByMessage = new HashMap<>();
+		for (GuildMessageChannel channel : channels) {
+			for (Message message : scanChannel(channel, limit, queuedUsers, progress)) {
+				picked.put(message.getId(), message);
+				channelByMessage.put(message.getId(), channel);
+			}
+			progress.channelsScanned++;
+			reportProgress(event, progress, false);
+		}
+
+		// Screening downloads the screenshots, so it only runs for the picked messages
+		progress.phase = "Prüfe Screenshots...";
+		progress.candidates = picked.size();
+		reportProgress(event, progress, true);
+		ImagePrefetcher imagePrefetcher = Bot.getImagePrefetcher();
+		List<LinkingRequest> requests = new ArrayList<>();
+		for (Message message : picked.values()) {
+			User author = message.getAuthor();
+			LinkingRequest request = new LinkingRequest(message.getId(), channelByMessage.get(message.getId()).getId(),
+					guildId, author.getId(), author.getAsTag());
+			if (imagePrefetcher != null) {
+				ImagePrefetcher.Screening screening = imagePrefetcher.screen(message.getAttachments());
+				if (screening.getAttachmentIds().isEmpty() && screening.isConclusive()) {
+					progress.noProfileScreenshot++;
+					progress.screened++;
+					reportProgress(event, progress, false);
+					continue;
+				}
+				if (!screening.getAttachmentIds().isEmpty()) {
+					request.setAttachmentIds(screening.getAttachmentIds());
+					request.setImageHashes(screening.getImageHashes());
+				}
+			}
+			requests.add(request);
+			progress.screened++;
+			reportProgress(event, progress, false);
+		}
+
+		// One queue write for the whole scan; /link may have queued some in the meantime
+		List<LinkingRequest> queued = requestQueue.enqueueAll(requests);
+		progress.queued = queued.size();
+		progress.alreadyQueued += requests.size() - queued.size();
+
+		TrafficRecorder trafficRecorder = Bot.getTrafficRecorder();
+		for (LinkingRequest request : queued) {
+			Message message = picked.get(request.getMessageId());
+			message.addReaction(Emoji.fromUnicode("⏳")).queue();
+			if (trafficRecorder != null) {
+				trafficRecorder.recordLink(request, imageCount(message));
+			}
+			if (imagePrefetcher != null) {
+				imagePrefetcher.prefetch(request);
+			}
+		}
+
+		progress.phase = "Fertig.";
+		event.getHook().editOriginalEmbeds(MessageUtil.createSuccessEmbed(TITLE, progress.describe())).queue();
+		System.out.println("Linkall in guild " + guildId + " scanned " + progress.messagesScanned + " messages in "
+				+ progress.channelsScanned + " channels and enqueued " + queued.size() + " requests by command from user "
+				+ event.getUser().getAsTag());
+	}
+
+	/**
+	 * Page through a channel's history, newest first, and pick the newest
+	 * screenshot message of every applicant that still needs linking
+	 */
+	private List<Message> scanChannel(GuildMessageChannel channel, int limit, Set<String> queuedUsers,
+			Progress progress) {
+		Map<String, Message> newestByAuthor = new LinkedHashMap<>();
+		Set<String> seenAuthors = new HashSet<>();
+		Set<String> linkedAuthors = new HashSet<>();
+		MessageHistory history = channel.getHistory();
+		int scanned = 0;
+		while (scanned < limit) {
+			List<Message> page;
+			try {
+				page = history.retrievePast(Math.min(PAGE_SIZE, limit - scanned)).complete();
+			} catch (Exception e) {
+				// E.g. no permission to read the history
+				System.out.println("Warning: Could not read history of channel " + channel.getId() + " - "
+						+ e.getMessage());
+				progress.channelsFailed++;
+				break;
+			}
+			if (page.isEmpty()) {
+				break;
+			}
+			scanned += page.size();
+			progress.messagesScanned += page.size();
+
+			for (Message message : page) {
+				User author = message.getAuthor();
+				if (author.isBot() || message.getAttachments().stream().noneMatch(Message.Attachment::isImage)) {
+					continue;
+				}
+				Member member = message.getMember();
+				if (member != null && LinkCommand.hasStaffRole(member)) {
+					progress.fromStaff++;
+					continue;
+				}
+				if (isLinked(message)) {
+					linkedAuthors.add(author.getId());
+				}
+				if (!seenAuthors.add(author.getId())) {
+					// The author posted newer screenshots, which are the ones that count
+					if (isProcessed(message)) {
+						progress.alreadyProcessed++;
+					} else {
+						progress.olderDuplicates++;
+					}
+				} else if (isProcessed(message)) {
+					// Queued, linked or failed before
+					progress.alreadyProcessed++;
+				} else if (queuedUsers.contains(author.getId())
+						|| requestQueue.findByMessageId(message.getId()) != null) {
+					progress.alreadyQueued++;
+				} else {
+					newestByAuthor.put(author.getId(), message);
+				}
+			}
+		}
+
+		// A linked applicant needs nothing else, even if they posted again afterwards
+		List<Message> picked = new ArrayList<>();
+		for (Map.Entry<String, Message> entry : newestByAuthor.entrySet()) {
+			if (linkedAuthors.contains(entry.getKey())) {
+				progress.alreadyProcessed++;
+			} else {
+				picked.add(entry.getValue());
+			}
+		}
+		return picked;
+	}
+
+	/**
+	 * Whether the bot already reacted to the message, which /link and the
+	 * result processing do
+	 */
+	private static boolean isProcessed(Message message) {
+		return message.getReactions().stream().anyMatch(MessageReaction::isSelf);
+	}
+
+	/**
+	 * Whether the bot marked the message as successfully linked
+	 */
+	private static boolean isLinked(Message message) {
+		return message.getReactions().stream()
+				.anyMatch(reaction -> reaction.isSelf() && "✅".equals(reaction.getEmoji().getName()));
+	}
+
+	private static int imageCount(Message message) {
+		return (int) message.getAttachments().stream().filter(Message.Attachment::isImage).count();
+	}
+
+	/**
+	 * Edit the reply with the current progress, at most every few seconds
+	 * unless forced
+	 */
+	private void reportProgress(SlashCommandInteractionEvent event, Progress progress, boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - progress.lastReportAt < PROGRESS_INTERVAL_MILLIS) {
+			return;
+		}
+		progress.lastReportAt = now;
+		event.getHook().editOriginalEmbeds(MessageUtil.createInfoEmbed(TITLE, progress.describe())).queue();
+	}
+}
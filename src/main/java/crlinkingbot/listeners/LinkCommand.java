@@ -1,9 +1,16 @@
 package crlinkingbot.listeners;
 
+import crlinkingbot.Bot;
+import crlinkingbot.images.ImagePrefetcher;
 import crlinkingbot.queue.LinkingRequest;
 import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.replay.TrafficRecorder;
+import crlinkingbot.services.DiscordGateway;
 import crlinkingbot.util.MessageUtil;
+import crlinkingbot.util.RateLimiter;
+import crlinkingbot.util.TimingWheel;
 import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
@@ -11,6 +18,7 @@ import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -24,12 +32,16 @@ public class LinkCommand extends ListenerAdapter {
 	private static final String ROLE_ID_2 = "1108472754149281822";
 
 	private final RequestQueue requestQueue;
+	private final RateLimiter userRateLimiter;
+	private final RateLimiter guildRateLimiter;
 
 	/**
 	 * Constructor accepts RequestQueue
 	 */
 	public LinkCommand(RequestQueue requestQueue) {
 		this.requestQueue = requestQueue;
+		this.userRateLimiter = RateLimiter.perMinuteFromEnv("link-user", "LINK_RATE_LIMIT_PER_USER", 10);
+		this.guildRateLimiter = RateLimiter.perMinuteFromEnv("link-guild", "LINK_RATE_LIMIT_PER_GUILD", 60);
 	}
 
 	@Override
@@ -38,6 +50,11 @@ public class LinkCommand extends ListenerAdapter {
 			return;
 		}
 
+		// Throttle before deferring so spam costs neither a thread nor a queue write
+		if (isRateLimited(event, "CR Account Link")) {
+			return;
+		}
+
 		event.deferReply().queue();
 
 		new Thread(() -> {
@@ -51,10 +68,7 @@ public class LinkCommand extends ListenerAdapter {
 				return;
 			}
 
-			boolean hasPermission = member.getRoles().stream().map(Role::getId)
-					.anyMatch(roleId -> roleId.equals(ROLE_ID_1) || roleId.equals(ROLE_ID_2));
-
-			if (!hasPermission) {
+			if (!hasStaffRole(member)) {
 				event.getHook().editOriginalEmbeds(
 						MessageUtil.createErrorEmbed(title, "Du hast keine Berechtigung, diesen Befehl auszuführen."))
 						.queue();
@@ -92,11 +106,27 @@ public class LinkCommand extends ListenerAdapter {
 
 			String messageId = parts[parts.length - 1];
 			String channelId = parts[parts.length - 2];
+			String linkGuildId = parts[parts.length - 3];
+
+			// Skip the Discord lookup entirely if the message is already queued
+			LinkingRequest queued = requestQueue.findByMessageId(messageId);
+			if (queued != null) {
+				replyAlreadyQueued(event, title, queued);
+				return;
+			}
 
 			// Get the channel
 			MessageChannelUnion channel = null;
 			try {
-				channel = event.getJDA().getChannelById(MessageChannelUnion.class, channelId);
+				// The linked message may live on another shard than the one that received the command
+				DiscordGateway discord = Bot.getDiscordGateway();
+				if (!discord.isGuildReady(linkGuildId)) {
+					event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(title,
+							"Der Bot ist für diesen Server noch nicht bereit. Bitte versuche es in Kürze erneut."))
+							.queue();
+					return;
+				}
+				channel = discord.getMessageChannel(linkGuildId, channelId);
 			} catch (Exception e) {
 				System.out.println("Error getting channel by ID: " + channelId + " - " + e);
 				e.printStackTrace();
@@ -109,70 +139,150 @@ public class LinkCommand extends ListenerAdapter {
 				return;
 			}
 
-			final MessageChannelUnion finalChannel = channel;
-			final boolean finalping = ping;
-			channel.retrieveMessageById(messageId).queue(message -> {
-				// Check if message has image attachments
-				List<String> imageUrls = message.getAttachments().stream().filter(attachment -> attachment.isImage())
-						.map(attachment -> attachment.getUrl()).collect(Collectors.toList());
-
-				if (imageUrls.isEmpty()) {
-					event.getHook().editOriginalEmbeds(
-							MessageUtil.createErrorEmbed(title, "Die verlinkte Nachricht enthält keine Bilder."))
-							.queue();
-					return;
-				}
-
-				// Create linking request (images will be fetched dynamically when needed)
-				String targetUserId = message.getAuthor().getId();
-				String targetUserTag = message.getAuthor().getAsTag();
-				String guildId = event.getGuild() != null ? event.getGuild().getId() : "unknown";
-
-				LinkingRequest request = new LinkingRequest(messageId, channelId, guildId, targetUserId, targetUserTag);
-
-				// Enqueue the request
-				requestQueue.enqueue(request);
-				int queuePosition = requestQueue.size();
-
-				// Add processing reaction to the original message
-				message.addReaction(net.dv8tion.jda.api.entities.emoji.Emoji.fromUnicode("⏳")).queue();
-
-				// Reply with success embed
-				String successMessage = finalping ? "Hallo <@" + targetUserId + ">,\r\n"
-						+ "Wir haben deine Bewerbung erfolgreich erhalten!\r\n" + "\r\n"
-						+ "Im nächsten Schritt wirst du mit unserem **Tracking-Bot** verlinkt.\r\n"
-						+ "Dieser Bot erfasst automatisch deine **Trophäen- und Ranked-Statistiken**, damit wir deinen aktuellen Fortschritt im Spiel nachvollziehen können.\r\n"
-						+ "\r\n"
-						+ "Sobald die Verknüpfung hergestellt ist, läuft das Tracking automatisch weiter – du musst dafür nichts weiter tun.\r\n"
-						+ "Nach dem Verlinken wirst du **wieder von uns hören**, sobald es mit deiner Bewerbung weitergeht.\r\n"
-						+ "\r\n" + "Vielen Dank für dein Interesse an der Lost Family!\r\n" + "LG die CR-Vize"
-						: "Verlinkung eingereicht.";
-
-				event.getHook().editOriginal(".").queue(msg -> {
-					try {
-						Thread.sleep(50);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					msg.delete().queue();
-				});
-				finalChannel.sendMessage(successMessage).queue(msg -> {
-					if (!finalping) {
-						msg.delete().queueAfter(10, java.util.concurrent.TimeUnit.SECONDS);
-					}
-				});
-
-				System.out.println("Enqueued request for " + imageUrls.size() + " images from message " + messageId
-						+ " in channel " + channelId + " by command from user " + event.getUser().getAsTag()
-						+ " (queue position: " + queuePosition + ")");
-
-			}, error -> {
+			// Retrieve on this thread, screening the attachments downloads them
+			Message message;
+			try {
+				message = channel.retrieveMessageById(messageId).complete();
+			} catch (Exception error) {
 				event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(title,
 						"Nachricht mit der ID `" + messageId + "` konnte nicht gefunden werden.")).queue();
 				System.out.println("Error retrieving message: " + messageId + " - " + error);
 				error.printStackTrace();
+				return;
+			}
+
+			// Check if message has image attachments
+			List<String> imageUrls = message.getAttachments().stream().filter(attachment -> attachment.isImage())
+					.map(attachment -> attachment.getUrl()).collect(Collectors.toList());
+
+			if (imageUrls.isEmpty()) {
+				event.getHook().editOriginalEmbeds(
+						MessageUtil.createErrorEmbed(title, "Die verlinkte Nachricht enthält keine Bilder."))
+						.queue();
+				return;
+			}
+
+			// Create linking request (images will be fetched dynamically when needed)
+			String targetUserId = message.getAuthor().getId();
+			String targetUserTag = message.getAuthor().getAsTag();
+
+			// Results are routed to the shard of the linked message's guild, not the command's
+			LinkingRequest request = new LinkingRequest(messageId, channelId, linkGuildId, targetUserId,
+					targetUserTag);
+
+			// Drop images that cannot be profile screenshots before they cost a model call
+			ImagePrefetcher imagePrefetcher = Bot.getImagePrefetcher();
+			if (imagePrefetcher != null) {
+				ImagePrefetcher.Screening screening = imagePrefetcher.screen(message.getAttachments());
+				if (!screening.getRejected().isEmpty()) {
+					System.out.println("Dropped " + screening.getRejected().size() + " images from message " + messageId
+							+ ": " + String.join(", ", screening.getRejected()));
+				}
+				if (screening.getAttachmentIds().isEmpty() && screening.isConclusive()) {
+					event.getHook().editOriginalEmbeds(MessageUtil.createErrorEmbed(title,
+							"Die verlinkte Nachricht enthält keinen Screenshot eines Clash Royale Profils. "
+									+ "Bitte verlinke eine Nachricht mit einem Screenshot des Spielerprofils, "
+									+ "auf dem der Spieler-Tag zu sehen ist."))
+							.queue();
+					return;
+				}
+				if (!screening.getAttachmentIds().isEmpty()) {
+					request.setAttachmentIds(screening.getAttachmentIds());
+					request.setImageHashes(screening.getImageHashes());
+				}
+			}
+
+			// Enqueue the request, unless a concurrent command queued the same message
+			LinkingRequest existing = requestQueue.enqueueIfAbsent(request);
+			if (existing != null) {
+				replyAlreadyQueued(event, title, existing);
+				return;
+			}
+			int queuePosition = requestQueue.size();
+			TrafficRecorder trafficRecorder = Bot.getTrafficRecorder();
+			if (trafficRecorder != null) {
+				trafficRecorder.recordLink(request, imageUrls.size());
+			}
+
+			// Add processing reaction to the original message
+			message.addReaction(net.dv8tion.jda.api.entities.emoji.Emoji.fromUnicode("⏳")).queue();
+
+			// Download the remaining screenshots now, before a worker asks for them. Reposted
+			// screenshots may complete right away, so this runs after the reaction.
+			if (imagePrefetcher != null) {
+				imagePrefetcher.prefetch(request);
+			}
+
+			// Reply with success embed
+			String successMessage = ping ? "Hallo <@" + targetUserId + ">,\r\n"
+					+ "Wir haben deine Bewerbung erfolgreich erhalten!\r\n" + "\r\n"
+					+ "Im nächsten Schritt wirst du mit unserem **Tracking-Bot** verlinkt.\r\n"
+					+ "Dieser Bot erfasst automatisch deine **Trophäen- und Ranked-Statistiken**, damit wir deinen aktuellen Fortschritt im Spiel nachvollziehen können.\r\n"
+					+ "\r\n"
+					+ "Sobald die Verknüpfung hergestellt ist, läuft das Tracking automatisch weiter – du musst dafür nichts weiter tun.\r\n"
+					+ "Nach dem Verlinken wirst du **wieder von uns hören**, sobald es mit deiner Bewerbung weitergeht.\r\n"
+					+ "\r\n" + "Vielen Dank für dein Interesse an der Lost Family!\r\n" + "LG die CR-Vize"
+					: "Verlinkung eingereicht.";
+
+			// Delays run on the shared timing wheel instead of blocking JDA's callback threads
+			event.getHook().editOriginal(".").queue(msg -> TimingWheel.getDefault()
+					.schedule(() -> msg.delete().queue(), 50, TimeUnit.MILLISECONDS));
+			final boolean finalping = ping;
+			channel.sendMessage(successMessage).queue(msg -> {
+				if (!finalping) {
+					TimingWheel.getDefault().schedule(() -> msg.delete().queue(), 10, TimeUnit.SECONDS);
+				}
 			});
 
+			int acceptedImages = request.getAttachmentIds().isEmpty() ? imageUrls.size()
+					: request.getAttachmentIds().size();
+			System.out.println("Enqueued request for " + acceptedImages + "/" + imageUrls.size()
+					+ " images from message " + messageId + " in channel " + channelId + " by command from user "
+					+ event.getUser().getAsTag() + " (queue position: " + queuePosition + ")");
+
 		}, "LinkCommand-" + event.getUser().getId() + "-" + System.currentTimeMillis()).start();
 	}
+
+	/**
+	 * Take a token from the user and guild limiters, which /link and /linkall
+	 * share, and answer with an ephemeral error if either is exhausted
+	 *
+	 * @return true if the command was throttled and answered
+	 */
+	boolean isRateLimited(SlashCommandInteractionEvent event, String title) {
+		long retryAfterMillis = userRateLimiter.tryAcquire(event.getUser().getId());
+		if (retryAfterMillis == 0 && event.getGuild() != null) {
+			retryAfterMillis = guildRateLimiter.tryAcquire(event.getGuild().getId());
+		}
+		if (retryAfterMillis == 0) {
+			return false;
+		}
+		long seconds = Math.max(1, (retryAfterMillis + 999) / 1000);
+		event.replyEmbeds(MessageUtil.createErrorEmbed(title,
+				"Zu viele Anfragen. Bitte warte " + seconds + " Sekunden, bevor du den Befehl erneut ausführst."))
+				.setEphemeral(true).queue();
+		System.out.println("User " + event.getUser().getAsTag() + " was rate limited for the " + event.getName()
+				+ " command");
+		return true;
+	}
+
+	/**
+	 * Whether a member has one of the roles allowed to link accounts
+	 */
+	static boolean hasStaffRole(Member member) {
+		return member.getRoles().stream().map(Role::getId)
+				.anyMatch(roleId -> roleId.equals(ROLE_ID_1) || roleId.equals(ROLE_ID_2));
+	}
+
+	/**
+	 * Tell the invoking user that the message is already waiting in the queue
+	 */
+	private void replyAlreadyQueued(SlashCommandInteractionEvent event, String title, LinkingRequest queued) {
+		event.getHook().editOriginalEmbeds(MessageUtil.createInfoEmbed(title,
+				"Diese Nachricht befindet sich bereits in der Warteschlange (Anfrage für <@" + queued.getUserId()
+						+ ">). Es wurde keine neue Anfrage erstellt."))
+				.queue();
+		System.out.println("Duplicate link command for message " + queued.getMessageId() + " by "
+				+ event.getUser().getAsTag() + ", already queued as " + queued.getId());
+	}
 }
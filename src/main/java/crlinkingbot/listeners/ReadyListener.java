@@ -0,0 +1,65 @@
+package crlinkingbot.listeners;
+
+import crlinkingbot.services.DiscordGateway;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.channel.ChannelType;
+import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.Commands;
+import net.dv8tion.jda.api.interactions.commands.build.OptionData;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Logs shard readiness and registers the slash commands once the first shard
+ * is ready. Shards come online independently, commands are global and only
+ * need to be registered by one of them.
+ */
+public class ReadyListener extends ListenerAdapter {
+	private final AtomicBoolean commandsRegistered = new AtomicBoolean(false);
+	private final Runnable onShardReady;
+
+	/**
+	 * Constructor
+	 *
+	 * @param onShardReady Invoked after each shard is ready
+	 */
+	public ReadyListener(Runnable onShardReady) {
+		this.onShardReady = onShardReady;
+	}
+
+	@Override
+	public void onReady(ReadyEvent event) {
+		JDA jda = event.getJDA();
+		System.out.println("Shard " + jda.getShardInfo().getShardString() + " is ready with "
+				+ jda.getGuildCache().size() + " guilds (gateway ping " + jda.getGatewayPing() + "ms), cache: "
+				+ DiscordGateway.getCacheStats(jda));
+
+		if (commandsRegistered.compareAndSet(false, true)) {
+			registerCommands(jda);
+		}
+		onShardReady.run();
+	}
+
+	/**
+	 * Register slash commands
+	 */
+	private void registerCommands(JDA jda) {
+		jda.updateCommands().addCommands(Commands
+				.slash("link", "Link einen Clash Royale Account über eine Nachricht mit Screenshots")
+				.addOption(OptionType.STRING, "message_link", "Link zur Nachricht mit den CR Screenshots", true)
+				.addOptions(new OptionData(OptionType.STRING, "noping", "Ping abschalten").addChoice("true", "true")),
+				Commands.slash("linkall", "Link alle offenen Bewerbungen in einem Ticket-Kanal oder einer Kategorie")
+						.addOptions(
+								new OptionData(OptionType.CHANNEL, "channel",
+										"Ticket-Kanal oder Kategorie mit Ticket-Kanälen", true)
+										.setChannelTypes(ChannelType.TEXT, ChannelType.CATEGORY),
+								new OptionData(OptionType.INTEGER, "limit", "Geprüfte Nachrichten pro Kanal")
+										.setRequiredRange(1, 1000)))
+				.queue();
+
+		System.out.println("CR Linking Bot is ready! Logged in as: " + jda.getSelfUser().getAsTag());
+		System.out.println("Slash commands '/link' and '/linkall' registered successfully");
+	}
+}
@@ -0,0 +1,143 @@
+package crlinkingbot.listeners;
+
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.queue.HistoryRecord;
+import crlinkingbot.queue.HistoryStore;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.queue.RequestTracer;
+import crlinkingbot.services.MessageResolver;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+import net.dv8tion.jda.api.events.channel.ChannelDeleteEvent;
+import net.dv8tion.jda.api.events.message.MessageBulkDeleteEvent;
+import net.dv8tion.jda.api.events.message.MessageDeleteEvent;
+import net.dv8tion.jda.api.events.message.MessageUpdateEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps queued requests in line with Discord: a request whose message or
+ * ticket channel was deleted, or whose screenshots were removed by an edit,
+ * can never succeed and is dropped before a worker spends a model call on it.
+ * Edits that remove only some screenshots refresh the request instead.
+ */
+public class RequestInvalidationListener extends ListenerAdapter {
+	public static final String REASON_MESSAGE_DELETED = "messageDeleted";
+	public static final String REASON_CHANNEL_DELETED = "channelDeleted";
+	public static final String REASON_ATTACHMENTS_REMOVED = "attachmentsRemoved";
+
+	private final RequestQueue requestQueue;
+	private final HistoryStore historyStore;
+	private final MessageResolver messageResolver;
+	private final ImagePrefetcher imagePrefetcher;
+
+	/**
+	 * Constructor
+	 */
+	public RequestInvalidationListener(RequestQueue requestQueue, HistoryStore historyStore,
+			MessageResolver messageResolver, ImagePrefetcher imagePrefetcher) {
+		this.requestQueue = requestQueue;
+		this.historyStore = historyStore;
+		this.messageResolver = messageResolver;
+		this.imagePrefetcher = imagePrefetcher;
+	}
+
+	@Override
+	public void onMessageDelete(MessageDeleteEvent event) {
+		messageDeleted(event.getMessageId());
+	}
+
+	@Override
+	public void onMessageBulkDelete(MessageBulkDeleteEvent event) {
+		for (String messageId : event.getMessageIds()) {
+			messageDeleted(messageId);
+		}
+	}
+
+	@Override
+	public void onMessageUpdate(MessageUpdateEvent event) {
+		messageResolver.invalidate(event.getMessageId());
+		LinkingRequest request = requestQueue.findByMessageId(event.getMessageId());
+		if (request == null) {
+			return;
+		}
+
+		Message message = event.getMessage();
+		List<String> remaining = new ArrayList<>();
+		for (Message.Attachment attachment : message.getAttachments()) {
+			if (attachment.isImage() && request.includesAttachment(attachment.getId())) {
+				remaining.add(attachment.getId());
+			}
+		}
+
+		if (remaining.isEmpty()) {
+			if (evict(request, REASON_ATTACHMENTS_REMOVED)) {
+				message.removeReaction(Emoji.fromUnicode("⏳")).queue();
+			}
+		} else if (!request.getAttachmentIds().isEmpty() && remaining.size() < request.getAttachmentIds().size()) {
+			// The cached images no longer match the message, download the rest again
+			imagePrefetcher.cancel(request.getId());
+			request.setAttachmentIds(remaining);
+			request.setImageHashes(List.of());
+			requestQueue.update(request);
+			requestQueue.getStatistics().recordRefreshed();
+			System.out.println("Refreshing request " + request.getId() + ", " + remaining.size()
+					+ " screenshots left after edit of message " + message.getId());
+			imagePrefetcher.prefetch(request);
+		}
+	}
+
+	@Override
+	public void onChannelDelete(ChannelDeleteEvent event) {
+		channelDeleted(event.getChannel().getId());
+	}
+
+	/**
+	 * Drop every request of a deleted channel
+	 */
+	void channelDeleted(String channelId) {
+		int evicted = 0;
+		for (LinkingRequest request : requestQueue.findByChannelId(channelId)) {
+			messageResolver.invalidate(request.getMessageId());
+			if (evict(request, REASON_CHANNEL_DELETED)) {
+				evicted++;
+			}
+		}
+		if (evicted > 0) {
+			System.out.println("Dropped " + evicted + " requests of deleted channel " + channelId);
+		}
+	}
+
+	/**
+	 * Drop the request of a deleted message, if one is queued
+	 */
+	void messageDeleted(String messageId) {
+		messageResolver.invalidate(messageId);
+		LinkingRequest request = requestQueue.findByMessageId(messageId);
+		if (request != null) {
+			evict(request, REASON_MESSAGE_DELETED);
+		}
+	}
+
+	/**
+	 * Remove a request that can no longer succeed
+	 *
+	 * @return false if it already left the queue, e.g. because a worker
+	 *         completed it
+	 */
+	private boolean evict(LinkingRequest request, String reason) {
+		imagePrefetcher.cancel(request.getId());
+		if (requestQueue.removeById(request.getId()) == null) {
+			return false;
+		}
+		requestQueue.getStatistics().recordEvicted(reason);
+		requestQueue.getTracer().record(request.getId(), RequestTracer.Event.EVICTED, reason);
+		historyStore.record(HistoryRecord.of(request, HistoryRecord.OUTCOME_EVICTED, reason, null));
+		System.out.println("Dropped request " + request.getId() + " for user " + request.getUserTag() + " ("
+				+ reason + ")");
+		return true;
+	}
+}
@@ -0,0 +1,57 @@
+package crlinkingbot.queue;
+
+import org.json.JSONObject;
+
+/**
+ * A linking request that exhausted its retries, together with the reason it
+ * failed.
+ */
+public class DeadLetterEntry {
+    private final LinkingRequest request;
+    private final String errorMessage;
+    private final long failedAt;
+
+    /**
+     * Constructor
+     */
+    public DeadLetterEntry(LinkingRequest request, String errorMessage, long failedAt) {
+        this.request = request;
+        this.errorMessage = errorMessage;
+        this.failedAt = failedAt;
+    }
+
+    /**
+     * Serialize to JSON for persistence
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("request", request.toJSON());
+        json.put("errorMessage", errorMessage);
+        json.put("failedAt", failedAt);
+        return json;
+    }
+
+    /**
+     * Deserialize from JSON
+     */
+    public static DeadLetterEntry fromJSON(JSONObject json) {
+        return new DeadLetterEntry(
+            LinkingRequest.fromJSON(json.getJSONObject("request")),
+            json.getString("errorMessage"),
+            json.getLong("failedAt")
+        );
+    }
+
+    // Getters
+    public LinkingRequest getRequest() {
+        return request;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public long getFailedAt() {
+        return failedAt;
+    }
+}
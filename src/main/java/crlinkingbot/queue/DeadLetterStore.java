@@ -0,0 +1,270 @@
+package crlinkingbot.queue;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent store for requests that failed after the maximum number of
+ * retries. Entries are indexed by guild, user and error message so they can be
+ * listed and replayed without scanning the whole store.
+ */
+public class DeadLetterStore {
+	private static final String UNKNOWN_ERROR = "unknown";
+
+	// Insertion order is failure order
+	private final Map<String, DeadLetterEntry> entries;
+	private final Map<String, Set<String>> byGuild;
+	private final Map<String, Set<String>> byUser;
+	private final Map<String, Set<String>> byError;
+	private final File storeFile;
+	// Bumped by every change, lets pollers skip unchanged statistics
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * Constructor initializes the store and loads it from file
+	 */
+	public DeadLetterStore() {
+		this.entries = new LinkedHashMap<>();
+		this.byGuild = new HashMap<>();
+		this.byUser = new HashMap<>();
+		this.byError = new HashMap<>();
+		// Store file lives next to the queue file
+		String jarDir = RequestQueue.getRunningJarDirectory().getAbsolutePath();
+
+		this.storeFile = new File(jarDir, "/crlinkingbot/dead_letter_queue.json");
+		loadStore();
+	}
+
+	/**
+	 * Move a failed request into the dead-letter store and save to file
+	 */
+	public synchronized void add(LinkingRequest request, String errorMessage) {
+		String error = normalizeError(errorMessage);
+		DeadLetterEntry entry = new DeadLetterEntry(request, error, System.currentTimeMillis());
+		index(entry);
+		saveStore();
+		System.out.println("Dead-lettered request " + request.getId() + " for user " + request.getUserTag() + ": "
+				+ error);
+	}
+
+	/**
+	 * List entries matching the given filters, oldest failure first
+	 *
+	 * @param guildId Guild filter, or null for any guild
+	 * @param userId  User filter, or null for any user
+	 * @param error   Error message filter, or null for any error
+	 * @param offset  Number of matching entries to skip
+	 * @param limit   Maximum number of entries to return
+	 * @return The matching page of entries
+	 */
+	public synchronized List<DeadLetterEntry> find(String guildId, String userId, String error, int offset,
+			int limit) {
+		List<DeadLetterEntry> page = new ArrayList<>();
+		int skipped = 0;
+		for (String requestId : candidates(guildId, userId, error)) {
+			if (page.size() >= limit) {
+				break;
+			}
+			DeadLetterEntry entry = entries.get(requestId);
+			if (!matches(entry, guildId, userId, error)) {
+				continue;
+			}
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			page.add(entry);
+		}
+		return page;
+	}
+
+	/**
+	 * Count entries matching the given filters
+	 */
+	public synchronized int count(String guildId, String userId, String error) {
+		if (userId == null && error == null) {
+			return guildId == null ? entries.size() : byGuild.getOrDefault(guildId, Set.of()).size();
+		}
+		int count = 0;
+		for (String requestId : candidates(guildId, userId, error)) {
+			if (matches(entries.get(requestId), guildId, userId, error)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove up to {@code limit} entries matching the given filters and save to
+	 * file once
+	 *
+	 * @return The removed entries, oldest failure first
+	 */
+	public synchronized List<DeadLetterEntry> removeMatching(String guildId, String userId, String error,
+			int limit) {
+		List<DeadLetterEntry> removed = new ArrayList<>();
+		for (DeadLetterEntry entry : find(guildId, userId, error, 0, limit)) {
+			unindex(entry);
+			removed.add(entry);
+		}
+
+		if (!removed.isEmpty()) {
+			saveStore();
+			System.out.println("Removed " + removed.size() + " requests from dead-letter store");
+		}
+		return removed;
+	}
+
+	/**
+	 * Put removed entries back with their original error and failure time, e.g.
+	 * when a replay found their message already queued again
+	 */
+	public synchronized void restore(List<DeadLetterEntry> restored) {
+		if (restored.isEmpty()) {
+			return;
+		}
+		for (DeadLetterEntry entry : restored) {
+			index(entry);
+		}
+		saveStore();
+		System.out.println("Restored " + restored.size() + " requests to dead-letter store");
+	}
+
+	/**
+	 * Get number of dead-lettered requests
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the version of the store contents, which increases with every change
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Pick the smallest index bucket that covers the filters
+	 */
+	private Collection<String> candidates(String guildId, String userId, String error) {
+		Collection<String> smallest = entries.keySet();
+		if (guildId != null) {
+			smallest = smaller(smallest, byGuild.getOrDefault(guildId, Set.of()));
+		}
+		if (userId != null) {
+			smallest = smaller(smallest, byUser.getOrDefault(userId, Set.of()));
+		}
+		if (error != null) {
+			smallest = smaller(smallest, byError.getOrDefault(error, Set.of()));
+		}
+		// Copy so callers may modify the indexes while iterating
+		return new ArrayList<>(smallest);
+	}
+
+	private static Collection<String> smaller(Collection<String> a, Collection<String> b) {
+		return b.size() < a.size() ? b : a;
+	}
+
+	private static boolean matches(DeadLetterEntry entry, String guildId, String userId, String error) {
+		LinkingRequest request = entry.getRequest();
+		return (guildId == null || guildId.equals(request.getGuildId()))
+				&& (userId == null || userId.equals(request.getUserId()))
+				&& (error == null || error.equals(entry.getErrorMessage()));
+	}
+
+	private void index(DeadLetterEntry entry) {
+		LinkingRequest request = entry.getRequest();
+		entries.put(request.getId(), entry);
+		byGuild.computeIfAbsent(request.getGuildId(), k -> new LinkedHashSet<>()).add(request.getId());
+		byUser.computeIfAbsent(request.getUserId(), k -> new LinkedHashSet<>()).add(request.getId());
+		byError.computeIfAbsent(entry.getErrorMessage(), k -> new LinkedHashSet<>()).add(request.getId());
+		version.incrementAndGet();
+	}
+
+	private void unindex(DeadLetterEntry entry) {
+		LinkingRequest request = entry.getRequest();
+		entries.remove(request.getId());
+		removeFromIndex(byGuild, request.getGuildId(), request.getId());
+		removeFromIndex(byUser, request.getUserId(), request.getId());
+		removeFromIndex(byError, entry.getErrorMessage(), request.getId());
+		version.incrementAndGet();
+	}
+
+	private static void removeFromIndex(Map<String, Set<String>> index, String key, String requestId) {
+		Set<String> ids = index.get(key);
+		if (ids != null) {
+			ids.remove(requestId);
+			if (ids.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	private static String normalizeError(String errorMessage) {
+		if (errorMessage == null || errorMessage.isBlank()) {
+			return UNKNOWN_ERROR;
+		}
+		return errorMessage.trim();
+	}
+
+	/**
+	 * Load store from file on startup
+	 */
+	private void loadStore() {
+		if (!storeFile.exists()) {
+			System.out.println("Dead-letter file does not exist, starting with empty dead-letter store");
+			return;
+		}
+
+		try {
+			String content = Files.readString(storeFile.toPath(), StandardCharsets.UTF_8);
+			JSONArray jsonArray = new JSONArray(content);
+
+			for (int i = 0; i < jsonArray.length(); i++) {
+				index(DeadLetterEntry.fromJSON(jsonArray.getJSONObject(i)));
+			}
+
+			System.out.println("Loaded " + entries.size() + " requests from dead-letter file");
+		} catch (IOException e) {
+			System.out.println("Error loading dead-letter store from file: " + e.getMessage());
+			e.printStackTrace();
+		} catch (Exception e) {
+			System.out.println("Error parsing dead-letter file: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Save store to file after modifications
+	 */
+	private void saveStore() {
+		try {
+			JSONArray jsonArray = new JSONArray();
+			for (DeadLetterEntry entry : entries.values()) {
+				jsonArray.put(entry.toJSON());
+			}
+
+			try (FileWriter writer = new FileWriter(storeFile, StandardCharsets.UTF_8)) {
+				writer.write(jsonArray.toString(2));
+			}
+		} catch (IOException e) {
+			System.out.println("Error saving dead-letter store to file: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
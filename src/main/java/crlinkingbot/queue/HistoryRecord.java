@@ -0,0 +1,131 @@
+package crlinkingbot.queue;
+
+import org.json.JSONObject;
+
+/**
+ * A request that left the queue for good, kept in the {@link HistoryStore}
+ * for aggregate queries.
+ */
+public class HistoryRecord {
+    public static final String OUTCOME_COMPLETED = "completed";
+    public static final String OUTCOME_DEAD_LETTERED = "deadLettered";
+    public static final String OUTCOME_EVICTED = "evicted";
+    public static final String OUTCOME_DROPPED = "dropped";
+
+    private final String requestId;
+    private final String guildId;
+    private final String userId;
+    private final String outcome;
+    // Error, eviction reason or drop cause, null for completed requests
+    private final String reason;
+    private final String playerTag;
+    private final long createdAt;
+    private final long finishedAt;
+    private final int retries;
+
+    /**
+     * Constructor
+     */
+    public HistoryRecord(String requestId, String guildId, String userId, String outcome, String reason,
+                         String playerTag, long createdAt, long finishedAt, int retries) {
+        this.requestId = requestId;
+        this.guildId = guildId;
+        this.userId = userId;
+        this.outcome = outcome;
+        this.reason = reason;
+        this.playerTag = playerTag;
+        this.createdAt = createdAt;
+        this.finishedAt = finishedAt;
+        this.retries = retries;
+    }
+
+    /**
+     * Create a record for a request that just finished
+     */
+    public static HistoryRecord of(LinkingRequest request, String outcome, String reason, String playerTag) {
+        return new HistoryRecord(request.getId(), request.getGuildId(), request.getUserId(), outcome, reason,
+                playerTag, request.getTimestamp(), System.currentTimeMillis(), request.getRetryCount());
+    }
+
+    /**
+     * Serialize to JSON for persistence
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("requestId", requestId);
+        json.put("guildId", guildId);
+        json.put("userId", userId);
+        json.put("outcome", outcome);
+        if (reason != null) {
+            json.put("reason", reason);
+        }
+        if (playerTag != null) {
+            json.put("playerTag", playerTag);
+        }
+        json.put("createdAt", createdAt);
+        json.put("finishedAt", finishedAt);
+        json.put("retries", retries);
+        return json;
+    }
+
+    /**
+     * Deserialize from JSON
+     */
+    public static HistoryRecord fromJSON(JSONObject json) {
+        return new HistoryRecord(
+            json.getString("requestId"),
+            json.getString("guildId"),
+            json.getString("userId"),
+            json.getString("outcome"),
+            json.optString("reason", null),
+            json.optString("playerTag", null),
+            json.getLong("createdAt"),
+            json.getLong("finishedAt"),
+            json.optInt("retries", 0)
+        );
+    }
+
+    /**
+     * Time from the /link command until the request finished
+     */
+    public long getDurationMillis() {
+        return finishedAt - createdAt;
+    }
+
+    // Getters
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public String getGuildId() {
+        return guildId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getPlayerTag() {
+        return playerTag;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+}
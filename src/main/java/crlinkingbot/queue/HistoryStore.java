@@ -0,0 +1,613 @@
+package crlinkingbot.queue;
+
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.LatencySamples;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only history of requests that left the queue for good. Records are
+ * partitioned into one segment per UTC day. Today's segment is a plain JSON
+ * lines file; once the day is over it is gzip-compressed and sealed. Every
+ * segment has a small index with its time range and record counts per guild
+ * and outcome, kept in memory and next to sealed segments on disk. Queries
+ * skip segments outside the time range or without matching records, answer
+ * counts of fully covered segments from the index and only read the
+ * remaining segments.
+ */
+public class HistoryStore {
+	public static final String GROUP_DAY = "day";
+	public static final String GROUP_GUILD = "guild";
+	public static final String GROUP_OUTCOME = "outcome";
+	public static final String GROUP_REASON = "reason";
+
+	private static final String PLAIN_SUFFIX = ".jsonl";
+	private static final String SEALED_SUFFIX = ".jsonl.gz";
+	private static final String INDEX_SUFFIX = ".idx.json";
+
+	/**
+	 * One day of history and its index. The index is guarded by the store.
+	 */
+	private static class Segment {
+		final String day;
+		// Records not compressed yet, null once sealed
+		File plainFile;
+		// Compressed records, null until sealed
+		File sealedFile;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		int count;
+		// Record counts by guild, then by outcome
+		final Map<String, Map<String, Integer>> counts = new HashMap<>();
+
+		Segment(String day) {
+			this.day = day;
+		}
+
+		List<File> files() {
+			List<File> files = new ArrayList<>();
+			if (sealedFile != null) {
+				files.add(sealedFile);
+			}
+			if (plainFile != null) {
+				files.add(plainFile);
+			}
+			return files;
+		}
+
+		long bytes() {
+			long bytes = 0;
+			for (File file : files()) {
+				bytes += file.length();
+			}
+			return bytes;
+		}
+
+		void add(HistoryRecord record) {
+			minTime = Math.min(minTime, record.getFinishedAt());
+			maxTime = Math.max(maxTime, record.getFinishedAt());
+			count++;
+			counts.computeIfAbsent(record.getGuildId(), k -> new HashMap<>()).merge(record.getOutcome(), 1,
+					Integer::sum);
+		}
+
+		/**
+		 * Number of records matching the filters, from the index alone
+		 */
+		int count(String guildId, String outcome) {
+			int total = 0;
+			for (Map.Entry<String, Map<String, Integer>> guild : counts.entrySet()) {
+				if (guildId != null && !guildId.equals(guild.getKey())) {
+					continue;
+				}
+				for (Map.Entry<String, Integer> entry : guild.getValue().entrySet()) {
+					if (outcome == null || outcome.equals(entry.getKey())) {
+						total += entry.getValue();
+					}
+				}
+			}
+			return total;
+		}
+
+		boolean overlaps(long from, long to) {
+			return count > 0 && minTime < to && maxTime >= from;
+		}
+
+		boolean within(long from, long to) {
+			return minTime >= from && maxTime < to;
+		}
+
+		JSONObject indexJSON() {
+			JSONObject json = new JSONObject();
+			json.put("day", day);
+			json.put("count", count);
+			if (count > 0) {
+				json.put("minTime", minTime);
+				json.put("maxTime", maxTime);
+			}
+			JSONObject guilds = new JSONObject();
+			for (Map.Entry<String, Map<String, Integer>> guild : counts.entrySet()) {
+				guilds.put(guild.getKey(), new JSONObject(guild.getValue()));
+			}
+			json.put("counts", guilds);
+			return json;
+		}
+
+		void loadIndex(JSONObject json) {
+			count = json.getInt("count");
+			minTime = json.optLong("minTime", Long.MAX_VALUE);
+			maxTime = json.optLong("maxTime", Long.MIN_VALUE);
+			JSONObject guilds = json.getJSONObject("counts");
+			for (String guildId : guilds.keySet()) {
+				JSONObject outcomes = guilds.getJSONObject(guildId);
+				Map<String, Integer> byOutcome = new HashMap<>();
+				for (String outcome : outcomes.keySet()) {
+					byOutcome.put(outcome, outcomes.getInt(outcome));
+				}
+				counts.put(guildId, byOutcome);
+			}
+		}
+	}
+
+	/**
+	 * Records of the segments that could not be answered from their index
+	 */
+	private interface RecordVisitor {
+		void visit(HistoryRecord record);
+	}
+
+	private final File directory;
+	private final int retentionDays;
+	// Segments by day, oldest first
+	private final TreeMap<String, Segment> segments = new TreeMap<>();
+	private Segment active;
+	private BufferedWriter activeWriter;
+	// Compresses finished days in the background
+	private final ExecutorService sealer;
+
+	/**
+	 * Constructor loads the segment indexes from the history directory next to
+	 * the queue file
+	 */
+	public HistoryStore() {
+		this(new File(RequestQueue.getRunningJarDirectory().getAbsolutePath(), "/crlinkingbot/history"),
+				EnvUtil.getInt("HISTORY_RETENTION_DAYS", 365));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory     Directory holding the segments
+	 * @param retentionDays Days after which segments are deleted
+	 */
+	public HistoryStore(File directory, int retentionDays) {
+		this.directory = directory;
+		this.retentionDays = retentionDays;
+		this.sealer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "history-sealer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		directory.mkdirs();
+		load();
+	}
+
+	/**
+	 * Append a record to today's segment
+	 */
+	public void record(HistoryRecord record) {
+		synchronized (this) {
+			String day = dayOf(record.getFinishedAt());
+			try {
+				// Records for an earlier day, e.g. after a clock change, go to today's segment
+				if (active == null || day.compareTo(active.day) > 0) {
+					rollOver(day);
+				}
+				activeWriter.write(record.toJSON().toString());
+				activeWriter.write('\n');
+				// Queries read the file, keep it complete up to the last record
+				activeWriter.flush();
+				active.add(record);
+			} catch (IOException e) {
+				System.out.println("Error writing history record: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Count records finished in {@code [from, to)} matching the filters
+	 *
+	 * @param from    Earliest finish time in epoch millis, inclusive
+	 * @param to      Latest finish time in epoch millis, exclusive
+	 * @param guildId Guild filter, or null for any guild
+	 * @param outcome Outcome filter, or null for any outcome
+	 * @param groupBy One of the GROUP_ constants, or null for the total only
+	 * @return Total, counts per group and how many segments had to be read
+	 */
+	public JSONObject count(long from, long to, String guildId, String outcome, String groupBy) {
+		Map<String, Long> groups = new TreeMap<>();
+		long[] total = { 0 };
+		int indexed = 0;
+		int scanned = 0;
+		List<File> toScan = new ArrayList<>();
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				if (!segment.overlaps(from, to) || segment.count(guildId, outcome) == 0) {
+					continue;
+				}
+				// The reason is not indexed, grouping by it needs the records
+				if (!segment.within(from, to) || GROUP_REASON.equals(groupBy)) {
+					toScan.addAll(segment.files());
+					scanned++;
+					continue;
+				}
+				indexed++;
+				total[0] += segment.count(guildId, outcome);
+				if (GROUP_DAY.equals(groupBy)) {
+					groups.merge(segment.day, (long) segment.count(guildId, outcome), Long::sum);
+				} else if (GROUP_GUILD.equals(groupBy)) {
+					for (String guild : segment.counts.keySet()) {
+						if (guildId == null || guildId.equals(guild)) {
+							groups.merge(guild, (long) segment.count(guild, outcome), Long::sum);
+						}
+					}
+				} else if (GROUP_OUTCOME.equals(groupBy)) {
+					for (Map<String, Integer> byOutcome : segment.counts.values()) {
+						for (String key : byOutcome.keySet()) {
+							if (outcome == null || outcome.equals(key)) {
+								groups.merge(key, (long) byOutcome.get(key), Long::sum);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		scan(toScan, from, to, guildId, outcome, record -> {
+			total[0]++;
+			String key = groupKey(record, groupBy);
+			if (key != null) {
+				groups.merge(key, 1L, Long::sum);
+			}
+		});
+
+		JSONObject json = new JSONObject();
+		json.put("total", total[0]);
+		if (groupBy != null) {
+			JSONObject groupJson = new JSONObject();
+			for (Map.Entry<String, Long> group : groups.entrySet()) {
+				JSONObject entry = new JSONObject();
+				entry.put("count", group.getValue());
+				entry.put("share", total[0] > 0 ? (double) group.getValue() / total[0] : 0);
+				groupJson.put(group.getKey(), entry);
+			}
+			json.put("groups", groupJson);
+		}
+		json.put("segmentsFromIndex", indexed);
+		json.put("segmentsScanned", scanned);
+		return json;
+	}
+
+	/**
+	 * Get percentiles of the time from /link until the request finished, and
+	 * of the retries, for records finished in {@code [from, to)}
+	 */
+	public JSONObject durations(long from, long to, String guildId, String outcome) {
+		int scanned = 0;
+		List<File> toScan = new ArrayList<>();
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				if (segment.overlaps(from, to) && segment.count(guildId, outcome) > 0) {
+					toScan.addAll(segment.files());
+					scanned++;
+				}
+			}
+		}
+
+		long[][] durations = { new long[1024] };
+		long[][] retries = { new long[1024] };
+		int[] size = { 0 };
+		scan(toScan, from, to, guildId, outcome, record -> {
+			if (size[0] == durations[0].length) {
+				durations[0] = Arrays.copyOf(durations[0], size[0] * 2);
+				retries[0] = Arrays.copyOf(retries[0], size[0] * 2);
+			}
+			durations[0][size[0]] = record.getDurationMillis();
+			retries[0][size[0]] = record.getRetries();
+			size[0]++;
+		});
+
+		JSONObject json = new JSONObject();
+		json.put("durationMillis", LatencySamples.summarize(Arrays.copyOf(durations[0], size[0])));
+		json.put("retries", LatencySamples.summarize(Arrays.copyOf(retries[0], size[0])));
+		json.put("segmentsScanned", scanned);
+		return json;
+	}
+
+	/**
+	 * Get the segment indexes, oldest day first
+	 */
+	public synchronized JSONObject getStats() {
+		JSONArray list = new JSONArray();
+		long records = 0;
+		long bytes = 0;
+		for (Segment segment : segments.values()) {
+			JSONObject json = new JSONObject();
+			json.put("day", segment.day);
+			json.put("records", segment.count);
+			json.put("sealed", segment.plainFile == null);
+			json.put("bytes", segment.bytes());
+			json.put("guilds", segment.counts.size());
+			list.put(json);
+			records += segment.count;
+			bytes += segment.bytes();
+		}
+		JSONObject stats = new JSONObject();
+		stats.put("segments", list);
+		stats.put("records", records);
+		stats.put("bytes", bytes);
+		stats.put("retentionDays", retentionDays);
+		return stats;
+	}
+
+	/**
+	 * Close today's segment and finish pending compression
+	 */
+	public void close() {
+		synchronized (this) {
+			closeActiveWriter();
+		}
+		sealer.shutdown();
+		try {
+			sealer.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String groupKey(HistoryRecord record, String groupBy) {
+		if (GROUP_DAY.equals(groupBy)) {
+			return dayOf(record.getFinishedAt());
+		} else if (GROUP_GUILD.equals(groupBy)) {
+			return record.getGuildId();
+		} else if (GROUP_OUTCOME.equals(groupBy)) {
+			return record.getOutcome();
+		} else if (GROUP_REASON.equals(groupBy)) {
+			return record.getReason() != null ? record.getReason() : "none";
+		}
+		return null;
+	}
+
+	/**
+	 * Read the matching records of the given segment files
+	 */
+	private void scan(List<File> toScan, long from, long to, String guildId, String outcome,
+			RecordVisitor visitor) {
+		// Cheap text checks skip most non-matching lines before they are parsed
+		String guildNeedle = guildId != null ? "\"guildId\":\"" + guildId + "\"" : null;
+		String outcomeNeedle = outcome != null ? "\"outcome\":\"" + outcome + "\"" : null;
+		for (File file : toScan) {
+			try (BufferedReader reader = open(file)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if ((guildNeedle != null && !line.contains(guildNeedle))
+							|| (outcomeNeedle != null && !line.contains(outcomeNeedle))) {
+						continue;
+					}
+					HistoryRecord record;
+					try {
+						record = HistoryRecord.fromJSON(new JSONObject(line));
+					} catch (Exception e) {
+						// Line still being written
+						continue;
+					}
+					if (record.getFinishedAt() < from || record.getFinishedAt() >= to
+							|| (guildId != null && !guildId.equals(record.getGuildId()))
+							|| (outcome != null && !outcome.equals(record.getOutcome()))) {
+						continue;
+					}
+					visitor.visit(record);
+				}
+			} catch (IOException e) {
+				System.out.println("Error reading history segment " + file.getName() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private static BufferedReader open(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(SEALED_SUFFIX)) {
+			in = new GZIPInputStream(in, 65536);
+		}
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Start a new day: hand the finished segment to the sealer and open the
+	 * new one
+	 */
+	private void rollOver(String day) throws IOException {
+		closeActiveWriter();
+		active = null;
+		for (Segment finished : segments.values()) {
+			if (finished.plainFile != null && !finished.day.equals(day)) {
+				try {
+					sealer.execute(() -> seal(finished));
+				} catch (RejectedExecutionException e) {
+					// Closing, the segment is sealed on the next start
+				}
+			}
+		}
+		Segment segment = segments.computeIfAbsent(day, Segment::new);
+		// A day that was sealed before, e.g. after a clock change, gets a plain tail
+		// that is compressed onto the sealed part later
+		segment.plainFile = new File(directory, day + PLAIN_SUFFIX);
+		active = segment;
+		activeWriter = new BufferedWriter(new FileWriter(segment.plainFile, StandardCharsets.UTF_8, true));
+		removeExpired(day);
+	}
+
+	private void closeActiveWriter() {
+		if (activeWriter == null) {
+			return;
+		}
+		try {
+			activeWriter.close();
+		} catch (IOException e) {
+			System.out.println("Error closing history segment: " + e.getMessage());
+		}
+		activeWriter = null;
+	}
+
+	/**
+	 * Compress a finished day and write its index next to it. The steps are
+	 * ordered so {@link #load()} can tell after a crash which files hold the
+	 * records: a left-over temp file means the plain file is still needed, a
+	 * missing index means the compressed file already has everything.
+	 */
+	private void seal(Segment segment) {
+		File plain;
+		synchronized (this) {
+			plain = segment.plainFile;
+			if (plain == null || segment == active) {
+				return;
+			}
+		}
+		File sealed = new File(directory, segment.day + SEALED_SUFFIX);
+		File temp = new File(directory, segment.day + SEALED_SUFFIX + ".tmp");
+		try {
+			// Concatenated gzip members read as one stream, so an existing part is kept
+			if (sealed.exists()) {
+				Files.copy(sealed.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			try (InputStream in = new FileInputStream(plain);
+					OutputStream out = new GZIPOutputStream(new FileOutputStream(temp, true), 65536)) {
+				in.transferTo(out);
+			}
+			File index = new File(directory, segment.day + INDEX_SUFFIX);
+			Files.deleteIfExists(index.toPath());
+			// Swap the files under the lock so no query reads both
+			String indexJson;
+			synchronized (this) {
+				Files.move(temp.toPath(), sealed.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				segment.sealedFile = sealed;
+				segment.plainFile = null;
+				Files.deleteIfExists(plain.toPath());
+				indexJson = segment.indexJSON().toString();
+			}
+			Files.writeString(index.toPath(), indexJson, StandardCharsets.UTF_8);
+			System.out.println("Sealed history segment " + segment.day + " with " + segment.count + " records ("
+					+ sealed.length() + " bytes)");
+		} catch (IOException e) {
+			System.out.println("Error sealing history segment " + segment.day + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Delete segments older than the retention period
+	 */
+	private void removeExpired(String today) {
+		String oldest = LocalDate.parse(today).minusDays(retentionDays).toString();
+		while (!segments.isEmpty() && segments.firstKey().compareTo(oldest) < 0) {
+			Segment expired = segments.pollFirstEntry().getValue();
+			for (File file : expired.files()) {
+				file.delete();
+			}
+			new File(directory, expired.day + INDEX_SUFFIX).delete();
+			System.out.println("Deleted history segment " + expired.day);
+		}
+	}
+
+	/**
+	 * Load the indexes of sealed segments and rebuild those of plain ones,
+	 * finishing or rolling back seals that were interrupted by a crash
+	 */
+	private void load() {
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		TreeMap<String, Boolean> days = new TreeMap<>();
+		for (String name : names) {
+			if (name.endsWith(SEALED_SUFFIX) || name.endsWith(PLAIN_SUFFIX)) {
+				days.put(name.substring(0, name.indexOf('.')), true);
+			}
+		}
+
+		for (String day : days.keySet()) {
+			File sealed = new File(directory, day + SEALED_SUFFIX);
+			File plain = new File(directory, day + PLAIN_SUFFIX);
+			File index = new File(directory, day + INDEX_SUFFIX);
+			File temp = new File(directory, day + SEALED_SUFFIX + ".tmp");
+			try {
+				if (temp.exists()) {
+					// Sealing did not finish, the plain file still holds its records
+					Files.delete(temp.toPath());
+					Files.deleteIfExists(index.toPath());
+				} else if (sealed.exists() && plain.exists() && !index.exists()) {
+					// Sealing finished except for removing the plain file
+					Files.delete(plain.toPath());
+				}
+
+				Segment segment = new Segment(day);
+				if (sealed.exists()) {
+					segment.sealedFile = sealed;
+					if (index.exists()) {
+						segment.loadIndex(new JSONObject(Files.readString(index.toPath(), StandardCharsets.UTF_8)));
+					} else {
+						// Written before the plain records are added, the index describes the sealed part
+						rebuildIndex(segment, sealed);
+						Files.writeString(index.toPath(), segment.indexJSON().toString(), StandardCharsets.UTF_8);
+					}
+				}
+				if (plain.exists()) {
+					segment.plainFile = plain;
+					rebuildIndex(segment, plain);
+				}
+				segments.put(day, segment);
+			} catch (Exception e) {
+				System.out.println("Error loading history segment " + day + ": " + e.getMessage());
+			}
+		}
+
+		// Days that ended while the bot was down are sealed now, today's stays open
+		String today = dayOf(System.currentTimeMillis());
+		for (Segment segment : segments.values()) {
+			if (segment.plainFile != null && !segment.day.equals(today)) {
+				sealer.execute(() -> seal(segment));
+			}
+		}
+		long records = 0;
+		for (Segment segment : segments.values()) {
+			records += segment.count;
+		}
+		System.out.println("Loaded " + segments.size() + " history segments with " + records + " records");
+	}
+
+	private void rebuildIndex(Segment segment, File file) throws IOException {
+		try (BufferedReader reader = open(file)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				try {
+					segment.add(HistoryRecord.fromJSON(new JSONObject(line)));
+				} catch (Exception e) {
+					// Torn last line after a crash
+				}
+			}
+		}
+	}
+
+	private static String dayOf(long millis) {
+		return Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate().toString();
+	}
+}
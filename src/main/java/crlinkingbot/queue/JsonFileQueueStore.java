@@ -0,0 +1,255 @@
+package crlinkingbot.queue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Queue store that keeps the queue in a JSON file next to the JAR. Mutations
+ * only touch memory; a background writer rewrites the whole file afterwards.
+ * Mutations that arrive while a write is running are coalesced into the next
+ * one, so the file always holds a consistent snapshot no older than one write.
+ * Only safe for a single process.
+ */
+public class JsonFileQueueStore implements QueueStore {
+	// Mirror of the file contents in enqueue order
+	private final Map<String, LinkingRequest> requests;
+	private final Set<String> messageIds;
+	private final File queueFile;
+	// Single writer thread, file writes happen in mutation order
+	private final ExecutorService writer;
+	private boolean saveScheduled;
+
+	private final AtomicLong mutations = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong writeNanos = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Constructor initializes the store and loads it from file
+	 */
+	public JsonFileQueueStore() {
+		this.requests = new LinkedHashMap<>();
+		this.messageIds = new HashSet<>();
+		// Queue file is in the same directory as the JAR
+		String jarDir = RequestQueue.getRunningJarDirectory().getAbsolutePath();
+
+		this.queueFile = new File(jarDir, "/crlinkingbot/linking_queue.json");
+		this.writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "queue-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		loadQueue();
+	}
+
+	@Override
+	public synchronized List<LinkingRequest> loadAll() {
+		return new ArrayList<>(requests.values());
+	}
+
+	@Override
+	public synchronized int count() {
+		return requests.size();
+	}
+
+	@Override
+	public synchronized boolean add(LinkingRequest request) {
+		if (!messageIds.add(request.getMessageId())) {
+			return false;
+		}
+		requests.put(request.getId(), request);
+		saveQueue();
+		return true;
+	}
+
+	@Override
+	public synchronized List<LinkingRequest> addAll(List<LinkingRequest> newRequests) {
+		List<LinkingRequest> added = new ArrayList<>();
+		for (LinkingRequest request : newRequests) {
+			if (messageIds.add(request.getMessageId())) {
+				requests.put(request.getId(), request);
+				added.add(request);
+			}
+		}
+		if (!added.isEmpty()) {
+			saveQueue();
+		}
+		return added;
+	}
+
+	@Override
+	public synchronized void update(LinkingRequest request) {
+		if (requests.containsKey(request.getId())) {
+			requests.put(request.getId(), request);
+			saveQueue();
+		}
+	}
+
+	@Override
+	public synchronized LinkingRequest remove(String requestId) {
+		LinkingRequest removed = requests.remove(requestId);
+		if (removed != null) {
+			messageIds.remove(removed.getMessageId());
+			saveQueue();
+		}
+		return removed;
+	}
+
+	@Override
+	public synchronized void clear() {
+		requests.clear();
+		messageIds.clear();
+		saveQueue();
+	}
+
+	@Override
+	public synchronized List<LinkingRequest> claim(String owner, int limit, long leaseMillis,
+			Predicate<LinkingRequest> eligible) {
+		long now = System.currentTimeMillis();
+		List<LinkingRequest> claimed = new ArrayList<>();
+		for (LinkingRequest request : requests.values()) {
+			if (claimed.size() >= limit) {
+				break;
+			}
+			if (request.isClaimable(now) && eligible.test(request)) {
+				request.setClaim(owner, now + leaseMillis);
+				claimed.add(request);
+			}
+		}
+		if (!claimed.isEmpty()) {
+			saveQueue();
+		}
+		return claimed;
+	}
+
+	@Override
+	public boolean isShared() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		// Wait for a running write, then write whatever came after it
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writeQueue();
+	}
+
+	/**
+	 * Get write statistics. Mutations per write shows how well writes are
+	 * coalesced.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("mutations", mutations.get());
+		stats.put("writes", writes.get());
+		stats.put("writeMillis", TimeUnit.NANOSECONDS.toMillis(writeNanos.get()));
+		stats.put("bytesWritten", bytesWritten.get());
+		return stats;
+	}
+
+	/**
+	 * Load queue from file on startup
+	 */
+	private void loadQueue() {
+		if (!queueFile.exists()) {
+			System.out.println("Queue file does not exist, starting with empty queue");
+			return;
+		}
+
+		try {
+			String content = Files.readString(queueFile.toPath(), StandardCharsets.UTF_8);
+			JSONArray jsonArray = new JSONArray(content);
+
+			for (int i = 0; i < jsonArray.length(); i++) {
+				JSONObject json = jsonArray.getJSONObject(i);
+				LinkingRequest request = LinkingRequest.fromJSON(json);
+				requests.put(request.getId(), request);
+				messageIds.add(request.getMessageId());
+			}
+
+			System.out.println("Loaded " + requests.size() + " requests from queue file");
+		} catch (IOException e) {
+			System.out.println("Error loading queue from file: " + e.getMessage());
+			e.printStackTrace();
+		} catch (Exception e) {
+			System.out.println("Error parsing queue file: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Schedule a write of the queue file after a modification. Called while
+	 * holding the monitor.
+	 */
+	private void saveQueue() {
+		mutations.incrementAndGet();
+		if (saveScheduled) {
+			return;
+		}
+		saveScheduled = true;
+		try {
+			writer.execute(this::writeQueue);
+		} catch (RejectedExecutionException e) {
+			// Closing, the final write in close() picks this change up
+		}
+	}
+
+	/**
+	 * Write a snapshot of the queue to the file. The snapshot is taken under
+	 * the monitor, the disk write happens outside of it.
+	 */
+	private void writeQueue() {
+		JSONArray jsonArray = new JSONArray();
+		int count;
+		synchronized (this) {
+			saveScheduled = false;
+			for (LinkingRequest request : requests.values()) {
+				jsonArray.put(request.toJSON());
+			}
+			count = requests.size();
+		}
+
+		long start = System.nanoTime();
+		try {
+			// Write a temporary file and move it over the queue, a crash never leaves half a file
+			File tempFile = new File(queueFile.getPath() + ".tmp");
+			try (FileWriter writer = new FileWriter(tempFile, StandardCharsets.UTF_8)) {
+				writer.write(jsonArray.toString(2)); // Pretty print with indent
+			}
+			Files.move(tempFile.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			writes.incrementAndGet();
+			writeNanos.addAndGet(System.nanoTime() - start);
+			bytesWritten.addAndGet(queueFile.length());
+
+			System.out.println("Saved " + count + " requests to queue file");
+		} catch (IOException e) {
+			System.out.println("Error saving queue to file: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
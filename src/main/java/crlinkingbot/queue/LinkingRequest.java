@@ -1,13 +1,17 @@
 package crlinkingbot.queue;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
  * Represents a linking request in the queue.
  * Note: Image URLs are no longer stored - they are fetched dynamically from Discord
- * using the messageId and channelId when needed.
+ * using the messageId and channelId when needed. Once the images are downloaded,
+ * their hashes in the image cache are stored instead.
  */
 public class LinkingRequest {
     private final String id;
@@ -18,6 +22,15 @@ public class LinkingRequest {
     private final String userTag;
     private final long timestamp;
     private int retryCount;
+    // Earliest time a worker may claim the request
+    private long dueAt;
+    // Worker that currently holds a lease on the request, if any
+    private String claimedBy;
+    private long leaseUntil;
+    // Content hashes of the cached screenshots, empty until they were prefetched
+    private List<String> imageHashes = new ArrayList<>();
+    // Attachments that passed the profile screenshot filter, empty if not screened
+    private List<String> attachmentIds = new ArrayList<>();
 
     /**
      * Constructor for a new linking request
@@ -32,12 +45,13 @@ public class LinkingRequest {
         this.userTag = userTag;
         this.timestamp = System.currentTimeMillis();
         this.retryCount = 0;
+        this.dueAt = timestamp;
     }
 
     /**
-     * Constructor for loading from JSON
+     * Constructor for loading from JSON or a database row
      */
-    private LinkingRequest(String id, String messageId, String channelId, String guildId,
+    public LinkingRequest(String id, String messageId, String channelId, String guildId,
                           String userId, String userTag, 
                           long timestamp, int retryCount) {
         this.id = id;
@@ -48,6 +62,7 @@ public class LinkingRequest {
         this.userTag = userTag;
         this.timestamp = timestamp;
         this.retryCount = retryCount;
+        this.dueAt = timestamp;
     }
 
     /**
@@ -63,6 +78,17 @@ public class LinkingRequest {
         json.put("userTag", userTag);
         json.put("timestamp", timestamp);
         json.put("retryCount", retryCount);
+        json.put("dueAt", dueAt);
+        if (claimedBy != null) {
+            json.put("claimedBy", claimedBy);
+            json.put("leaseUntil", leaseUntil);
+        }
+        if (!imageHashes.isEmpty()) {
+            json.put("imageHashes", new JSONArray(imageHashes));
+        }
+        if (!attachmentIds.isEmpty()) {
+            json.put("attachmentIds", new JSONArray(attachmentIds));
+        }
         return json;
     }
 
@@ -71,7 +97,7 @@ public class LinkingRequest {
      */
     public static LinkingRequest fromJSON(JSONObject json) {
         // Handle backward compatibility - ignore imageUrls if present in old JSON
-        return new LinkingRequest(
+        LinkingRequest request = new LinkingRequest(
             json.getString("id"),
             json.getString("messageId"),
             json.getString("channelId"),
@@ -81,6 +107,65 @@ public class LinkingRequest {
             json.getLong("timestamp"),
             json.getInt("retryCount")
         );
+        request.setDueAt(json.optLong("dueAt", request.getTimestamp()));
+        if (json.has("claimedBy")) {
+            request.setClaim(json.getString("claimedBy"), json.getLong("leaseUntil"));
+        }
+        request.setImageHashes(toList(json.optJSONArray("imageHashes")));
+        request.setAttachmentIds(toList(json.optJSONArray("attachmentIds")));
+        return request;
+    }
+
+    private static List<String> toList(JSONArray array) {
+        List<String> list = new ArrayList<>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                list.add(array.getString(i));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Check whether a worker may claim the request now
+     */
+    public boolean isClaimable(long now) {
+        return dueAt <= now && (claimedBy == null || leaseUntil < now);
+    }
+
+    /**
+     * Record a worker's lease on the request
+     */
+    public void setClaim(String claimedBy, long leaseUntil) {
+        this.claimedBy = claimedBy;
+        this.leaseUntil = leaseUntil;
+    }
+
+    /**
+     * Drop the current lease, e.g. when the request is re-queued
+     */
+    public void releaseClaim() {
+        this.claimedBy = null;
+        this.leaseUntil = 0;
+    }
+
+    public void setDueAt(long dueAt) {
+        this.dueAt = dueAt;
+    }
+
+    public void setImageHashes(List<String> imageHashes) {
+        this.imageHashes = new ArrayList<>(imageHashes);
+    }
+
+    public void setAttachmentIds(List<String> attachmentIds) {
+        this.attachmentIds = new ArrayList<>(attachmentIds);
+    }
+
+    /**
+     * Check whether an attachment of the message should be processed
+     */
+    public boolean includesAttachment(String attachmentId) {
+        return attachmentIds.isEmpty() || attachmentIds.contains(attachmentId);
     }
 
     /**
@@ -90,6 +175,13 @@ public class LinkingRequest {
         this.retryCount++;
     }
 
+    /**
+     * Reset retry counter, e.g. when replaying a dead-lettered request
+     */
+    public void resetRetryCount() {
+        this.retryCount = 0;
+    }
+
     // Getters
     public String getId() {
         return id;
@@ -122,4 +214,24 @@ public class LinkingRequest {
     public int getRetryCount() {
         return retryCount;
     }
+
+    public long getDueAt() {
+        return dueAt;
+    }
+
+    public String getClaimedBy() {
+        return claimedBy;
+    }
+
+    public long getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public List<String> getImageHashes() {
+        return imageHashes;
+    }
+
+    public List<String> getAttachmentIds() {
+        return attachmentIds;
+    }
 }
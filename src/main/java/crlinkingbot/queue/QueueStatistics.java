@@ -0,0 +1,215 @@
+package crlinkingbot.queue;
+
+import crlinkingbot.util.LatencySamples;
+import crlinkingbot.util.SlidingWindowCounter;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running statistics of a {@link RequestQueue}, updated by every mutation so
+ * that reading them never touches the queue contents: depth per guild and lane
+ * (new or retry), the oldest waiting request, event rates over sliding windows
+ * and percentiles of the time requests spend in the queue.
+ */
+public class QueueStatistics {
+	public static final String LANE_NEW = "new";
+	public static final String LANE_RETRY = "retry";
+
+	// Number of recent time-in-queue samples the percentiles are taken from
+	private static final int SAMPLE_SIZE = 1024;
+	private static final int[] WINDOWS_SECONDS = { 60, 300, 3600 };
+	private static final String[] WINDOW_NAMES = { "1m", "5m", "1h" };
+
+	private static class Entry {
+		final String guildId;
+		final String lane;
+		final long timestamp;
+		final long enqueuedAt;
+		final long sequence;
+
+		Entry(LinkingRequest request, long enqueuedAt, long sequence) {
+			this.guildId = request.getGuildId();
+			this.lane = request.getRetryCount() > 0 ? LANE_RETRY : LANE_NEW;
+			this.timestamp = request.getTimestamp();
+			this.enqueuedAt = enqueuedAt;
+			this.sequence = sequence;
+		}
+	}
+
+	// Queued requests by ID
+	private final Map<String, Entry> entries = new HashMap<>();
+	// The same requests by enqueue sequence, so the oldest and newest are the ends
+	private final ConcurrentSkipListMap<Long, Entry> bySequence = new ConcurrentSkipListMap<>();
+	private final Map<String, Integer> depthByGuild = new HashMap<>();
+	private final Map<String, Integer> depthByLane = new HashMap<>();
+	private long nextSequence;
+
+	private final SlidingWindowCounter enqueued = new SlidingWindowCounter();
+	private final SlidingWindowCounter requeued = new SlidingWindowCounter();
+	private final SlidingWindowCounter completed = new SlidingWindowCounter();
+	private final SlidingWindowCounter failed = new SlidingWindowCounter();
+	// Requests dropped because their message or channel went away, by reason
+	private final Map<String, AtomicLong> evicted = new ConcurrentHashMap<>();
+	private final AtomicLong refreshed = new AtomicLong();
+
+	private final LatencySamples timeInQueue = new LatencySamples(SAMPLE_SIZE);
+
+	/**
+	 * Count a request that was added to the queue, as a retry if it was
+	 * processed before
+	 */
+	public synchronized void recordEnqueued(LinkingRequest request) {
+		track(request, System.currentTimeMillis());
+		if (request.getRetryCount() > 0) {
+			requeued.increment();
+		} else {
+			enqueued.increment();
+		}
+	}
+
+	/**
+	 * Count a request that left the queue and remember how long it waited
+	 */
+	public synchronized void recordRemoved(LinkingRequest request) {
+		Entry entry = untrack(request.getId());
+		if (entry == null) {
+			return;
+		}
+		timeInQueue.add(System.currentTimeMillis() - entry.enqueuedAt);
+	}
+
+	/**
+	 * Count a request that was processed successfully
+	 */
+	public void recordCompleted() {
+		completed.increment();
+	}
+
+	/**
+	 * Count a request that failed for good
+	 */
+	public void recordFailed() {
+		failed.increment();
+	}
+
+	/**
+	 * Count a request that was dropped because it can no longer succeed
+	 *
+	 * @param reason Why it was dropped, e.g. "messageDeleted"
+	 */
+	public void recordEvicted(String reason) {
+		evicted.computeIfAbsent(reason, k -> new AtomicLong()).incrementAndGet();
+	}
+
+	/**
+	 * Count a request whose attachments changed and are downloaded again
+	 */
+	public void recordRefreshed() {
+		refreshed.incrementAndGet();
+	}
+
+	/**
+	 * Replace the tracked contents, e.g. after the queue was reloaded from its
+	 * store. Rates and samples are kept; requests whose enqueue time is unknown
+	 * count from their creation.
+	 */
+	public synchronized void reset(Collection<LinkingRequest> requests) {
+		Map<String, Entry> previous = new HashMap<>(entries);
+		entries.clear();
+		bySequence.clear();
+		depthByGuild.clear();
+		depthByLane.clear();
+		for (LinkingRequest request : requests) {
+			Entry known = previous.get(request.getId());
+			track(request, known != null ? known.enqueuedAt : request.getTimestamp());
+		}
+	}
+
+	/**
+	 * Number of queued requests
+	 */
+	public synchronized int getDepth() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the statistics as JSON
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			json.put("depth", entries.size());
+			json.put("depthByGuild", new JSONObject(depthByGuild));
+			JSONObject lanes = new JSONObject();
+			lanes.put(LANE_NEW, depthByLane.getOrDefault(LANE_NEW, 0));
+			lanes.put(LANE_RETRY, depthByLane.getOrDefault(LANE_RETRY, 0));
+			json.put("depthByLane", lanes);
+			if (!entries.isEmpty()) {
+				Entry oldest = bySequence.firstEntry().getValue();
+				json.put("oldestRequest", oldest.timestamp);
+				json.put("oldestAgeMillis", now - oldest.enqueuedAt);
+				json.put("newestRequest", bySequence.lastEntry().getValue().timestamp);
+			}
+		}
+
+		JSONObject rates = new JSONObject();
+		rates.put("enqueued", windows(enqueued));
+		rates.put("requeued", windows(requeued));
+		rates.put("completed", windows(completed));
+		rates.put("failed", windows(failed));
+		json.put("rates", rates);
+
+		JSONObject evictions = new JSONObject();
+		long evictedTotal = 0;
+		for (Map.Entry<String, AtomicLong> entry : evicted.entrySet()) {
+			evictions.put(entry.getKey(), entry.getValue().get());
+			evictedTotal += entry.getValue().get();
+		}
+		evictions.put("total", evictedTotal);
+		json.put("evicted", evictions);
+		json.put("refreshed", refreshed.get());
+
+		json.put("timeInQueueMillis", timeInQueue.toJSON());
+		return json;
+	}
+
+	private void track(LinkingRequest request, long enqueuedAt) {
+		untrack(request.getId());
+		Entry entry = new Entry(request, enqueuedAt, nextSequence++);
+		entries.put(request.getId(), entry);
+		bySequence.put(entry.sequence, entry);
+		depthByGuild.merge(entry.guildId, 1, Integer::sum);
+		depthByLane.merge(entry.lane, 1, Integer::sum);
+	}
+
+	private Entry untrack(String requestId) {
+		Entry entry = entries.remove(requestId);
+		if (entry == null) {
+			return null;
+		}
+		bySequence.remove(entry.sequence);
+		decrement(depthByGuild, entry.guildId);
+		decrement(depthByLane, entry.lane);
+		return entry;
+	}
+
+	private static void decrement(Map<String, Integer> counts, String key) {
+		counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+	}
+
+	private static JSONObject windows(SlidingWindowCounter counter) {
+		JSONObject json = new JSONObject();
+		for (int i = 0; i < WINDOWS_SECONDS.length; i++) {
+			json.put(WINDOW_NAMES[i], counter.sum(WINDOWS_SECONDS[i]));
+		}
+		json.put("total", counter.total());
+		return json;
+	}
+}
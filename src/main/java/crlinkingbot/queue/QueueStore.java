@@ -0,0 +1,94 @@
+package crlinkingbot.queue;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Storage backend for {@link RequestQueue}. Implementations persist every
+ * mutation so the queue survives restarts, at the latest when the store is
+ * closed. Implementations must be thread-safe, the queue calls them from
+ * concurrent mutations.
+ */
+public interface QueueStore {
+
+	/**
+	 * Load all stored requests in enqueue order
+	 */
+	List<LinkingRequest> loadAll();
+
+	/**
+	 * Number of stored requests
+	 */
+	int count();
+
+	/**
+	 * Store a new request at the end of the queue
+	 *
+	 * @return false if a request for the same message is already stored
+	 */
+	boolean add(LinkingRequest request);
+
+	/**
+	 * Store several new requests at the end of the queue in one operation.
+	 * Requests for messages that are already stored are skipped.
+	 *
+	 * @return The requests that were stored
+	 */
+	List<LinkingRequest> addAll(List<LinkingRequest> requests);
+
+	/**
+	 * Persist changed fields of a stored request, such as its lease
+	 */
+	void update(LinkingRequest request);
+
+	/**
+	 * Atomically delete a request. If several callers or processes remove the
+	 * same request, exactly one of them gets it back.
+	 *
+	 * @return The deleted request, or null if it was not stored
+	 */
+	LinkingRequest remove(String requestId);
+
+	/**
+	 * Delete all requests
+	 */
+	void clear();
+
+	/**
+	 * Lease up to {@code limit} due requests that are not leased by another
+	 * worker, oldest first. Requests the filter rejects are skipped and stay
+	 * claimable.
+	 *
+	 * @param owner       Identifier of the claiming worker
+	 * @param limit       Maximum number of requests to claim
+	 * @param leaseMillis How long the claim is valid
+	 * @param eligible    Which requests may be claimed
+	 * @return The claimed requests
+	 */
+	List<LinkingRequest> claim(String owner, int limit, long leaseMillis, Predicate<LinkingRequest> eligible);
+
+	/**
+	 * Whether other processes may modify the store, so in-memory views must be
+	 * refreshed from it
+	 */
+	boolean isShared();
+
+	/**
+	 * Release resources held by the store
+	 */
+	void close();
+
+	/**
+	 * Create the backend configured by the QUEUE_STORE environment variable
+	 */
+	static QueueStore fromEnv() {
+		String type = System.getenv("QUEUE_STORE");
+		if (type != null && (type.equalsIgnoreCase("h2") || type.equalsIgnoreCase("sql"))) {
+			return new SqlQueueStore();
+		}
+		if (type != null && !type.isEmpty() && !type.equalsIgnoreCase("json")) {
+			System.out.println("Unknown QUEUE_STORE value: " + type + ", using json");
+		}
+		return new JsonFileQueueStore();
+	}
+}
@@ -1,172 +1,565 @@
 package crlinkingbot.queue;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import crlinkingbot.Bot;
+import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 /**
- * Thread-safe persistent queue for linking requests.
+ * Thread-safe persistent queue for linking requests. Persistence is delegated
+ * to a {@link QueueStore}; if the store is shared with other processes, the
+ * in-memory view is refreshed from it before it is read.
+ * <p>
+ * Mutations of different requests run concurrently. They are striped by
+ * Discord message, the unit of duplicate suppression, so an enqueue and a
+ * removal for the same message never interleave. Appends additionally pass a
+ * short sequencing lock, which keeps the in-memory order identical to the
+ * store's order and dequeueing fair. Operations that rebuild the whole view
+ * (refresh, clear) exclude all others.
  */
 public class RequestQueue {
+	// System property that moves all state files to another directory
+	public static final String DATA_DIR_PROPERTY = "crlinkingbot.dataDir";
+	private static final int STRIPES = 64;
+
+	private final QueueStore store;
 	private final ConcurrentLinkedQueue<LinkingRequest> queue;
-	private final File queueFile;
+	// Indexes over the queue contents, maintained by every mutation
+	private final Map<String, LinkingRequest> requestsById;
+	private final Map<String, LinkingRequest> requestsByMessageId;
+	private final Map<String, Set<LinkingRequest>> requestsByChannelId;
+	// Bumped by every mutation, lets pollers skip unchanged snapshots
+	private final AtomicLong version = new AtomicLong();
+	private final QueueStatistics statistics = new QueueStatistics();
+	private final RequestTracer tracer = new RequestTracer();
+
+	// Shared by single-request mutations, exclusive for rebuilding the view
+	private final ReentrantReadWriteLock viewLock = new ReentrantReadWriteLock();
+	private final ReentrantLock[] stripes;
+	// Orders appends to the store and the in-memory queue the same way
+	private final ReentrantLock appendLock = new ReentrantLock();
 
 	/**
-	 * Constructor initializes queue and loads from file
+	 * Constructor initializes queue with the configured store and loads it
 	 */
 	public RequestQueue() {
+		this(QueueStore.fromEnv());
+	}
+
+	/**
+	 * Constructor initializes queue with the given store and loads it
+	 */
+	public RequestQueue(QueueStore store) {
+		this.store = store;
 		this.queue = new ConcurrentLinkedQueue<>();
-		// Queue file is in the same directory as the JAR
-		String jarDir = getRunningJarDirectory().getAbsolutePath();
+		this.requestsById = new ConcurrentHashMap<>();
+		this.requestsByMessageId = new ConcurrentHashMap<>();
+		this.requestsByChannelId = new ConcurrentHashMap<>();
+		this.stripes = new ReentrantLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		refresh();
+		System.out.println("Loaded " + queue.size() + " requests into queue");
+	}
+
+	/**
+	 * Add request to queue and save it to the store
+	 */
+	public void enqueue(LinkingRequest request) {
+		boolean added;
+		lockMessage(request.getMessageId());
+		try {
+			// A newly queued request is never leased, even when it is re-queued
+			request.releaseClaim();
+			added = append(request);
+		} finally {
+			unlockMessage(request.getMessageId());
+		}
 
-		this.queueFile = new File(jarDir, "/crlinkingbot/linking_queue.json");
-		loadQueue();
+		if (added) {
+			System.out.println("Enqueued request " + request.getId() + " for user " + request.getUserTag());
+		} else {
+			System.out.println("Skipped request " + request.getId() + ", message " + request.getMessageId()
+					+ " is already queued");
+		}
 	}
 
 	/**
-	 * Add request to queue and save to file
+	 * Add request to queue unless a request for the same message is already
+	 * queued
+	 *
+	 * @param request The request to add
+	 * @return The already queued request for the same message, or null if the
+	 *         request was enqueued
 	 */
-	public synchronized void enqueue(LinkingRequest request) {
-		queue.offer(request);
-		saveQueue();
-		System.out.println("Enqueued request " + request.getId() + " for user " + request.getUserTag());
+	public LinkingRequest enqueueIfAbsent(LinkingRequest request) {
+		LinkingRequest existing;
+		lockMessage(request.getMessageId());
+		try {
+			existing = requestsByMessageId.get(request.getMessageId());
+			if (existing == null) {
+				request.releaseClaim();
+				if (append(request)) {
+					System.out.println("Enqueued request " + request.getId() + " for user " + request.getUserTag());
+					return null;
+				}
+			}
+		} finally {
+			unlockMessage(request.getMessageId());
+		}
+
+		if (existing == null) {
+			// Another process queued the same message
+			refresh();
+			existing = requestsByMessageId.getOrDefault(request.getMessageId(), request);
+		}
+		System.out.println("Skipped duplicate request for message " + request.getMessageId() + ", already queued as "
+				+ existing.getId());
+		return existing;
 	}
 
 	/**
-	 * Remove and return next request, save to file
+	 * Add several requests to the queue and save them to the store in one
+	 * operation. Requests for messages that are already queued are skipped.
+	 *
+	 * @return The requests that were actually enqueued
 	 */
-	public synchronized LinkingRequest dequeue() {
-		LinkingRequest request = queue.poll();
-		if (request != null) {
-			saveQueue();
-			System.out.println("Dequeued request " + request.getId() + " for user " + request.getUserTag());
+	public List<LinkingRequest> enqueueAll(List<LinkingRequest> requests) {
+		// Lock the stripes of all messages in index order, so batches cannot deadlock
+		TreeSet<Integer> locked = new TreeSet<>();
+		for (LinkingRequest request : requests) {
+			locked.add(stripeOf(request.getMessageId()));
 		}
-		return request;
+		List<LinkingRequest> added;
+		viewLock.readLock().lock();
+		try {
+			for (int stripe : locked) {
+				stripes[stripe].lock();
+			}
+			try {
+				List<LinkingRequest> candidates = new ArrayList<>();
+				for (LinkingRequest request : requests) {
+					if (!requestsByMessageId.containsKey(request.getMessageId())) {
+						request.releaseClaim();
+						candidates.add(request);
+					}
+				}
+
+				if (candidates.isEmpty()) {
+					return candidates;
+				}
+				appendLock.lock();
+				try {
+					added = store.addAll(candidates);
+					for (LinkingRequest request : added) {
+						offer(request);
+					}
+				} finally {
+					appendLock.unlock();
+				}
+				for (LinkingRequest request : added) {
+					statistics.recordEnqueued(request);
+					traceEnqueued(request);
+				}
+			} finally {
+				for (int stripe : locked.descendingSet()) {
+					stripes[stripe].unlock();
+				}
+			}
+		} finally {
+			viewLock.readLock().unlock();
+		}
+
+		if (!added.isEmpty()) {
+			System.out.println("Enqueued " + added.size() + " requests (" + (requests.size() - added.size())
+					+ " duplicates skipped)");
+		}
+		return added;
+	}
+
+	/**
+	 * Remove and return next request
+	 */
+	public LinkingRequest dequeue() {
+		refreshIfShared();
+		LinkingRequest request;
+		while ((request = queue.peek()) != null) {
+			lockMessage(request.getMessageId());
+			try {
+				unindex(request);
+				// Another thread or process may have taken it in the meantime
+				if (store.remove(request.getId()) != null) {
+					System.out.println("Dequeued request " + request.getId() + " for user " + request.getUserTag());
+					return request;
+				}
+			} finally {
+				unlockMessage(request.getMessageId());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lease up to {@code limit} due requests to a worker, oldest first. Leased
+	 * requests are not handed to other workers until the lease expires.
+	 *
+	 * @param owner       Identifier of the claiming worker
+	 * @param limit       Maximum number of requests to claim
+	 * @param leaseMillis How long the claim is valid
+	 * @return The claimed requests
+	 */
+	public List<LinkingRequest> claim(String owner, int limit, long leaseMillis) {
+		return claim(owner, limit, leaseMillis, request -> true);
+	}
+
+	/**
+	 * Lease up to {@code limit} due requests the filter accepts, oldest first.
+	 * Rejected requests stay claimable for the next caller.
+	 *
+	 * @param owner       Identifier of the claiming worker
+	 * @param limit       Maximum number of requests to claim
+	 * @param leaseMillis How long the claim is valid
+	 * @param eligible    Which requests may be claimed now
+	 * @return The claimed requests
+	 */
+	public List<LinkingRequest> claim(String owner, int limit, long leaseMillis, Predicate<LinkingRequest> eligible) {
+		List<LinkingRequest> result = new ArrayList<>();
+		boolean stale = false;
+		viewLock.readLock().lock();
+		try {
+			// The store hands every due request to one claimer only
+			List<LinkingRequest> claimed = store.claim(owner, limit, leaseMillis, eligible);
+			for (LinkingRequest request : claimed) {
+				LinkingRequest local = requestsById.get(request.getId());
+				if (local == null) {
+					stale = true;
+					result.add(request);
+					continue;
+				}
+				// Mirror the lease onto the in-memory copy
+				local.setClaim(request.getClaimedBy(), request.getLeaseUntil());
+				result.add(local);
+			}
+			for (LinkingRequest request : result) {
+				tracer.record(request.getId(), RequestTracer.Event.CLAIMED, owner);
+			}
+			if (!claimed.isEmpty()) {
+				version.incrementAndGet();
+			}
+		} finally {
+			viewLock.readLock().unlock();
+		}
+		if (stale) {
+			refresh();
+		}
+
+		if (!result.isEmpty()) {
+			System.out.println("Worker " + owner + " claimed " + result.size() + " requests");
+		}
+		return result;
+	}
+
+	/**
+	 * Persist changed fields of a queued request, such as its image hashes
+	 */
+	public void update(LinkingRequest request) {
+		lockMessage(request.getMessageId());
+		try {
+			store.update(request);
+			version.incrementAndGet();
+		} finally {
+			unlockMessage(request.getMessageId());
+		}
+	}
+
+	/**
+	 * Get the running statistics of this queue
+	 */
+	public QueueStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Get the lifecycle traces of this queue's requests
+	 */
+	public RequestTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Get the current statistics as JSON. A shared store is reloaded first, so
+	 * the depth includes requests queued by other processes.
+	 */
+	public JSONObject getStatisticsJSON() {
+		refreshIfShared();
+		return statistics.toJSON();
+	}
+
+	/**
+	 * Get the version of the queue contents. It increases with every change, so
+	 * an unchanged version means an unchanged queue.
+	 *
+	 * @return The current version, or -1 if the store is shared with other
+	 *         processes whose changes cannot be tracked
+	 */
+	public long getVersion() {
+		return store.isShared() ? -1 : version.get();
 	}
 
 	/**
 	 * View next request without removing
 	 */
 	public LinkingRequest peek() {
+		refreshIfShared();
 		return queue.peek();
 	}
 
+	/**
+	 * Find a queued request by its ID
+	 */
+	public LinkingRequest findById(String requestId) {
+		return requestsById.get(requestId);
+	}
+
+	/**
+	 * Find the queued request for a Discord message, if any
+	 */
+	public LinkingRequest findByMessageId(String messageId) {
+		return requestsByMessageId.get(messageId);
+	}
+
+	/**
+	 * Find the queued requests for messages in a Discord channel
+	 */
+	public List<LinkingRequest> findByChannelId(String channelId) {
+		Set<LinkingRequest> requests = requestsByChannelId.get(channelId);
+		return requests != null ? new ArrayList<>(requests) : List.of();
+	}
+
 	/**
 	 * Check if queue is empty
 	 */
 	public boolean isEmpty() {
-		return queue.isEmpty();
+		return size() == 0;
 	}
 
 	/**
 	 * Get queue size
 	 */
 	public int size() {
-		return queue.size();
+		return store.isShared() ? store.count() : queue.size();
 	}
 
 	/**
 	 * Get all requests for viewing
 	 */
 	public List<LinkingRequest> getAll() {
+		refreshIfShared();
 		return new ArrayList<>(queue);
 	}
 
 	/**
-	 * Remove a specific request by ID
-	 * 
+	 * Remove a specific request by ID. If several threads or processes remove
+	 * the same request, only one of them gets it back.
+	 *
 	 * @param requestId The ID of the request to remove
 	 * @return The removed request, or null if not found
 	 */
-	public synchronized LinkingRequest removeById(String requestId) {
-		LinkingRequest found = null;
-		for (LinkingRequest request : queue) {
-			if (request.getId().equals(requestId)) {
-				found = request;
-				break;
+	public LinkingRequest removeById(String requestId) {
+		LinkingRequest local = requestsById.get(requestId);
+		if (local != null) {
+			String messageId = local.getMessageId();
+			lockMessage(messageId);
+			try {
+				// Enqueues of the message hold the same stripe, the index cannot change under us now
+				LinkingRequest current = requestsById.get(requestId);
+				if (current != null) {
+					return removeIndexed(current);
+				}
+			} finally {
+				unlockMessage(messageId);
 			}
 		}
 
-		if (found != null) {
-			queue.remove(found);
-			saveQueue();
-			System.out.println("Removed request " + requestId + " from queue");
+		// Not indexed here. The write lock waits for enqueues in flight, so the request
+		// cannot be indexed right after the store lost it.
+		viewLock.writeLock().lock();
+		try {
+			LinkingRequest current = requestsById.get(requestId);
+			if (current != null) {
+				return removeIndexed(current);
+			}
+			LinkingRequest removed = store.remove(requestId);
+			if (removed != null) {
+				System.out.println("Removed request " + requestId + " from queue");
+			}
+			return removed;
+		} finally {
+			viewLock.writeLock().unlock();
 		}
-
-		return found;
 	}
 
 	/**
 	 * Clear all requests
 	 */
-	public synchronized void clear() {
-		queue.clear();
-		saveQueue();
+	public void clear() {
+		viewLock.writeLock().lock();
+		try {
+			store.clear();
+			queue.clear();
+			requestsById.clear();
+			requestsByMessageId.clear();
+			requestsByChannelId.clear();
+			statistics.reset(List.of());
+			version.incrementAndGet();
+		} finally {
+			viewLock.writeLock().unlock();
+		}
 		System.out.println("Cleared all requests from queue");
 	}
 
 	/**
-	 * Load queue from file on startup
+	 * Release the store and write out pending traces
 	 */
-	private void loadQueue() {
-		if (!queueFile.exists()) {
-			System.out.println("Queue file does not exist, starting with empty queue");
-			return;
-		}
+	public void close() {
+		store.close();
+		tracer.close();
+	}
 
+	/**
+	 * Save a new request and append it to the queue, in the same order in both.
+	 * The caller holds the message's stripe.
+	 *
+	 * @return false if the store already has a request for the message
+	 */
+	private boolean append(LinkingRequest request) {
+		appendLock.lock();
 		try {
-			String content = Files.readString(queueFile.toPath(), StandardCharsets.UTF_8);
-			JSONArray jsonArray = new JSONArray(content);
-
-			for (int i = 0; i < jsonArray.length(); i++) {
-				JSONObject json = jsonArray.getJSONObject(i);
-				LinkingRequest request = LinkingRequest.fromJSON(json);
-				queue.offer(request);
+			if (!store.add(request)) {
+				return false;
 			}
+			offer(request);
+		} finally {
+			appendLock.unlock();
+		}
+		statistics.recordEnqueued(request);
+		traceEnqueued(request);
+		return true;
+	}
 
-			System.out.println("Loaded " + queue.size() + " requests from queue file");
-		} catch (IOException e) {
-			System.out.println("Error loading queue from file: " + e.getMessage());
-			e.printStackTrace();
-		} catch (Exception e) {
-			System.out.println("Error parsing queue file: " + e.getMessage());
-			e.printStackTrace();
+	/**
+	 * Remove an indexed request from the store, then from the indexes. The
+	 * caller holds the message's stripe or the view's write lock.
+	 *
+	 * @return The request, or null if another process removed it first
+	 */
+	private LinkingRequest removeIndexed(LinkingRequest request) {
+		if (store.remove(request.getId()) == null) {
+			// The stale entry goes with the next refresh
+			return null;
 		}
+		unindex(request);
+		System.out.println("Removed request " + request.getId() + " from queue");
+		return request;
 	}
 
 	/**
-	 * Save queue to file after modifications
+	 * Append to the queue and index the request
 	 */
-	private void saveQueue() {
-		try {
-			JSONArray jsonArray = new JSONArray();
-			for (LinkingRequest request : queue) {
-				jsonArray.put(request.toJSON());
-			}
+	private void offer(LinkingRequest request) {
+		queue.offer(request);
+		requestsById.put(request.getId(), request);
+		requestsByMessageId.put(request.getMessageId(), request);
+		requestsByChannelId.computeIfAbsent(request.getChannelId(), k -> ConcurrentHashMap.newKeySet()).add(request);
+		version.incrementAndGet();
+	}
 
-			try (FileWriter writer = new FileWriter(queueFile, StandardCharsets.UTF_8)) {
-				writer.write(jsonArray.toString(2)); // Pretty print with indent
-			}
+	/**
+	 * Drop a request that left the queue from the indexes
+	 */
+	private void unindex(LinkingRequest request) {
+		queue.remove(request);
+		requestsById.remove(request.getId());
+		requestsByMessageId.remove(request.getMessageId(), request);
+		requestsByChannelId.computeIfPresent(request.getChannelId(), (k, requests) -> {
+			requests.remove(request);
+			return requests.isEmpty() ? null : requests;
+		});
+		statistics.recordRemoved(request);
+		version.incrementAndGet();
+	}
 
-			System.out.println("Saved " + queue.size() + " requests to queue file");
-		} catch (IOException e) {
-			System.out.println("Error saving queue to file: " + e.getMessage());
-			e.printStackTrace();
+	private void traceEnqueued(LinkingRequest request) {
+		if (request.getRetryCount() > 0) {
+			tracer.record(request.getId(), RequestTracer.Event.REQUEUED, "retry " + request.getRetryCount());
+		} else {
+			tracer.record(request.getId(), RequestTracer.Event.ENQUEUED);
+		}
+	}
+
+	private static int stripeOf(String key) {
+		return Math.floorMod(key.hashCode(), STRIPES);
+	}
+
+	/**
+	 * Enter a single-request mutation: shared view lock, then the stripe
+	 */
+	private void lockMessage(String key) {
+		viewLock.readLock().lock();
+		stripes[stripeOf(key)].lock();
+	}
+
+	private void unlockMessage(String key) {
+		stripes[stripeOf(key)].unlock();
+		viewLock.readLock().unlock();
+	}
+
+	private void refreshIfShared() {
+		if (store.isShared()) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Rebuild the in-memory view from the store
+	 */
+	private void refresh() {
+		viewLock.writeLock().lock();
+		try {
+			List<LinkingRequest> stored = store.loadAll();
+			queue.clear();
+			requestsById.clear();
+			requestsByMessageId.clear();
+			requestsByChannelId.clear();
+			for (LinkingRequest request : stored) {
+				offer(request);
+			}
+			statistics.reset(stored);
+			version.incrementAndGet();
+		} finally {
+			viewLock.writeLock().unlock();
 		}
 	}
 
 	public static File getRunningJarDirectory() {
+		// Replays run against a scratch directory instead of the live state
+		String dataDir = System.getProperty(DATA_DIR_PROPERTY);
+		if (dataDir != null && !dataDir.isEmpty()) {
+			return new File(dataDir);
+		}
 		try {
 			// Der Ort, von dem die Klasse oder JAR geladen wurde
 			File jarFile = new File(Bot.class.getProtectionDomain().getCodeSource().getLocation().toURI());
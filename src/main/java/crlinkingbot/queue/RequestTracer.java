@@ -0,0 +1,434 @@
+package crlinkingbot.queue;
+
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.LatencySamples;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records what happened to each request and when: enqueued, handed to a
+ * worker, result received, lostcrmanager call, Discord notifications and the
+ * final outcome. The most recent traces are kept in memory; with TRACE_SPILL
+ * finished and evicted traces are also appended to a JSON lines file next to
+ * the queue file, so older ones can still be looked up. Finished traces feed
+ * percentiles of the time spent in each stage.
+ */
+public class RequestTracer {
+	// Events kept per trace, later ones are counted but dropped
+	private static final int MAX_EVENTS = 64;
+	private static final int MAX_DETAIL_LENGTH = 200;
+	private static final int SAMPLE_SIZE = 1024;
+
+	/**
+	 * Points in the life of a request
+	 */
+	public enum Event {
+		ENQUEUED("enqueued", false),
+		REQUEUED("requeued", false),
+		LISTED("listed", false),
+		CLAIMED("claimed", false),
+		RESULT_RECEIVED("resultReceived", false),
+		LINK_STARTED("linkStarted", false),
+		LINK_FINISHED("linkFinished", false),
+		DISCORD_NOTIFIED("discordNotified", false),
+		COMPLETED("completed", true),
+		DEAD_LETTERED("deadLettered", true),
+		EVICTED("evicted", true),
+		DROPPED("dropped", true);
+
+		private final String name;
+		private final boolean terminal;
+
+		Event(String name, boolean terminal) {
+			this.name = name;
+			this.terminal = terminal;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Whether the request is gone for good after this event
+		 */
+		public boolean isTerminal() {
+			return terminal;
+		}
+	}
+
+	private static class Trace {
+		final String requestId;
+		final long startedAt;
+		final List<Event> events = new ArrayList<>();
+		final List<Long> offsets = new ArrayList<>();
+		final List<String> details = new ArrayList<>();
+		int droppedEvents;
+		boolean finished;
+
+		Trace(String requestId, long startedAt) {
+			this.requestId = requestId;
+			this.startedAt = startedAt;
+		}
+
+		Event last() {
+			return events.isEmpty() ? null : events.get(events.size() - 1);
+		}
+	}
+
+	private final int maxTraces;
+	// Insertion order is start order, so the eldest trace is dropped first
+	private final LinkedHashMap<String, Trace> traces = new LinkedHashMap<>();
+	private final File spillFile;
+	private final long spillMaxBytes;
+	// Single writer thread, lines are appended in the order traces finished
+	private final ExecutorService spillWriter;
+
+	private final Map<String, LatencySamples> stages = new LinkedHashMap<>();
+	private final Map<Event, AtomicLong> outcomes = new LinkedHashMap<>();
+	private final AtomicLong requeued = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * Constructor reads the ring size and spill settings from the environment
+	 */
+	public RequestTracer() {
+		this(EnvUtil.getInt("TRACE_MAX_REQUESTS", 2000),
+				EnvUtil.getBoolean("TRACE_SPILL", false)
+						? new File(RequestQueue.getRunningJarDirectory().getAbsolutePath(),
+								"/crlinkingbot/request_traces.jsonl")
+						: null,
+				EnvUtil.getInt("TRACE_SPILL_MAX_MB", 16) * 1024L * 1024L);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxTraces     Number of traces kept in memory
+	 * @param spillFile     File finished traces are appended to, or null to
+	 *                      keep them in memory only
+	 * @param spillMaxBytes Size at which the spill file is rotated
+	 */
+	public RequestTracer(int maxTraces, File spillFile, long spillMaxBytes) {
+		this.maxTraces = Math.max(1, maxTraces);
+		this.spillFile = spillFile;
+		this.spillMaxBytes = spillMaxBytes;
+		if (spillFile != null) {
+			spillFile.getParentFile().mkdirs();
+			this.spillWriter = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "trace-spill");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			this.spillWriter = null;
+		}
+		for (String stage : new String[] { "queueWait", "processing", "link", "discord", "total" }) {
+			stages.put(stage, new LatencySamples(SAMPLE_SIZE));
+		}
+		for (Event event : Event.values()) {
+			if (event.isTerminal()) {
+				outcomes.put(event, new AtomicLong());
+			}
+		}
+	}
+
+	/**
+	 * Record an event without details
+	 */
+	public void record(String requestId, Event event) {
+		record(requestId, event, null);
+	}
+
+	/**
+	 * Record an event. Repeats of the previous event with the same detail,
+	 * e.g. the same request listed on every poll, are only recorded once.
+	 *
+	 * @param requestId The request's ID
+	 * @param event     What happened
+	 * @param detail    Short context such as the claiming worker, may be null
+	 */
+	public void record(String requestId, Event event, String detail) {
+		long now = System.currentTimeMillis();
+		String line = null;
+		synchronized (this) {
+			Trace trace = traces.get(requestId);
+			if (trace == null || (trace.finished && !event.isTerminal())) {
+				// Unknown requests, e.g. loaded from the store at startup, get a partial trace.
+				// A request that comes back after finishing, e.g. replayed from the dead-letter
+				// store, starts a new one.
+				trace = new Trace(requestId, now);
+				traces.remove(requestId);
+				traces.put(requestId, trace);
+				evictEldest();
+			}
+			if (trace.last() == event && Objects.equals(trace.details.get(trace.details.size() - 1), detail)) {
+				return;
+			}
+			if (trace.events.size() >= MAX_EVENTS && !event.isTerminal()) {
+				trace.droppedEvents++;
+				return;
+			}
+			trace.events.add(event);
+			trace.offsets.add(now - trace.startedAt);
+			trace.details.add(detail != null && detail.length() > MAX_DETAIL_LENGTH
+					? detail.substring(0, MAX_DETAIL_LENGTH)
+					: detail);
+
+			if (event == Event.REQUEUED) {
+				requeued.incrementAndGet();
+			}
+			if (event.isTerminal() && !trace.finished) {
+				trace.finished = true;
+				outcomes.get(event).incrementAndGet();
+				for (Map.Entry<String, Long> stage : stagesOf(trace).entrySet()) {
+					stages.get(stage.getKey()).add(stage.getValue());
+				}
+				line = spillFile != null ? toJSON(trace).toString() : null;
+			}
+		}
+		if (line != null) {
+			spill(line);
+		}
+	}
+
+	/**
+	 * Get a request's trace from memory, or from the spill file if it was
+	 * dropped from memory
+	 *
+	 * @return The trace, or null if the request is unknown
+	 */
+	public JSONObject getTrace(String requestId) {
+		synchronized (this) {
+			Trace trace = traces.get(requestId);
+			if (trace != null) {
+				return toJSON(trace);
+			}
+		}
+		if (spillFile == null) {
+			return null;
+		}
+		// The newest line wins, a request may have been spilled before it finished
+		JSONObject found = findSpilled(spillFile, requestId);
+		if (found == null) {
+			found = findSpilled(rotatedFile(), requestId);
+		}
+		return found;
+	}
+
+	/**
+	 * Get the stage latency percentiles of finished requests and outcome
+	 * counts
+	 */
+	public JSONObject getStats() {
+		JSONObject json = new JSONObject();
+		synchronized (this) {
+			json.put("tracked", traces.size());
+		}
+		json.put("maxTracked", maxTraces);
+		JSONObject stageJson = new JSONObject();
+		for (Map.Entry<String, LatencySamples> stage : stages.entrySet()) {
+			stageJson.put(stage.getKey() + "Millis", stage.getValue().toJSON());
+		}
+		json.put("stages", stageJson);
+		JSONObject outcomeJson = new JSONObject();
+		for (Map.Entry<Event, AtomicLong> outcome : outcomes.entrySet()) {
+			outcomeJson.put(outcome.getKey().getName(), outcome.getValue().get());
+		}
+		json.put("outcomes", outcomeJson);
+		json.put("requeued", requeued.get());
+		json.put("spill", spillFile != null);
+		json.put("spilled", spilled.get());
+		return json;
+	}
+
+	/**
+	 * Write out pending spill lines
+	 */
+	public void close() {
+		if (spillWriter == null) {
+			return;
+		}
+		spillWriter.shutdown();
+		try {
+			spillWriter.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Add up where a trace's time went. Waiting, processing, link and
+	 * notification time are summed over all attempts.
+	 */
+	private static Map<String, Long> stagesOf(Trace trace) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		long enqueuedAt = -1;
+		long servedAt = -1;
+		long resultAt = -1;
+		long linkStartedAt = -1;
+		long linkFinishedAt = -1;
+		for (int i = 0; i < trace.events.size(); i++) {
+			long at = trace.offsets.get(i);
+			switch (trace.events.get(i)) {
+			case ENQUEUED:
+			case REQUEUED:
+				enqueuedAt = at;
+				servedAt = resultAt = linkStartedAt = linkFinishedAt = -1;
+				break;
+			case LISTED:
+			case CLAIMED:
+				if (servedAt < 0) {
+					servedAt = at;
+					if (enqueuedAt >= 0) {
+						result.merge("queueWait", at - enqueuedAt, Long::sum);
+					}
+				}
+				break;
+			case RESULT_RECEIVED:
+				resultAt = at;
+				if (servedAt >= 0) {
+					result.merge("processing", at - servedAt, Long::sum);
+				}
+				break;
+			case LINK_STARTED:
+				linkStartedAt = at;
+				break;
+			case LINK_FINISHED:
+				linkFinishedAt = at;
+				if (linkStartedAt >= 0) {
+					result.merge("link", at - linkStartedAt, Long::sum);
+				}
+				break;
+			case DISCORD_NOTIFIED:
+				long from = linkFinishedAt >= 0 ? linkFinishedAt : resultAt;
+				if (from >= 0) {
+					result.merge("discord", at - from, Long::sum);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		// Only traces that saw the request being queued know its full lifetime
+		if (trace.finished && trace.events.get(0) == Event.ENQUEUED) {
+			result.put("total", trace.offsets.get(trace.offsets.size() - 1));
+		}
+		return result;
+	}
+
+	private static JSONObject toJSON(Trace trace) {
+		JSONObject json = new JSONObject();
+		json.put("requestId", trace.requestId);
+		json.put("startedAt", trace.startedAt);
+		json.put("finished", trace.finished);
+		if (trace.finished) {
+			json.put("outcome", trace.last().getName());
+		}
+		JSONArray events = new JSONArray();
+		for (int i = 0; i < trace.events.size(); i++) {
+			JSONObject event = new JSONObject();
+			event.put("event", trace.events.get(i).getName());
+			event.put("atMillis", trace.offsets.get(i));
+			if (trace.details.get(i) != null) {
+				event.put("detail", trace.details.get(i));
+			}
+			events.put(event);
+		}
+		json.put("events", events);
+		if (trace.droppedEvents > 0) {
+			json.put("droppedEvents", trace.droppedEvents);
+		}
+		JSONObject stageJson = new JSONObject();
+		for (Map.Entry<String, Long> stage : stagesOf(trace).entrySet()) {
+			stageJson.put(stage.getKey() + "Millis", stage.getValue());
+		}
+		json.put("stages", stageJson);
+		return json;
+	}
+
+	/**
+	 * Drop the eldest traces beyond the ring size; unfinished ones are spilled
+	 * so they can still be looked up
+	 */
+	private void evictEldest() {
+		Iterator<Trace> it = traces.values().iterator();
+		while (traces.size() > maxTraces && it.hasNext()) {
+			Trace eldest = it.next();
+			it.remove();
+			if (spillFile != null && !eldest.finished) {
+				spill(toJSON(eldest).toString());
+			}
+		}
+	}
+
+	private void spill(String line) {
+		try {
+			spillWriter.execute(() -> append(line));
+		} catch (RejectedExecutionException e) {
+			// Closing, the trace is lost with the process
+		}
+	}
+
+	private void append(String line) {
+		try {
+			if (spillFile.length() > spillMaxBytes) {
+				Files.move(spillFile.toPath(), rotatedFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			try (FileWriter writer = new FileWriter(spillFile, StandardCharsets.UTF_8, true)) {
+				writer.write(line);
+				writer.write('\n');
+			}
+			spilled.incrementAndGet();
+		} catch (IOException e) {
+			System.out.println("Error writing request trace: " + e.getMessage());
+		}
+	}
+
+	private File rotatedFile() {
+		return new File(spillFile.getPath() + ".1");
+	}
+
+	private static JSONObject findSpilled(File file, String requestId) {
+		if (!file.exists()) {
+			return null;
+		}
+		String needle = "\"requestId\":\"" + requestId + "\"";
+		String match = null;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.contains(needle)) {
+					match = line;
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Error reading request traces: " + e.getMessage());
+			return null;
+		}
+		try {
+			return match != null ? new JSONObject(match) : null;
+		} catch (Exception e) {
+			// Line still being written
+			return null;
+		}
+	}
+}
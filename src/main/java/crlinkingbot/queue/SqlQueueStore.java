@@ -0,0 +1,364 @@
+package crlinkingbot.queue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Queue store backed by an embedded, file-based H2 database next to the JAR.
+ * <p>
+ * The database is opened with AUTO_SERVER, so several bot or API processes on
+ * the same host can share one queue. Removal and claiming are conditional
+ * row updates: when two processes race for the same request, only the one
+ * whose DELETE or UPDATE actually changed the row wins.
+ */
+public class SqlQueueStore implements QueueStore {
+	private static final String STATUS_PENDING = "PENDING";
+	private static final String STATUS_CLAIMED = "CLAIMED";
+	// Rows read per step while looking for claimable requests
+	private static final int CLAIM_PAGE_SIZE = 100;
+
+	private static final String SELECT_COLUMNS = "id, message_id, channel_id, guild_id, user_id, user_tag, created_at, "
+			+ "retry_count, due_at, claimed_by, lease_until, image_hashes, attachment_ids";
+	private static final String INSERT_COLUMNS = "id, message_id, channel_id, guild_id, user_id, user_tag, "
+			+ "created_at, retry_count, status, due_at, claimed_by, lease_until, image_hashes, attachment_ids";
+
+	private final Connection connection;
+
+	/**
+	 * Constructor opens the database and creates the schema if needed
+	 */
+	public SqlQueueStore() {
+		String jarDir = RequestQueue.getRunningJarDirectory().getAbsolutePath();
+		File dbFile = new File(jarDir, "/crlinkingbot/linking_queue");
+		String jdbcUrl = "jdbc:h2:file:" + dbFile.getAbsolutePath() + ";AUTO_SERVER=TRUE";
+
+		try {
+			this.connection = DriverManager.getConnection(jdbcUrl, "sa", "");
+			createSchema();
+			System.out.println("Opened queue database " + dbFile.getAbsolutePath() + " with " + count() + " requests");
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not open queue database: " + e.getMessage(), e);
+		}
+	}
+
+	private void createSchema() throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE IF NOT EXISTS linking_requests ("
+					+ "seq BIGINT AUTO_INCREMENT PRIMARY KEY, "
+					+ "id VARCHAR(64) NOT NULL UNIQUE, "
+					+ "message_id VARCHAR(32) NOT NULL UNIQUE, "
+					+ "channel_id VARCHAR(32) NOT NULL, "
+					+ "guild_id VARCHAR(32) NOT NULL, "
+					+ "user_id VARCHAR(32) NOT NULL, "
+					+ "user_tag VARCHAR(128) NOT NULL, "
+					+ "created_at BIGINT NOT NULL, "
+					+ "retry_count INT NOT NULL, "
+					+ "status VARCHAR(16) NOT NULL, "
+					+ "due_at BIGINT NOT NULL, "
+					+ "claimed_by VARCHAR(128), "
+					+ "lease_until BIGINT NOT NULL DEFAULT 0)");
+			statement.execute("ALTER TABLE linking_requests ADD COLUMN IF NOT EXISTS image_hashes VARCHAR(1024)");
+			statement.execute("ALTER TABLE linking_requests ADD COLUMN IF NOT EXISTS attachment_ids VARCHAR(1024)");
+			statement.execute("CREATE INDEX IF NOT EXISTS idx_lr_status_due ON linking_requests(status, due_at)");
+			statement.execute("CREATE INDEX IF NOT EXISTS idx_lr_guild ON linking_requests(guild_id)");
+			statement.execute("CREATE INDEX IF NOT EXISTS idx_lr_user ON linking_requests(user_id)");
+			statement.execute("CREATE INDEX IF NOT EXISTS idx_lr_due ON linking_requests(due_at)");
+		}
+	}
+
+	@Override
+	public synchronized List<LinkingRequest> loadAll() {
+		List<LinkingRequest> requests = new ArrayList<>();
+		try (PreparedStatement statement = connection
+				.prepareStatement("SELECT " + SELECT_COLUMNS + " FROM linking_requests ORDER BY seq");
+				ResultSet rs = statement.executeQuery()) {
+			while (rs.next()) {
+				requests.add(readRequest(rs));
+			}
+		} catch (SQLException e) {
+			System.out.println("Error loading queue from database: " + e.getMessage());
+			e.printStackTrace();
+		}
+		return requests;
+	}
+
+	@Override
+	public synchronized int count() {
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM linking_requests")) {
+			return rs.next() ? rs.getInt(1) : 0;
+		} catch (SQLException e) {
+			System.out.println("Error counting queue in database: " + e.getMessage());
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized boolean add(LinkingRequest request) {
+		try (PreparedStatement statement = prepareInsert()) {
+			bindInsert(statement, request);
+			statement.executeUpdate();
+			return true;
+		} catch (SQLException e) {
+			if (isDuplicateKey(e)) {
+				return false;
+			}
+			System.out.println("Error inserting request " + request.getId() + " into database: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public synchronized List<LinkingRequest> addAll(List<LinkingRequest> requests) {
+		List<LinkingRequest> added = new ArrayList<>();
+		try {
+			connection.setAutoCommit(false);
+			// Row by row, so a duplicate only skips its own request instead of failing the batch
+			try (PreparedStatement statement = connection.prepareStatement("INSERT INTO linking_requests ("
+					+ INSERT_COLUMNS + ") SELECT ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? WHERE NOT EXISTS "
+					+ "(SELECT 1 FROM linking_requests WHERE message_id = ?)")) {
+				for (LinkingRequest request : requests) {
+					bindInsert(statement, request);
+					statement.setString(15, request.getMessageId());
+					try {
+						if (statement.executeUpdate() == 1) {
+							added.add(request);
+						}
+					} catch (SQLException e) {
+						// Another process inserted the message between the check and the insert
+						if (!isDuplicateKey(e)) {
+							throw e;
+						}
+					}
+				}
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			rollback();
+			added.clear();
+			System.out.println("Error inserting " + requests.size() + " requests into database: " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			restoreAutoCommit();
+		}
+		return added;
+	}
+
+	@Override
+	public synchronized void update(LinkingRequest request) {
+		try (PreparedStatement statement = connection.prepareStatement("UPDATE linking_requests SET retry_count = ?, "
+				+ "status = ?, due_at = ?, claimed_by = ?, lease_until = ?, image_hashes = ?, attachment_ids = ? "
+				+ "WHERE id = ?")) {
+			statement.setInt(1, request.getRetryCount());
+			statement.setString(2, request.getClaimedBy() != null ? STATUS_CLAIMED : STATUS_PENDING);
+			statement.setLong(3, request.getDueAt());
+			statement.setString(4, request.getClaimedBy());
+			statement.setLong(5, request.getLeaseUntil());
+			statement.setString(6, join(request.getImageHashes()));
+			statement.setString(7, join(request.getAttachmentIds()));
+			statement.setString(8, request.getId());
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			System.out.println("Error updating request " + request.getId() + " in database: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized LinkingRequest remove(String requestId) {
+		try {
+			LinkingRequest request = findById(requestId);
+			if (request == null) {
+				return null;
+			}
+			try (PreparedStatement statement = connection
+					.prepareStatement("DELETE FROM linking_requests WHERE id = ?")) {
+				statement.setString(1, requestId);
+				// Another process may have deleted the row since we read it
+				return statement.executeUpdate() == 1 ? request : null;
+			}
+		} catch (SQLException e) {
+			System.out.println("Error removing request " + requestId + " from database: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("DELETE FROM linking_requests");
+		} catch (SQLException e) {
+			System.out.println("Error clearing queue database: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized List<LinkingRequest> claim(String owner, int limit, long leaseMillis,
+			Predicate<LinkingRequest> eligible) {
+		long now = System.currentTimeMillis();
+		long leaseUntil = now + leaseMillis;
+		int pageSize = Math.max(limit, CLAIM_PAGE_SIZE);
+		List<LinkingRequest> claimed = new ArrayList<>();
+		// Page through the due requests until enough eligible ones are claimed
+		long afterSeq = 0;
+		int rows = pageSize;
+		while (rows == pageSize && claimed.size() < limit) {
+			List<LinkingRequest> candidates = new ArrayList<>();
+			rows = 0;
+			try (PreparedStatement select = connection.prepareStatement("SELECT seq, " + SELECT_COLUMNS
+					+ " FROM linking_requests WHERE seq > ? AND due_at <= ? "
+					+ "AND (status = ? OR (status = ? AND lease_until < ?)) ORDER BY seq LIMIT ?")) {
+				select.setLong(1, afterSeq);
+				select.setLong(2, now);
+				select.setString(3, STATUS_PENDING);
+				select.setString(4, STATUS_CLAIMED);
+				select.setLong(5, now);
+				select.setInt(6, pageSize);
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						rows++;
+						afterSeq = rs.getLong("seq");
+						LinkingRequest request = readRequest(rs);
+						if (eligible.test(request)) {
+							candidates.add(request);
+						}
+					}
+				}
+			} catch (SQLException e) {
+				System.out.println("Error selecting claimable requests: " + e.getMessage());
+				e.printStackTrace();
+				return claimed;
+			}
+
+			try (PreparedStatement update = connection.prepareStatement("UPDATE linking_requests SET status = ?, "
+					+ "claimed_by = ?, lease_until = ? WHERE id = ? AND (status = ? OR (status = ? AND lease_until < ?))")) {
+				for (LinkingRequest request : candidates) {
+					if (claimed.size() >= limit) {
+						break;
+					}
+					update.setString(1, STATUS_CLAIMED);
+					update.setString(2, owner);
+					update.setLong(3, leaseUntil);
+					update.setString(4, request.getId());
+					update.setString(5, STATUS_PENDING);
+					update.setString(6, STATUS_CLAIMED);
+					update.setLong(7, now);
+					// Zero rows means another process claimed it first
+					if (update.executeUpdate() == 1) {
+						request.setClaim(owner, leaseUntil);
+						claimed.add(request);
+					}
+				}
+			} catch (SQLException e) {
+				System.out.println("Error claiming requests: " + e.getMessage());
+				e.printStackTrace();
+				return claimed;
+			}
+		}
+		return claimed;
+	}
+
+	@Override
+	public boolean isShared() {
+		return true;
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			if (connection != null && !connection.isClosed()) {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			System.out.println("Error closing queue database: " + e.getMessage());
+		}
+	}
+
+	private LinkingRequest findById(String requestId) throws SQLException {
+		try (PreparedStatement statement = connection
+				.prepareStatement("SELECT " + SELECT_COLUMNS + " FROM linking_requests WHERE id = ?")) {
+			statement.setString(1, requestId);
+			try (ResultSet rs = statement.executeQuery()) {
+				return rs.next() ? readRequest(rs) : null;
+			}
+		}
+	}
+
+	private PreparedStatement prepareInsert() throws SQLException {
+		return connection.prepareStatement("INSERT INTO linking_requests (" + INSERT_COLUMNS
+				+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+	}
+
+	private static void bindInsert(PreparedStatement statement, LinkingRequest request) throws SQLException {
+		statement.setString(1, request.getId());
+		statement.setString(2, request.getMessageId());
+		statement.setString(3, request.getChannelId());
+		statement.setString(4, request.getGuildId());
+		statement.setString(5, request.getUserId());
+		statement.setString(6, request.getUserTag());
+		statement.setLong(7, request.getTimestamp());
+		statement.setInt(8, request.getRetryCount());
+		statement.setString(9, request.getClaimedBy() != null ? STATUS_CLAIMED : STATUS_PENDING);
+		statement.setLong(10, request.getDueAt());
+		statement.setString(11, request.getClaimedBy());
+		statement.setLong(12, request.getLeaseUntil());
+		statement.setString(13, join(request.getImageHashes()));
+		statement.setString(14, join(request.getAttachmentIds()));
+	}
+
+	private static LinkingRequest readRequest(ResultSet rs) throws SQLException {
+		LinkingRequest request = new LinkingRequest(rs.getString("id"), rs.getString("message_id"),
+				rs.getString("channel_id"), rs.getString("guild_id"), rs.getString("user_id"),
+				rs.getString("user_tag"), rs.getLong("created_at"), rs.getInt("retry_count"));
+		request.setDueAt(rs.getLong("due_at"));
+		String claimedBy = rs.getString("claimed_by");
+		if (claimedBy != null) {
+			request.setClaim(claimedBy, rs.getLong("lease_until"));
+		}
+		request.setImageHashes(split(rs.getString("image_hashes")));
+		request.setAttachmentIds(split(rs.getString("attachment_ids")));
+		return request;
+	}
+
+	private static String join(List<String> values) {
+		return values.isEmpty() ? null : String.join(",", values);
+	}
+
+	private static List<String> split(String value) {
+		return value == null || value.isEmpty() ? new ArrayList<>() : Arrays.asList(value.split(","));
+	}
+
+	private static boolean isDuplicateKey(SQLException e) {
+		// SQLState class 23 is an integrity constraint violation
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
+	}
+
+	private void rollback() {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			System.out.println("Error rolling back queue transaction: " + e.getMessage());
+		}
+	}
+
+	private void restoreAutoCommit() {
+		try {
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			System.out.println("Error restoring auto-commit: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package crlinkingbot.replay;
+
+import crlinkingbot.queue.JsonFileQueueStore;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.QueueStore;
+import crlinkingbot.util.LatencySamples;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Queue store that times every mutation of the store it wraps, so a replay
+ * can report what persisting the queue costs on the request path
+ */
+public class MeteredQueueStore implements QueueStore {
+	private static final int SAMPLE_SIZE = 100_000;
+
+	private final QueueStore delegate;
+	private final Map<String, LatencySamples> operations = new LinkedHashMap<>();
+
+	/**
+	 * Constructor
+	 */
+	public MeteredQueueStore(QueueStore delegate) {
+		this.delegate = delegate;
+		for (String operation : new String[] { "add", "addAll", "update", "remove", "claim" }) {
+			operations.put(operation, new LatencySamples(SAMPLE_SIZE));
+		}
+	}
+
+	@Override
+	public List<LinkingRequest> loadAll() {
+		return delegate.loadAll();
+	}
+
+	@Override
+	public int count() {
+		return delegate.count();
+	}
+
+	@Override
+	public boolean add(LinkingRequest request) {
+		return time("add", () -> delegate.add(request));
+	}
+
+	@Override
+	public List<LinkingRequest> addAll(List<LinkingRequest> requests) {
+		return time("addAll", () -> delegate.addAll(requests));
+	}
+
+	@Override
+	public void update(LinkingRequest request) {
+		time("update", () -> {
+			delegate.update(request);
+			return null;
+		});
+	}
+
+	@Override
+	public LinkingRequest remove(String requestId) {
+		return time("remove", () -> delegate.remove(requestId));
+	}
+
+	@Override
+	public void clear() {
+		delegate.clear();
+	}
+
+	@Override
+	public List<LinkingRequest> claim(String owner, int limit, long leaseMillis,
+			Predicate<LinkingRequest> eligible) {
+		return time("claim", () -> delegate.claim(owner, limit, leaseMillis, eligible));
+	}
+
+	@Override
+	public boolean isShared() {
+		return delegate.isShared();
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+
+	/**
+	 * Get the latency of each operation in microseconds, plus the file writes
+	 * of the JSON store
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("store", delegate.getClass().getSimpleName());
+		JSONObject micros = new JSONObject();
+		for (Map.Entry<String, LatencySamples> entry : operations.entrySet()) {
+			micros.put(entry.getKey(), entry.getValue().toJSON());
+		}
+		stats.put("operationMicros", micros);
+		if (delegate instanceof JsonFileQueueStore) {
+			stats.put("fileWrites", ((JsonFileQueueStore) delegate).getStats());
+		}
+		return stats;
+	}
+
+	private <T> T time(String operation, Supplier<T> call) {
+		long start = System.nanoTime();
+		try {
+			return call.get();
+		} finally {
+			operations.get(operation).add((System.nanoTime() - start) / 1000);
+		}
+	}
+}
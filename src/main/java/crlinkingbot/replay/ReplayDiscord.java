@@ -0,0 +1,230 @@
+package crlinkingbot.replay;
+
+import crlinkingbot.services.CacheProfile;
+import crlinkingbot.services.DiscordGateway;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import net.dv8tion.jda.api.requests.RestAction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Discord stand-in for replays. A single connected shard knows the channels
+ * and messages of the replayed /link events; REST actions on them succeed
+ * without a network call and are only counted. Built from dynamic proxies, so
+ * it does not depend on JDA internals. Message histories cannot be faked
+ * that way, history reads fail and the resolver falls back to single lookups.
+ */
+public class ReplayDiscord {
+	private final Map<String, Set<String>> messagesByChannel = new ConcurrentHashMap<>();
+	private final AtomicLong restActions = new AtomicLong();
+
+	/**
+	 * Make a message known, as if /link had been used on it
+	 */
+	public void addMessage(String channelId, String messageId) {
+		messagesByChannel.computeIfAbsent(channelId, k -> ConcurrentHashMap.newKeySet()).add(messageId);
+	}
+
+	/**
+	 * Number of REST actions the bot executed, e.g. reactions and messages
+	 */
+	public long getRestActions() {
+		return restActions.get();
+	}
+
+	/**
+	 * Create a gateway backed by the stand-in shard
+	 */
+	public DiscordGateway createGateway(CacheProfile cacheProfile) {
+		JDA jda = proxy(JDA.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getStatus":
+					return JDA.Status.CONNECTED;
+				case "getShardInfo":
+					return JDA.ShardInfo.SINGLE;
+				case "getChannelById":
+					if (args.length == 2 && args[0] == MessageChannelUnion.class) {
+						String channelId = String.valueOf(args[1]);
+						return messagesByChannel.containsKey(channelId) ? channel(channelId) : null;
+					}
+					return null;
+				default:
+					return fallback(proxy, method, args);
+			}
+		});
+		return DiscordGateway.single(jda, cacheProfile);
+	}
+
+	private MessageChannelUnion channel(String channelId) {
+		return proxy(MessageChannelUnion.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getId":
+					return channelId;
+				case "getIdLong":
+					return Long.parseUnsignedLong(channelId);
+				case "retrieveMessageById":
+					String messageId = String.valueOf(args[0]);
+					Set<String> messages = messagesByChannel.get(channelId);
+					return messages != null && messages.contains(messageId)
+							? action(method.getReturnType(), message(messageId), null)
+							: action(method.getReturnType(), null,
+									new IllegalStateException("Unknown message " + messageId));
+				case "getHistoryAfter":
+				case "getHistoryBefore":
+				case "getHistoryAround":
+					return action(method.getReturnType(), null,
+							new UnsupportedOperationException("History is not available in replays"));
+				default:
+					return fallback(proxy, method, args);
+			}
+		});
+	}
+
+	private Message message(String messageId) {
+		return proxy(Message.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getId":
+					return messageId;
+				case "getIdLong":
+					return Long.parseUnsignedLong(messageId);
+				default:
+					return fallback(proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * REST action that completes right away with the given result or failure
+	 */
+	@SuppressWarnings("unchecked")
+	private Object action(Class<?> type, Object result, RuntimeException failure) {
+		return proxy(type, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "queue":
+					restActions.incrementAndGet();
+					if (failure != null) {
+						if (args != null && args.length > 1 && args[1] != null) {
+							((Consumer<Object>) args[1]).accept(failure);
+						}
+					} else if (args != null && args.length > 0 && args[0] != null && result != null) {
+						((Consumer<Object>) args[0]).accept(result);
+					}
+					return null;
+				case "complete":
+					restActions.incrementAndGet();
+					if (failure != null) {
+						throw failure;
+					}
+					return result;
+				case "submit":
+					restActions.incrementAndGet();
+					return failure != null ? CompletableFuture.failedFuture(failure)
+							: CompletableFuture.completedFuture(result);
+				default:
+					// Builder methods such as setEphemeral return the action itself
+					if (method.getReturnType().isInstance(proxy)) {
+						return proxy;
+					}
+					return fallback(proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * Answer methods without replay-specific behavior with neutral values
+	 */
+	private Object fallback(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "equals":
+				return args != null && args.length == 1 && proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Replay" + proxy.getClass().getInterfaces()[0].getSimpleName();
+			default:
+				return neutral(method.getReturnType());
+		}
+	}
+
+	private Object neutral(Class<?> type) {
+		if (type == void.class) {
+			return null;
+		}
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		if (type == short.class) {
+			return (short) 0;
+		}
+		if (type == byte.class) {
+			return (byte) 0;
+		}
+		if (type == double.class) {
+			return 0.0;
+		}
+		if (type == float.class) {
+			return 0.0f;
+		}
+		if (type == char.class) {
+			return '\0';
+		}
+		if (type == String.class || type == CharSequence.class) {
+			return "";
+		}
+		if (type == List.class || type == Collection.class) {
+			return List.of();
+		}
+		if (type == Set.class) {
+			return Set.of();
+		}
+		if (type == Map.class) {
+			return Map.of();
+		}
+		if (type == Optional.class) {
+			return Optional.empty();
+		}
+		if (type == Stream.class) {
+			return Stream.empty();
+		}
+		if (type == Iterator.class) {
+			return Collections.emptyIterator();
+		}
+		if (type == CompletableFuture.class) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (RestAction.class.isAssignableFrom(type)) {
+			return action(type, null, null);
+		}
+		if (type.isInterface()) {
+			return proxy(type, this::fallback);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(ReplayDiscord.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,339 @@
+package crlinkingbot.replay;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.util.EnvUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Set;
+
+/**
+ * Captures API calls and /link enqueue events to a JSON lines file, so a
+ * session can be replayed later with {@link TrafficReplay}. Each line holds
+ * the time, the endpoint, payload sizes and whatever is needed to repeat the
+ * call. Discord IDs, request IDs, worker names and player tags are replaced by
+ * salted hashes, which stay consistent within a capture, so the file can be
+ * shared without identifying anyone.
+ */
+public class TrafficRecorder {
+	// Keys whose values identify a user, guild, message, request or worker
+	private static final Set<String> ID_KEYS = Set.of("requestId", "messageId", "channelId", "guildId", "userId",
+			"claim");
+	private static final String TAG_ALPHABET = "0289PYLQGRJCUV";
+	private static final int MAX_BODY_BYTES = 64 * 1024;
+	private static final int MAX_TEXT_LENGTH = 200;
+	// Bits of a Discord snowflake below its millisecond timestamp
+	private static final int SNOWFLAKE_TIMESTAMP_SHIFT = 22;
+
+	private final File captureFile;
+	private final long maxBytes;
+	private final Mac mac;
+	private BufferedWriter writer;
+	private long writtenBytes;
+	private long events;
+	private boolean full;
+
+	/**
+	 * Constructor
+	 *
+	 * @param captureFile File the events are appended to
+	 * @param maxBytes    Size after which capturing stops
+	 * @param salt        Secret mixed into the anonymized IDs
+	 */
+	public TrafficRecorder(File captureFile, long maxBytes, byte[] salt) throws IOException {
+		this.captureFile = captureFile;
+		this.maxBytes = maxBytes;
+		try {
+			this.mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("HmacSHA256 not available", e);
+		}
+		captureFile.getParentFile().mkdirs();
+		this.writtenBytes = captureFile.length();
+		this.writer = new BufferedWriter(new FileWriter(captureFile, StandardCharsets.UTF_8, true));
+
+		JSONObject start = new JSONObject();
+		start.put("t", System.currentTimeMillis());
+		start.put("type", "start");
+		write(start);
+	}
+
+	/**
+	 * Create the recorder configured by TRAFFIC_CAPTURE
+	 *
+	 * @return The recorder, or null if capturing is disabled or the file cannot
+	 *         be opened
+	 */
+	public static TrafficRecorder fromEnv() {
+		if (!EnvUtil.getBoolean("TRAFFIC_CAPTURE", false)) {
+			return null;
+		}
+		File file = new File(RequestQueue.getRunningJarDirectory().getAbsolutePath(),
+				"/crlinkingbot/traffic_capture.jsonl");
+		// A fixed salt keeps the IDs of requests queued before a restart consistent
+		String configuredSalt = System.getenv("TRAFFIC_CAPTURE_SALT");
+		byte[] salt;
+		if (configuredSalt != null && !configuredSalt.isEmpty()) {
+			salt = configuredSalt.getBytes(StandardCharsets.UTF_8);
+		} else {
+			salt = new byte[32];
+			new SecureRandom().nextBytes(salt);
+		}
+		try {
+			TrafficRecorder recorder = new TrafficRecorder(file,
+					EnvUtil.getInt("TRAFFIC_CAPTURE_MAX_MB", 64) * 1024L * 1024L, salt);
+			System.out.println("Capturing API traffic to " + file.getAbsolutePath());
+			return recorder;
+		} catch (IOException e) {
+			System.out.println("Could not open traffic capture file: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Record a request that /link added to the queue
+	 *
+	 * @param request     The queued request
+	 * @param attachments Number of screenshots kept for the request
+	 */
+	public void recordLink(LinkingRequest request, int attachments) {
+		JSONObject event = new JSONObject();
+		event.put("t", System.currentTimeMillis());
+		event.put("type", "link");
+		synchronized (this) {
+			event.put("requestId", anonymize(request.getId()));
+			event.put("messageId", anonymize(request.getMessageId()));
+			event.put("channelId", anonymize(request.getChannelId()));
+			event.put("guildId", anonymize(request.getGuildId()));
+			event.put("userId", anonymize(request.getUserId()));
+			event.put("attachments", attachments);
+			write(event);
+		}
+	}
+
+	/**
+	 * Filter that records every call of the context it is added to
+	 */
+	public Filter filter() {
+		return new Filter() {
+			@Override
+			public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+				long start = System.nanoTime();
+				byte[] body = exchange.getRequestBody().readAllBytes();
+				CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+				exchange.setStreams(new ByteArrayInputStream(body), out);
+				try {
+					chain.doFilter(exchange);
+				} finally {
+					recordCall(exchange, body, out.count, (System.nanoTime() - start) / 1_000_000);
+				}
+			}
+
+			@Override
+			public String description() {
+				return "Records API calls for replay";
+			}
+		};
+	}
+
+	/**
+	 * Stop capturing and close the file
+	 */
+	public synchronized void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Error closing traffic capture file: " + e.getMessage());
+		}
+		writer = null;
+		System.out.println("Captured " + events + " events to " + captureFile.getAbsolutePath());
+	}
+
+	private void recordCall(HttpExchange exchange, byte[] body, long responseBytes, long durationMillis) {
+		JSONObject event = new JSONObject();
+		event.put("t", System.currentTimeMillis() - durationMillis);
+		event.put("type", "api");
+		event.put("method", exchange.getRequestMethod());
+		event.put("status", exchange.getResponseCode());
+		event.put("requestBytes", body.length);
+		event.put("responseBytes", responseBytes);
+		event.put("durationMs", durationMillis);
+		event.put("conditional", exchange.getRequestHeaders().containsKey("If-None-Match"));
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (acceptEncoding != null) {
+			event.put("acceptEncoding", acceptEncoding);
+		}
+
+		synchronized (this) {
+			// The path ends in a request ID or image hash for some endpoints
+			String contextPath = exchange.getHttpContext().getPath();
+			String path = exchange.getRequestURI().getPath();
+			String suffix = path.length() > contextPath.length() ? path.substring(contextPath.length()) : "";
+			suffix = suffix.startsWith("/") ? suffix.substring(1) : suffix;
+			if (suffix.isEmpty()) {
+				event.put("endpoint", path);
+				event.put("path", path);
+			} else {
+				String base = contextPath.endsWith("/") ? contextPath : contextPath + "/";
+				event.put("endpoint", base + "{id}");
+				event.put("path", base + anonymize(suffix));
+			}
+
+			String query = exchange.getRequestURI().getRawQuery();
+			if (query != null && !query.isEmpty()) {
+				JSONObject params = new JSONObject();
+				for (String pair : query.split("&")) {
+					int idx = pair.indexOf('=');
+					String key = URLDecoder.decode(idx >= 0 ? pair.substring(0, idx) : pair, StandardCharsets.UTF_8);
+					String value = URLDecoder.decode(idx >= 0 ? pair.substring(idx + 1) : "", StandardCharsets.UTF_8);
+					params.put(key, anonymizeValue(key, value));
+				}
+				event.put("query", params);
+			}
+
+			if (body.length > 0 && body.length <= MAX_BODY_BYTES) {
+				try {
+					event.put("body", anonymizeJSON(new JSONObject(new String(body, StandardCharsets.UTF_8))));
+				} catch (Exception e) {
+					// Not JSON, the size is enough
+				}
+			}
+			write(event);
+		}
+	}
+
+	private Object anonymizeJSON(Object value) {
+		if (value instanceof JSONObject) {
+			JSONObject json = (JSONObject) value;
+			JSONObject anonymized = new JSONObject();
+			for (String key : json.keySet()) {
+				Object child = json.get(key);
+				anonymized.put(key, child instanceof String ? anonymizeValue(key, (String) child) : anonymizeJSON(child));
+			}
+			return anonymized;
+		}
+		if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			JSONArray anonymized = new JSONArray();
+			for (int i = 0; i < array.length(); i++) {
+				anonymized.put(anonymizeJSON(array.get(i)));
+			}
+			return anonymized;
+		}
+		return value;
+	}
+
+	private String anonymizeValue(String key, String value) {
+		if (value.isEmpty()) {
+			return value;
+		}
+		if (ID_KEYS.contains(key)) {
+			return anonymize(value);
+		}
+		if (key.equals("playerTag")) {
+			return anonymizeTag(value);
+		}
+		return value.length() > MAX_TEXT_LENGTH ? value.substring(0, MAX_TEXT_LENGTH) : value;
+	}
+
+	/**
+	 * Replace an ID with a hash. Snowflakes keep their timestamp (the bits
+	 * above the low 22) and only the worker, process and increment bits are
+	 * hashed, so anonymized message IDs still sort like the real ones. Called
+	 * while holding the monitor, Mac is not thread-safe.
+	 */
+	private String anonymize(String id) {
+		if (id == null) {
+			return null;
+		}
+		long hash = ByteBuffer.wrap(mac.doFinal(id.getBytes(StandardCharsets.UTF_8))).getLong();
+		long snowflake;
+		try {
+			snowflake = Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			return Long.toString(hash & Long.MAX_VALUE);
+		}
+		if (snowflake < 0) {
+			return Long.toString(hash & Long.MAX_VALUE);
+		}
+		return Long.toString((snowflake >>> SNOWFLAKE_TIMESTAMP_SHIFT) << SNOWFLAKE_TIMESTAMP_SHIFT
+				| (hash & ((1L << SNOWFLAKE_TIMESTAMP_SHIFT) - 1)));
+	}
+
+	private String anonymizeTag(String tag) {
+		byte[] hash = mac.doFinal(("tag:" + tag.toUpperCase()).getBytes(StandardCharsets.UTF_8));
+		StringBuilder anonymized = new StringBuilder("#");
+		for (int i = 0; i < 8; i++) {
+			anonymized.append(TAG_ALPHABET.charAt((hash[i] & 0xff) % TAG_ALPHABET.length()));
+		}
+		return anonymized.toString();
+	}
+
+	/**
+	 * Append one event. Called while holding the monitor.
+	 */
+	private void write(JSONObject event) {
+		if (writer == null || full) {
+			return;
+		}
+		String line = event.toString();
+		if (writtenBytes + line.length() + 1 > maxBytes) {
+			full = true;
+			System.out.println("Traffic capture reached " + (maxBytes / (1024 * 1024)) + " MB, capturing stopped");
+			return;
+		}
+		try {
+			writer.write(line);
+			writer.newLine();
+			writer.flush();
+			writtenBytes += line.length() + 1;
+			events++;
+		} catch (IOException e) {
+			System.out.println("Error writing traffic capture: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Counts the response bytes as they go out, after compression
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
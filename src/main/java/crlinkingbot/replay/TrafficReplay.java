@@ -0,0 +1,391 @@
+package crlinkingbot.replay;
+
+import com.sun.net.httpserver.HttpServer;
+import crlinkingbot.api.QueueAPIServer;
+import crlinkingbot.images.ImageCache;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.images.ProfileScreenshotClassifier;
+import crlinkingbot.images.ScreenshotIndex;
+import crlinkingbot.queue.DeadLetterStore;
+import crlinkingbot.queue.HistoryStore;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.QueueStore;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.services.CacheProfile;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.MessageResolver;
+import crlinkingbot.services.ResultProcessor;
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.LatencySamples;
+import crlinkingbot.util.StartupTracker;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Re-drives a session captured by {@link TrafficRecorder} against a local
+ * queue API, optionally faster than it was recorded. Every run starts from an
+ * empty scratch directory with stubbed Discord and lostcrmanager, injects the
+ * captured /link events into the queue and repeats the API calls at their
+ * original offsets divided by the speed. The report covers throughput,
+ * latency percentiles per endpoint and what persisting the state cost.
+ */
+public class TrafficReplay {
+	private final List<JSONObject> events;
+	private final int concurrency;
+	private final long linkLatencyMillis;
+	private final AtomicLong linkCalls = new AtomicLong();
+	private HttpServer lostCRManagerStub;
+
+	/**
+	 * Per-endpoint results of one run
+	 */
+	private static class EndpointStats {
+		final List<Long> latencyMicros = new ArrayList<>();
+		final List<Long> capturedMicros = new ArrayList<>();
+		final Map<Integer, Integer> statuses = new TreeMap<>();
+		long responseBytes;
+
+		synchronized void add(int status, long micros, long capturedMillis, long bytes) {
+			latencyMicros.add(micros);
+			capturedMicros.add(capturedMillis * 1000);
+			statuses.merge(status, 1, Integer::sum);
+			responseBytes += bytes;
+		}
+
+		synchronized JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("calls", latencyMicros.size());
+			JSONObject statusCounts = new JSONObject();
+			statuses.forEach((status, count) -> statusCounts.put(String.valueOf(status), count));
+			json.put("statuses", statusCounts);
+			json.put("latencyMicros", LatencySamples.summarize(toArray(latencyMicros)));
+			json.put("capturedLatencyMicros", LatencySamples.summarize(toArray(capturedMicros)));
+			json.put("responseBytes", responseBytes);
+			return json;
+		}
+	}
+
+	/**
+	 * Constructor loads the capture
+	 *
+	 * @param captureFile JSON lines file written by {@link TrafficRecorder}
+	 */
+	public TrafficReplay(File captureFile) throws IOException {
+		this.events = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(captureFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) {
+					continue;
+				}
+				JSONObject event = new JSONObject(line);
+				String type = event.optString("type");
+				if (type.equals("link") || type.equals("api")) {
+					events.add(event);
+				}
+			}
+		}
+		// API calls are stamped with their start, they may be logged out of order
+		events.sort(Comparator.comparingLong(event -> event.getLong("t")));
+		this.concurrency = EnvUtil.getInt("REPLAY_CONCURRENCY", 16);
+		this.linkLatencyMillis = EnvUtil.getInt("REPLAY_LINK_LATENCY_MS", 50);
+		System.out.println("Loaded " + events.size() + " events from " + captureFile.getAbsolutePath());
+	}
+
+	/**
+	 * Start the local lostcrmanager stand-in. Every link succeeds after a fixed
+	 * delay.
+	 *
+	 * @return The base URL to configure as LOSTCRMANAGER_API_URL
+	 */
+	public String startLostCRManagerStub() throws IOException {
+		lostCRManagerStub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		lostCRManagerStub.createContext("/api/link", exchange -> {
+			linkCalls.incrementAndGet();
+			try {
+				Thread.sleep(linkLatencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.getRequestBody().readAllBytes();
+			JSONObject response = new JSONObject();
+			response.put("playerName", "Replay");
+			byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		});
+		lostCRManagerStub.setExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "replay-lostcrmanager");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		lostCRManagerStub.start();
+		return "http://127.0.0.1:" + lostCRManagerStub.getAddress().getPort();
+	}
+
+	/**
+	 * Stop the lostcrmanager stand-in
+	 */
+	public void shutdown() {
+		if (lostCRManagerStub != null) {
+			lostCRManagerStub.stop(0);
+		}
+	}
+
+	/**
+	 * Replay the capture once against a fresh bot
+	 *
+	 * @param speed Factor the captured timeline is compressed by, e.g. 10 for
+	 *              10x
+	 * @return The report of the run
+	 */
+	public JSONObject run(double speed) throws Exception {
+		System.out.println("Replaying " + events.size() + " events at " + speed + "x");
+		Path dataDir = Files.createTempDirectory("crlinkingbot-replay");
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		long linkCallsBefore = linkCalls.get();
+
+		// Same wiring as a regular start, against the scratch directory and the stubs
+		MeteredQueueStore store = new MeteredQueueStore(QueueStore.fromEnv());
+		RequestQueue requestQueue = new RequestQueue(store);
+		DeadLetterStore deadLetterStore = new DeadLetterStore();
+		HistoryStore historyStore = new HistoryStore();
+		ImageCache imageCache = new ImageCache();
+		ScreenshotIndex screenshotIndex = new ScreenshotIndex();
+		ReplayDiscord replayDiscord = new ReplayDiscord();
+		DiscordGateway discord = replayDiscord.createGateway(CacheProfile.fromEnv());
+		MessageResolver messageResolver = new MessageResolver(discord);
+		ResultProcessor resultProcessor = new ResultProcessor(requestQueue, deadLetterStore, historyStore, discord,
+				messageResolver, screenshotIndex);
+		ImagePrefetcher imagePrefetcher = new ImagePrefetcher(imageCache, new ProfileScreenshotClassifier(),
+				requestQueue, discord, messageResolver);
+		imagePrefetcher.setCachedListener(resultProcessor::completeFromIndex);
+		StartupTracker startup = new StartupTracker();
+		startup.reached(StartupTracker.Phase.DISCORD_READY);
+		QueueAPIServer apiServer = new QueueAPIServer(requestQueue, deadLetterStore, historyStore, discord,
+				messageResolver, resultProcessor, imagePrefetcher, screenshotIndex, startup, null);
+		apiServer.start();
+
+		String baseUrl = "http://127.0.0.1:" + EnvUtil.getInt("QUEUE_API_PORT", 8090);
+		String secret = System.getenv("QUEUE_API_SECRET");
+		HttpClient client = HttpClient.newHttpClient();
+		ExecutorService callers = Executors.newFixedThreadPool(concurrency);
+		Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+		Map<String, String> etags = new ConcurrentHashMap<>();
+		LatencySamples scheduleLag = new LatencySamples(events.size());
+		int links = 0;
+		int calls = 0;
+		int skipped = 0;
+
+		long firstEventAt = events.isEmpty() ? 0 : events.get(0).getLong("t");
+		long spanMillis = events.isEmpty() ? 0 : events.get(events.size() - 1).getLong("t") - firstEventAt;
+		long start = System.nanoTime();
+		for (JSONObject event : events) {
+			long dueNanos = start + (long) ((event.getLong("t") - firstEventAt) * 1_000_000L / speed);
+			long waitNanos = dueNanos - System.nanoTime();
+			if (waitNanos > 0) {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+			scheduleLag.add(Math.max(0, (System.nanoTime() - dueNanos) / 1_000_000));
+
+			if (event.getString("type").equals("link")) {
+				injectLink(event, requestQueue, replayDiscord, imagePrefetcher);
+				links++;
+			} else if (event.optString("endpoint").startsWith("/api/queue/image/")) {
+				// Image bytes are not captured, the cache is empty
+				skipped++;
+			} else {
+				calls++;
+				callers.execute(() -> replayCall(event, client, baseUrl, secret, endpoints, etags));
+			}
+		}
+		callers.shutdown();
+		callers.awaitTermination(10, TimeUnit.MINUTES);
+		long wallMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+		// Let the queue and history writers catch up before the files are measured
+		apiServer.shutdown();
+		imagePrefetcher.shutdown();
+		JSONObject outcomes = historyStore.count(0, Long.MAX_VALUE, null, null, HistoryStore.GROUP_OUTCOME)
+				.getJSONObject("groups");
+		JSONObject durations = historyStore.durations(0, Long.MAX_VALUE, null, null);
+		requestQueue.close();
+		historyStore.close();
+		screenshotIndex.close();
+
+		JSONObject report = new JSONObject();
+		report.put("speed", speed);
+		report.put("capturedSpanMillis", spanMillis);
+		report.put("wallMillis", wallMillis);
+
+		JSONObject counts = new JSONObject();
+		counts.put("links", links);
+		counts.put("apiCalls", calls);
+		counts.put("skippedImageCalls", skipped);
+		report.put("events", counts);
+
+		long completed = outcomes.has("completed") ? outcomes.getJSONObject("completed").getLong("count") : 0;
+		JSONObject throughput = new JSONObject();
+		throughput.put("apiCallsPerSecond", calls * 1000.0 / wallMillis);
+		throughput.put("linksPerSecond", links * 1000.0 / wallMillis);
+		throughput.put("completedPerSecond", completed * 1000.0 / wallMillis);
+		report.put("throughput", throughput);
+
+		JSONObject endpointReport = new JSONObject();
+		endpoints.forEach((endpoint, stats) -> endpointReport.put(endpoint, stats.toJSON()));
+		report.put("endpoints", endpointReport);
+		report.put("scheduleLagMillis", scheduleLag.toJSON());
+		report.put("outcomes", outcomes);
+		report.put("requestDurations", durations);
+		report.put("trace", requestQueue.getTracer().getStats());
+
+		JSONObject persistence = new JSONObject();
+		persistence.put("queueStore", store.getStats());
+		persistence.put("history", historyStore.getStats());
+		persistence.put("dataDirBytes", directorySizes(dataDir.resolve("crlinkingbot")));
+		report.put("persistence", persistence);
+
+		JSONObject stubs = new JSONObject();
+		stubs.put("discordRestActions", replayDiscord.getRestActions());
+		stubs.put("lostcrmanagerCalls", linkCalls.get() - linkCallsBefore);
+		report.put("stubs", stubs);
+
+		deleteRecursively(dataDir);
+		return report;
+	}
+
+	/**
+	 * Queue a captured /link request the way the command does
+	 */
+	private void injectLink(JSONObject event, RequestQueue requestQueue, ReplayDiscord replayDiscord,
+			ImagePrefetcher imagePrefetcher) {
+		String channelId = event.getString("channelId");
+		String messageId = event.getString("messageId");
+		replayDiscord.addMessage(channelId, messageId);
+		LinkingRequest request = new LinkingRequest(event.getString("requestId"), messageId, channelId,
+				event.getString("guildId"), event.getString("userId"), "replay#" + event.getString("userId"),
+				System.currentTimeMillis(), 0);
+		if (requestQueue.enqueueIfAbsent(request) == null) {
+			imagePrefetcher.prefetch(request);
+		}
+	}
+
+	/**
+	 * Repeat one captured API call and record its latency
+	 */
+	private void replayCall(JSONObject event, HttpClient client, String baseUrl, String secret,
+			Map<String, EndpointStats> endpoints, Map<String, String> etags) {
+		String method = event.getString("method");
+		StringBuilder uri = new StringBuilder(baseUrl).append(event.getString("path"));
+		JSONObject query = event.optJSONObject("query");
+		if (query != null) {
+			char separator = '?';
+			for (String key : query.keySet()) {
+				uri.append(separator).append(URLEncoder.encode(key, StandardCharsets.UTF_8)).append('=')
+						.append(URLEncoder.encode(query.getString(key), StandardCharsets.UTF_8));
+				separator = '&';
+			}
+		}
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri.toString()))
+				.header("Authorization", "Bearer " + secret);
+		if (event.has("acceptEncoding")) {
+			builder.header("Accept-Encoding", event.getString("acceptEncoding"));
+		}
+		// Conditional polls send the last tag this replay saw for the same URI
+		String etag = etags.get(uri.toString());
+		if (event.optBoolean("conditional") && etag != null) {
+			builder.header("If-None-Match", etag);
+		}
+		JSONObject body = event.optJSONObject("body");
+		if (body != null) {
+			builder.header("Content-Type", "application/json");
+		}
+		builder.method(method, body != null ? HttpRequest.BodyPublishers.ofString(body.toString())
+				: HttpRequest.BodyPublishers.noBody());
+
+		String endpoint = method + " " + event.getString("endpoint");
+		long start = System.nanoTime();
+		int status;
+		long bytes;
+		try {
+			HttpResponse<byte[]> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+			status = response.statusCode();
+			bytes = response.body().length;
+			response.headers().firstValue("ETag").ifPresent(tag -> etags.put(uri.toString(), tag));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (IOException e) {
+			System.out.println("Replay call " + endpoint + " failed: " + e.getMessage());
+			status = -1;
+			bytes = 0;
+		}
+		endpoints.computeIfAbsent(endpoint, k -> new EndpointStats()).add(status,
+				(System.nanoTime() - start) / 1000, event.optLong("durationMs"), bytes);
+	}
+
+	private static JSONObject directorySizes(Path directory) throws IOException {
+		JSONObject sizes = new JSONObject();
+		if (!Files.isDirectory(directory)) {
+			return sizes;
+		}
+		long total = 0;
+		try (Stream<Path> entries = Files.list(directory)) {
+			for (Path entry : (Iterable<Path>) entries::iterator) {
+				long size = sizeOf(entry);
+				sizes.put(entry.getFileName().toString(), size);
+				total += size;
+			}
+		}
+		sizes.put("total", total);
+		return sizes;
+	}
+
+	private static long sizeOf(Path path) throws IOException {
+		try (Stream<Path> files = Files.walk(path)) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+		}
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		try (Stream<Path> files = Files.walk(path)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	private static long[] toArray(List<Long> values) {
+		long[] array = new long[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+}
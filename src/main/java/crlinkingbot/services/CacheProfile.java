@@ -0,0 +1,112 @@
+package crlinkingbot.services;
+
+import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Selectable JDA cache configurations. The bot only needs the invoking
+ * member's roles, which Discord sends with every slash command interaction,
+ * and channel lookups by ID. Everything else JDA caches by default is unused.
+ */
+public enum CacheProfile {
+	/**
+	 * JDA defaults with the member intent, as the bot always ran
+	 */
+	DEFAULT(EnumSet.of(GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT,
+			GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.GUILD_MEMBERS), null, null,
+			EnumSet.noneOf(CacheFlag.class)),
+
+	/**
+	 * Keeps the member intent but caches only members JDA needs internally (voice
+	 * and owner), never chunks member lists and drops presence, emoji, sticker
+	 * and scheduled event caches
+	 */
+	LEAN(EnumSet.of(GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT,
+			GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.GUILD_MEMBERS), MemberCachePolicy.DEFAULT,
+			ChunkingFilter.NONE, EnumSet.of(CacheFlag.ACTIVITY, CacheFlag.CLIENT_STATUS, CacheFlag.ONLINE_STATUS,
+					CacheFlag.EMOJI, CacheFlag.STICKER, CacheFlag.SCHEDULED_EVENTS)),
+
+	/**
+	 * No member cache and no privileged member intent. Only guilds, channels and
+	 * roles are cached.
+	 */
+	MINIMAL(EnumSet.of(GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT), MemberCachePolicy.NONE,
+			ChunkingFilter.NONE, EnumSet.of(CacheFlag.ACTIVITY, CacheFlag.CLIENT_STATUS, CacheFlag.ONLINE_STATUS,
+					CacheFlag.EMOJI, CacheFlag.STICKER, CacheFlag.SCHEDULED_EVENTS, CacheFlag.VOICE_STATE));
+
+	private final Set<GatewayIntent> intents;
+	private final MemberCachePolicy memberCachePolicy;
+	private final ChunkingFilter chunkingFilter;
+	private final Set<CacheFlag> disabledFlags;
+
+	CacheProfile(Set<GatewayIntent> intents, MemberCachePolicy memberCachePolicy, ChunkingFilter chunkingFilter,
+			Set<CacheFlag> disabledFlags) {
+		this.intents = intents;
+		this.memberCachePolicy = memberCachePolicy;
+		this.chunkingFilter = chunkingFilter;
+		this.disabledFlags = disabledFlags;
+	}
+
+	/**
+	 * Read the profile from the CACHE_PROFILE environment variable
+	 */
+	public static CacheProfile fromEnv() {
+		String value = System.getenv("CACHE_PROFILE");
+		if (value == null || value.isEmpty()) {
+			return DEFAULT;
+		}
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Invalid CACHE_PROFILE value: " + value + ", using DEFAULT");
+			return DEFAULT;
+		}
+	}
+
+	/**
+	 * Create a JDA builder with this profile applied
+	 */
+	public JDABuilder createBuilder(String token) {
+		JDABuilder builder = JDABuilder.createDefault(token).enableIntents(intents);
+		if (!intents.contains(GatewayIntent.GUILD_MESSAGE_REACTIONS)) {
+			builder.disableIntents(GatewayIntent.GUILD_MESSAGE_REACTIONS);
+		}
+		if (memberCachePolicy != null) {
+			builder.setMemberCachePolicy(memberCachePolicy);
+		}
+		if (chunkingFilter != null) {
+			builder.setChunkingFilter(chunkingFilter);
+		}
+		if (!disabledFlags.isEmpty()) {
+			builder.disableCache(disabledFlags);
+		}
+		return builder;
+	}
+
+	/**
+	 * Create a shard manager builder with this profile applied
+	 */
+	public DefaultShardManagerBuilder createShardManagerBuilder(String token) {
+		DefaultShardManagerBuilder builder = DefaultShardManagerBuilder.createDefault(token).enableIntents(intents);
+		if (!intents.contains(GatewayIntent.GUILD_MESSAGE_REACTIONS)) {
+			builder.disableIntents(GatewayIntent.GUILD_MESSAGE_REACTIONS);
+		}
+		if (memberCachePolicy != null) {
+			builder.setMemberCachePolicy(memberCachePolicy);
+		}
+		if (chunkingFilter != null) {
+			builder.setChunkingFilter(chunkingFilter);
+		}
+		if (!disabledFlags.isEmpty()) {
+			builder.disableCache(disabledFlags);
+		}
+		return builder;
+	}
+}
@@ -0,0 +1,247 @@
+package crlinkingbot.services;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Access to the Discord connection, either a single JDA instance or a shard
+ * manager. Channel lookups are routed to the shard that owns the guild, which
+ * Discord derives from the guild ID, so they cost the same regardless of the
+ * number of shards.
+ */
+public class DiscordGateway {
+	private final JDA jda;
+	private final ShardManager shardManager;
+	private final CacheProfile cacheProfile;
+
+	private DiscordGateway(JDA jda, ShardManager shardManager, CacheProfile cacheProfile) {
+		this.jda = jda;
+		this.shardManager = shardManager;
+		this.cacheProfile = cacheProfile;
+	}
+
+	/**
+	 * Gateway backed by a single, unsharded JDA instance
+	 */
+	public static DiscordGateway single(JDA jda, CacheProfile cacheProfile) {
+		return new DiscordGateway(jda, null, cacheProfile);
+	}
+
+	/**
+	 * Gateway backed by a shard manager
+	 */
+	public static DiscordGateway sharded(ShardManager shardManager, CacheProfile cacheProfile) {
+		return new DiscordGateway(null, shardManager, cacheProfile);
+	}
+
+	/**
+	 * Gateway without a Discord connection, for smoke tests and local API
+	 * development. No shard ever becomes ready, so the API stays warming up.
+	 */
+	public static DiscordGateway stub(CacheProfile cacheProfile) {
+		return new DiscordGateway(null, null, cacheProfile);
+	}
+
+	/**
+	 * Whether the bot runs without a Discord connection
+	 */
+	public boolean isStub() {
+		return jda == null && shardManager == null;
+	}
+
+	/**
+	 * Whether the bot runs with a shard manager
+	 */
+	public boolean isSharded() {
+		return shardManager != null;
+	}
+
+	/**
+	 * Register event listeners after the connection was started
+	 */
+	public void addEventListener(Object... listeners) {
+		if (isSharded()) {
+			shardManager.addEventListener(listeners);
+		} else if (!isStub()) {
+			jda.addEventListener(listeners);
+		}
+	}
+
+	/**
+	 * Get all JDA instances, one per shard
+	 */
+	public List<JDA> getShards() {
+		if (isStub()) {
+			return List.of();
+		}
+		return isSharded() ? shardManager.getShards() : List.of(jda);
+	}
+
+	/**
+	 * Get the shard that receives events for a guild
+	 *
+	 * @param guildId The guild ID
+	 * @return The owning shard, or null if the guild ID is not a snowflake or the
+	 *         shard has not been created yet
+	 */
+	public JDA getShardForGuild(String guildId) {
+		if (!isSharded()) {
+			return jda;
+		}
+		int shardId = shardIdForGuild(guildId);
+		return shardId < 0 ? null : shardManager.getShardById(shardId);
+	}
+
+	/**
+	 * Compute the shard ID for a guild with Discord's sharding formula:
+	 * (guild_id >> 22) % num_shards
+	 *
+	 * @return The shard ID, or -1 if the guild ID is not a snowflake
+	 */
+	private int shardIdForGuild(String guildId) {
+		int shardsTotal = shardManager.getShardsTotal();
+		if (guildId == null || shardsTotal <= 0) {
+			return -1;
+		}
+		try {
+			return (int) ((Long.parseUnsignedLong(guildId) >>> 22) % shardsTotal);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Resolve a message channel
+	 *
+	 * @param guildId   The guild the channel belongs to, used to pick the shard
+	 * @param channelId The channel ID
+	 * @return The channel, or null if it is unknown
+	 */
+	public MessageChannelUnion getMessageChannel(String guildId, String channelId) {
+		JDA shard = getShardForGuild(guildId);
+		if (shard != null) {
+			return shard.getChannelById(MessageChannelUnion.class, channelId);
+		}
+
+		// Unknown guild, fall back to asking every shard
+		for (JDA candidate : getShards()) {
+			MessageChannelUnion channel = candidate.getChannelById(MessageChannelUnion.class, channelId);
+			if (channel != null) {
+				return channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the shard owning a guild is connected and has its cache loaded
+	 */
+	public boolean isGuildReady(String guildId) {
+		if (isSharded() && shardIdForGuild(guildId) < 0) {
+			// Unknown guild, lookups fall back to scanning all shards
+			return getReadyShardCount() > 0;
+		}
+		JDA shard = getShardForGuild(guildId);
+		return shard != null && shard.getStatus() == JDA.Status.CONNECTED;
+	}
+
+	/**
+	 * Number of shards that are connected
+	 */
+	public int getReadyShardCount() {
+		int ready = 0;
+		for (JDA shard : getShards()) {
+			if (shard.getStatus() == JDA.Status.CONNECTED) {
+				ready++;
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Readiness and gateway latency of every shard
+	 */
+	public JSONArray getShardStatus() {
+		JSONArray shards = new JSONArray();
+		for (JDA shard : getShards()) {
+			JSONObject json = new JSONObject();
+			json.put("shardId", shard.getShardInfo().getShardId());
+			json.put("status", shard.getStatus().name());
+			json.put("ready", shard.getStatus() == JDA.Status.CONNECTED);
+			json.put("gatewayPing", shard.getGatewayPing());
+			json.put("guilds", shard.getGuildCache().size());
+			shards.put(json);
+		}
+		return shards;
+	}
+
+	/**
+	 * Entity cache sizes of a single shard
+	 */
+	public static JSONObject getCacheStats(JDA shard) {
+		long members = 0;
+		for (Guild guild : shard.getGuildCache()) {
+			members += guild.getMemberCache().size();
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("guilds", shard.getGuildCache().size());
+		json.put("textChannels", shard.getTextChannelCache().size());
+		json.put("roles", shard.getRoleCache().size());
+		json.put("users", shard.getUserCache().size());
+		json.put("members", members);
+		return json;
+	}
+
+	/**
+	 * Entity cache sizes summed over all shards, plus JVM heap usage
+	 */
+	public JSONObject getCacheStats() {
+		long guilds = 0;
+		long textChannels = 0;
+		long roles = 0;
+		long users = 0;
+		long members = 0;
+		for (JDA shard : getShards()) {
+			JSONObject stats = getCacheStats(shard);
+			guilds += stats.getLong("guilds");
+			textChannels += stats.getLong("textChannels");
+			roles += stats.getLong("roles");
+			users += stats.getLong("users");
+			members += stats.getLong("members");
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		JSONObject heap = new JSONObject();
+		heap.put("usedBytes", runtime.totalMemory() - runtime.freeMemory());
+		heap.put("committedBytes", runtime.totalMemory());
+		heap.put("maxBytes", runtime.maxMemory());
+
+		JSONObject json = new JSONObject();
+		json.put("profile", cacheProfile.name());
+		json.put("guilds", guilds);
+		json.put("textChannels", textChannels);
+		json.put("roles", roles);
+		json.put("users", users);
+		json.put("members", members);
+		json.put("heap", heap);
+		return json;
+	}
+
+	/**
+	 * Shut down all Discord connections
+	 */
+	public void shutdown() {
+		if (isSharded()) {
+			shardManager.shutdown();
+		} else if (!isStub()) {
+			jda.shutdown();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package crlinkingbot.services;
+
+import crlinkingbot.util.EnvUtil;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of recent successful lostcrmanager links, keyed by player tag
+ * and Discord user. A duplicate or retried request for the same pair is
+ * answered from here instead of calling the API again. Entries expire after a
+ * TTL and can be invalidated, e.g. after an account was unlinked.
+ */
+public class LinkResultCache {
+	private final int maxEntries;
+	private final long ttlMillis;
+	// Insertion order is link order, so the eldest entry expires first
+	private final LinkedHashMap<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private static class Entry {
+		final String linkResult;
+		final long storedAt;
+
+		Entry(JSONObject linkResult, long storedAt) {
+			this.linkResult = linkResult.toString();
+			this.storedAt = storedAt;
+		}
+	}
+
+	/**
+	 * Constructor reads size and TTL from the environment
+	 */
+	public LinkResultCache() {
+		this(EnvUtil.getInt("LINK_CACHE_SIZE", 1000), EnvUtil.getInt("LINK_CACHE_TTL_MINUTES", 30) * 60_000L);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxEntries Maximum number of cached links
+	 * @param ttlMillis  How long a link result is reused
+	 */
+	public LinkResultCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Get the cached link result for a tag and user
+	 *
+	 * @return A copy of the lostcrmanager response, or null if not cached
+	 */
+	public JSONObject get(String playerTag, String userId) {
+		synchronized (this) {
+			evictExpired();
+			Entry entry = entries.get(key(playerTag, userId));
+			if (entry != null) {
+				hits.incrementAndGet();
+				return new JSONObject(entry.linkResult);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remember a successful link result
+	 */
+	public synchronized void put(String playerTag, String userId, JSONObject linkResult) {
+		String key = key(playerTag, userId);
+		// Re-insert so the map stays ordered by link time
+		entries.remove(key);
+		entries.put(key, new Entry(linkResult, System.currentTimeMillis()));
+		Iterator<String> it = entries.keySet().iterator();
+		while (entries.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Forget cached links matching the given filters
+	 *
+	 * @param playerTag Tag filter, or null for any tag
+	 * @param userId    User filter, or null for any user
+	 * @return Number of removed entries
+	 */
+	public synchronized int invalidate(String playerTag, String userId) {
+		String tagPrefix = playerTag != null ? normalizeTag(playerTag) + "|" : null;
+		String userSuffix = userId != null ? "|" + userId : null;
+		int removed = 0;
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if ((tagPrefix == null || key.startsWith(tagPrefix)) && (userSuffix == null || key.endsWith(userSuffix))) {
+				it.remove();
+				removed++;
+			}
+		}
+		invalidations.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * Get cache statistics
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		synchronized (this) {
+			stats.put("entries", entries.size());
+		}
+		long hitCount = hits.get();
+		long missCount = misses.get();
+		stats.put("maxEntries", maxEntries);
+		stats.put("ttlMinutes", ttlMillis / 60_000);
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+		stats.put("invalidations", invalidations.get());
+		return stats;
+	}
+
+	private static String key(String playerTag, String userId) {
+		return normalizeTag(playerTag) + "|" + userId;
+	}
+
+	private static String normalizeTag(String playerTag) {
+		String tag = playerTag.trim().toUpperCase();
+		return tag.startsWith("#") ? tag : "#" + tag;
+	}
+
+	private void evictExpired() {
+		long cutoff = System.currentTimeMillis() - ttlMillis;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext() && it.next().getValue().storedAt < cutoff) {
+			it.remove();
+		}
+	}
+}
@@ -1,20 +1,32 @@
 package crlinkingbot.services;
 
 import crlinkingbot.Bot;
+import crlinkingbot.util.EnvUtil;
+import crlinkingbot.util.TimingWheel;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * HTTP client for calling the lostcrmanager REST API.
  */
 public class LostCRManagerClient {
-    
+    // Whole-call deadline, enforced by the timing wheel; the request timeout also aborts the exchange
+    private static final int TIMEOUT_SECONDS = EnvUtil.getInt("LOSTCRMANAGER_TIMEOUT_SECONDS", 20);
+    // Shared so connections to lostcrmanager are reused
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
     /**
      * Link a player tag to a Discord user via the lostcrmanager API
      * 
@@ -33,40 +45,33 @@ public class LostCRManagerClient {
             requestBody.put("userId", userId);
             requestBody.put("source", "ticket-autolink");
             
-            // Create HTTP connection
-            URL url = new URL(apiUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + Bot.getLostCRManagerSecret());
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            
-            // Send request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+            // Send request; the deadline covers the whole call and runs on the shared timing wheel
+            HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl))
+                    .timeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", "Bearer " + Bot.getLostCRManagerSecret())
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+                    .build();
+            CompletableFuture<HttpResponse<String>> call = HTTP_CLIENT.sendAsync(request,
+                    HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            TimingWheel.Timeout deadline = TimingWheel.getDefault().schedule(
+                    () -> call.completeExceptionally(new HttpTimeoutException(
+                            "lostcrmanager did not answer within " + TIMEOUT_SECONDS + "s")),
+                    TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            HttpResponse<String> response;
+            try {
+                response = call.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                deadline.cancel();
             }
-            
+
             // Read response
-            int responseCode = connection.getResponseCode();
+            int responseCode = response.statusCode();
             System.out.println("API response code: " + responseCode);
-            
-            StringBuilder response = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(
-                            responseCode >= 200 && responseCode < 300 
-                                    ? connection.getInputStream() 
-                                    : connection.getErrorStream(),
-                            StandardCharsets.UTF_8))) {
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
-                }
-            }
-            
-            String responseBody = response.toString();
+
+            String responseBody = response.body().trim();
             System.out.println("API response body: " + responseBody);
             
             // Parse response
@@ -0,0 +1,261 @@
+package crlinkingbot.services;
+
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.util.EnvUtil;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the Discord messages of queued requests. Requests in the same
+ * channel are fetched together through history windows of up to 100 messages
+ * instead of one call per message, and resolved messages are kept for a short
+ * time so the result of a request does not fetch its message again.
+ */
+public class MessageResolver {
+	// Discord returns at most 100 messages per history call
+	private static final int WINDOW_SIZE = 100;
+	// Windows fetched per channel before falling back to single lookups
+	private static final int MAX_WINDOWS_PER_CHANNEL = 5;
+
+	private final DiscordGateway discord;
+	private final int maxEntries;
+	private final long ttlMillis;
+	// Insertion order is fetch order, so the eldest entry expires first
+	private final LinkedHashMap<String, CachedMessage> cache;
+
+	private final AtomicLong windowCalls = new AtomicLong();
+	private final AtomicLong windowHits = new AtomicLong();
+	private final AtomicLong singleCalls = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	private static class CachedMessage {
+		final Message message;
+		final long fetchedAt;
+
+		CachedMessage(Message message, long fetchedAt) {
+			this.message = message;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	/**
+	 * Constructor reads the cache limits from the environment
+	 */
+	public MessageResolver(DiscordGateway discord) {
+		this.discord = discord;
+		this.maxEntries = EnvUtil.getInt("MESSAGE_CACHE_SIZE", 1000);
+		this.ttlMillis = EnvUtil.getInt("MESSAGE_CACHE_TTL_SECONDS", 300) * 1000L;
+		this.cache = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Resolve the message of a single request
+	 *
+	 * @return The message, or null if the channel or message does not exist
+	 */
+	public Message resolve(LinkingRequest request) {
+		Message cached = getCached(request.getMessageId());
+		if (cached != null) {
+			return cached;
+		}
+		MessageChannelUnion channel = discord.getMessageChannel(request.getGuildId(), request.getChannelId());
+		if (channel == null) {
+			return null;
+		}
+		return retrieveSingle(channel, request.getMessageId());
+	}
+
+	/**
+	 * Resolve the messages of several requests with as few Discord calls as
+	 * possible
+	 *
+	 * @return Messages by message ID; deleted messages and unknown channels are
+	 *         missing
+	 */
+	public Map<String, Message> resolveAll(Collection<LinkingRequest> requests) {
+		Map<String, Message> resolved = new HashMap<>();
+		Map<String, List<LinkingRequest>> byChannel = new LinkedHashMap<>();
+		for (LinkingRequest request : requests) {
+			Message cached = getCached(request.getMessageId());
+			if (cached != null) {
+				resolved.put(request.getMessageId(), cached);
+			} else {
+				byChannel.computeIfAbsent(request.getChannelId(), k -> new ArrayList<>()).add(request);
+			}
+		}
+
+		for (List<LinkingRequest> channelRequests : byChannel.values()) {
+			LinkingRequest first = channelRequests.get(0);
+			MessageChannelUnion channel = discord.getMessageChannel(first.getGuildId(), first.getChannelId());
+			if (channel == null) {
+				System.out.println("Warning: Channel " + first.getChannelId() + " not found for "
+						+ channelRequests.size() + " requests");
+				continue;
+			}
+			resolveChannel(channel, channelRequests, resolved);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Forget a cached message, e.g. after it was edited or deleted
+	 */
+	public synchronized void invalidate(String messageId) {
+		cache.remove(messageId);
+	}
+
+	/**
+	 * Get resolver statistics
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		synchronized (this) {
+			stats.put("cachedMessages", cache.size());
+		}
+		stats.put("windowCalls", windowCalls.get());
+		stats.put("windowHits", windowHits.get());
+		stats.put("singleCalls", singleCalls.get());
+		stats.put("cacheHits", cacheHits.get());
+		return stats;
+	}
+
+	/**
+	 * Fetch the messages of one channel. A single message is looked up
+	 * directly, several are read from history windows starting just before the
+	 * oldest one. A message that falls inside a fetched window but is not in it
+	 * was deleted.
+	 */
+	private void resolveChannel(MessageChannelUnion channel, List<LinkingRequest> requests,
+			Map<String, Message> resolved) {
+		TreeSet<Long> wanted = new TreeSet<>();
+		for (LinkingRequest request : requests) {
+			try {
+				wanted.add(Long.parseUnsignedLong(request.getMessageId()));
+			} catch (NumberFormatException e) {
+				System.out.println("Warning: Invalid message ID " + request.getMessageId());
+			}
+		}
+		if (wanted.size() == 1) {
+			String messageId = Long.toUnsignedString(wanted.first());
+			Message message = retrieveSingle(channel, messageId);
+			if (message != null) {
+				resolved.put(messageId, message);
+			}
+			return;
+		}
+
+		int windows = 0;
+		while (!wanted.isEmpty() && windows++ < MAX_WINDOWS_PER_CHANNEL) {
+			// Snowflakes are ordered by time, "after oldest - 1" includes the oldest
+			String after = Long.toUnsignedString(wanted.first() - 1);
+			List<Message> messages;
+			try {
+				messages = retrieveWindow(channel, after);
+				windowCalls.incrementAndGet();
+			} catch (Exception e) {
+				// E.g. no permission to read the history, look the messages up one by one
+				System.out.println("Warning: Could not read history of channel " + channel.getId() + " - "
+						+ e.getMessage());
+				break;
+			}
+			if (messages.isEmpty()) {
+				// Nothing left in the channel, the remaining messages were deleted
+				wanted.clear();
+				break;
+			}
+
+			long newest = 0;
+			for (Message message : messages) {
+				long id = message.getIdLong();
+				newest = Math.max(newest, id);
+				if (wanted.remove(id)) {
+					resolved.put(message.getId(), message);
+					put(message);
+					windowHits.incrementAndGet();
+				}
+			}
+			// Everything up to the newest fetched message was covered by this window
+			wanted.headSet(newest, true).clear();
+			if (messages.size() < WINDOW_SIZE) {
+				wanted.clear();
+			}
+		}
+
+		// Messages too far apart for the window budget
+		for (Long id : wanted) {
+			String messageId = Long.toUnsignedString(id);
+			Message message = retrieveSingle(channel, messageId);
+			if (message != null) {
+				resolved.put(messageId, message);
+			}
+		}
+	}
+
+	private Message retrieveSingle(MessageChannelUnion channel, String messageId) {
+		singleCalls.incrementAndGet();
+		try {
+			Message message = retrieveMessage(channel, messageId);
+			put(message);
+			return message;
+		} catch (Exception e) {
+			System.out.println("Warning: Could not retrieve message " + messageId + " in channel " + channel.getId()
+					+ " - " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Fetch the window of messages following a message ID from Discord
+	 */
+	protected List<Message> retrieveWindow(MessageChannelUnion channel, String after) {
+		MessageHistory history = channel.getHistoryAfter(after, WINDOW_SIZE).complete();
+		return history.getRetrievedHistory();
+	}
+
+	/**
+	 * Fetch a single message from Discord
+	 */
+	protected Message retrieveMessage(MessageChannelUnion channel, String messageId) {
+		return channel.retrieveMessageById(messageId).complete();
+	}
+
+	private synchronized Message getCached(String messageId) {
+		evictExpired();
+		CachedMessage cached = cache.get(messageId);
+		if (cached == null) {
+			return null;
+		}
+		cacheHits.incrementAndGet();
+		return cached.message;
+	}
+
+	private synchronized void put(Message message) {
+		cache.remove(message.getId());
+		cache.put(message.getId(), new CachedMessage(message, System.currentTimeMillis()));
+		Iterator<String> it = cache.keySet().iterator();
+		while (cache.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private void evictExpired() {
+		long cutoff = System.currentTimeMillis() - ttlMillis;
+		Iterator<CachedMessage> it = cache.values().iterator();
+		while (it.hasNext() && it.next().fetchedAt < cutoff) {
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package crlinkingbot.services;
+
+import crlinkingbot.images.ScreenshotIndex;
+import crlinkingbot.queue.DeadLetterStore;
+import crlinkingbot.queue.HistoryRecord;
+import crlinkingbot.queue.HistoryStore;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.queue.RequestTracer;
+import crlinkingbot.util.MessageUtil;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+import org.json.JSONObject;
+
+/**
+ * Applies the outcome of processing a linking request: updates reactions,
+ * links the player, posts the result in the ticket channel and re-queues or
+ * dead-letters failed requests. Shared by the queue API and the embedded
+ * worker pool, so both paths behave the same.
+ */
+public class ResultProcessor {
+	public static final int MAX_RETRIES = 3;
+
+	private final RequestQueue requestQueue;
+	private final DeadLetterStore deadLetterStore;
+	private final HistoryStore historyStore;
+	private final DiscordGateway discord;
+	private final MessageResolver messageResolver;
+	private final ScreenshotIndex screenshotIndex;
+	private final LinkResultCache linkResultCache;
+
+	/**
+	 * Response to report back to whoever submitted the result
+	 */
+	public static class Outcome {
+		private final int statusCode;
+		private final JSONObject body;
+
+		Outcome(int statusCode, JSONObject body) {
+			this.statusCode = statusCode;
+			this.body = body;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public JSONObject getBody() {
+			return body;
+		}
+	}
+
+	/**
+	 * Constructor
+	 */
+	public ResultProcessor(RequestQueue requestQueue, DeadLetterStore deadLetterStore, HistoryStore historyStore,
+			DiscordGateway discord, MessageResolver messageResolver, ScreenshotIndex screenshotIndex) {
+		this.requestQueue = requestQueue;
+		this.deadLetterStore = deadLetterStore;
+		this.historyStore = historyStore;
+		this.discord = discord;
+		this.messageResolver = messageResolver;
+		this.screenshotIndex = screenshotIndex;
+		this.linkResultCache = new LinkResultCache();
+	}
+
+	/**
+	 * Get the cache of recent lostcrmanager links
+	 */
+	public LinkResultCache getLinkResultCache() {
+		return linkResultCache;
+	}
+
+	/**
+	 * Complete a queued request without a worker if its screenshots were seen
+	 * before
+	 *
+	 * @return true if the request was completed from the screenshot index
+	 */
+	public boolean completeFromIndex(LinkingRequest queued) {
+		ScreenshotIndex.Match match = screenshotIndex.findMatch(queued);
+		if (match == null) {
+			return false;
+		}
+		// A worker may have claimed and completed it in the meantime
+		LinkingRequest request = requestQueue.removeById(queued.getId());
+		if (request == null) {
+			return false;
+		}
+
+		System.out.println("Completing request " + request.getId() + " from screenshot index with tag "
+				+ match.getPlayerTag() + " (" + request.getImageHashes().size() + " known screenshots)");
+		process(request, true, match.getPlayerTag(), null, match.getConfidence());
+		return true;
+	}
+
+	/**
+	 * Apply a result to a request that was removed from the queue
+	 *
+	 * @param request      The request, already removed from the queue
+	 * @param success      Whether processing succeeded
+	 * @param playerTag    Extracted player tag, may be null
+	 * @param errorMessage Error description for failures, may be null
+	 * @param confidence   How sure the submitter is about the tag, between 0
+	 *                     and 1
+	 * @return The response for the submitter
+	 */
+	public Outcome process(LinkingRequest request, boolean success, String playerTag, String errorMessage,
+			double confidence) {
+		RequestTracer tracer = requestQueue.getTracer();
+		tracer.record(request.getId(), RequestTracer.Event.RESULT_RECEIVED,
+				success ? (playerTag != null ? "tag " + playerTag : "success") : errorMessage);
+
+		// Get Discord message
+		MessageChannelUnion channel = discord.getMessageChannel(request.getGuildId(), request.getChannelId());
+		if (channel == null) {
+			System.out.println("Channel not found: " + request.getChannelId());
+			tracer.record(request.getId(), RequestTracer.Event.DROPPED, "Channel not found");
+			historyStore.record(HistoryRecord.of(request, HistoryRecord.OUTCOME_DROPPED, "Channel not found", null));
+			JSONObject error = new JSONObject();
+			error.put("success", false);
+			error.put("error", "Channel not found");
+			return new Outcome(500, error);
+		}
+
+		// Usually still cached from the pending listing
+		Message message = messageResolver.resolve(request);
+		if (message == null) {
+			System.out.println("Message not found: " + request.getMessageId());
+			tracer.record(request.getId(), RequestTracer.Event.DROPPED, "Message not found");
+			historyStore.record(HistoryRecord.of(request, HistoryRecord.OUTCOME_DROPPED, "Message not found", null));
+			JSONObject error = new JSONObject();
+			error.put("success", false);
+			error.put("error", "Message not found");
+			return new Outcome(500, error);
+		}
+
+		// Process based on success/failure
+		if (success) {
+			// Success - remove processing reaction, add success reaction
+			message.removeReaction(Emoji.fromUnicode("⏳")).queue();
+			message.addReaction(Emoji.fromUnicode("✅")).queue();
+
+			// Link player if tag provided
+			if (playerTag != null && !playerTag.isEmpty()) {
+				// A duplicate or retried request for the same pair needs no second API call
+				JSONObject linkResult = linkResultCache.get(playerTag, request.getUserId());
+				if (linkResult == null) {
+					tracer.record(request.getId(), RequestTracer.Event.LINK_STARTED);
+					linkResult = LostCRManagerClient.linkPlayer(playerTag, request.getUserId());
+					if (linkResult.getBoolean("success")) {
+						linkResultCache.put(playerTag, request.getUserId(), linkResult);
+					}
+					tracer.record(request.getId(), RequestTracer.Event.LINK_FINISHED,
+							linkResult.getBoolean("success") ? "linked" : "failed");
+				} else {
+					tracer.record(request.getId(), RequestTracer.Event.LINK_FINISHED, "cached");
+				}
+
+				if (linkResult.getBoolean("success")) {
+					System.out.println(linkResult.toString());
+					// Remember the screenshots, a repost completes without the model
+					screenshotIndex.record(request, playerTag, confidence);
+					String playerName = linkResult.getJSONObject("data").getString("playerName");
+					String successMsg = String.format(
+							"Account wurde erfolgreich verknüpft!\n\n**Spieler-Name:** `%s`\n"
+									+ "**Spieler-Tag:** `%s`\n" + "**Discord User:** <@%s>",
+							playerName, playerTag, request.getUserId());
+					MessageUtil.sendSuccess(channel, "Account verknüpft", successMsg);
+
+					String individualMsg = "Hallo <@" + request.getUserId() + ">,\r\n"
+							+ "die Verlinkung mit unserem **Tracking-Bot** wurde erfolgreich abgeschlossen!\r\n"
+							+ "\r\n"
+							+ "Du befindest dich jetzt **in unserer Warteschlange** für den Clanbeitritt.\r\n"
+							+ "Die Reihenfolge des Beitritts und der Clan, dem wir dich zuordnen werden, richten sich nach deiner **Leistung im Ranked** – diese hat **Priorität vor den Trophäen**.\r\n"
+							+ "Zudem fließt unsere Einschätzung mit ein.\r\n"
+							+ "Es lohnt sich also, weiter zu **grinden**, um deine Chancen zu erhöhen. <:Peepo_Stonks:1312189892008087563>\r\n"
+							+ "\r\n"
+							+ "Sobald du **in einem unserer Clans bist**, greift unser **internes Auf- und Abstiegssystem**. Dieses wird **zu Beginn jeder Season** angewendet und basiert auf **deiner Leistung der beendeten Season**. Dadurch sind innerhalb der Clan-Family **Auf- und Abstiege** zwischen den Clans möglich.\r\n"
+							+ "\r\n"
+							+ "Sobald du für einen Clanplatz ausgewählt wirst, **melden wir uns wieder bei dir**.\r\n"
+							+ "Das kann **schon bald**, je nach Aktivität der anderen Bewerber aber auch **etwas länger dauern**.\r\n"
+							+ "\r\n" + "Bleib aktiv und viel Erfolg beim Pushen!\r\n" + "LG die CR-Vize";
+
+					channel.sendMessage(individualMsg).queue();
+
+				} else {
+					String errorMsg = "Es gab einen Fehler beim Verknüpfen des Accounts. \nEin Vize muss sich manuell um die Anfrage kümmern.";
+					if (linkResult.has("data") && linkResult.getJSONObject("data").has("message")) {
+						errorMsg += "\n\n**Fehler:** " + linkResult.getJSONObject("data").getString("message");
+					}
+					MessageUtil.sendError(channel, "Verknüpfung fehlgeschlagen", errorMsg);
+				}
+			} else {
+				String successMsg = String.format(
+						"Anfrage wurde erfolgreich verarbeitet!\n\n" + "**Discord User:** <@%s>",
+						request.getUserId());
+				MessageUtil.sendSuccess(channel, "Verarbeitung erfolgreich", successMsg);
+			}
+
+			tracer.record(request.getId(), RequestTracer.Event.DISCORD_NOTIFIED);
+			requestQueue.getStatistics().recordCompleted();
+			tracer.record(request.getId(), RequestTracer.Event.COMPLETED);
+			historyStore.record(HistoryRecord.of(request, HistoryRecord.OUTCOME_COMPLETED, null, playerTag));
+
+			JSONObject response = new JSONObject();
+			response.put("success", true);
+			response.put("action", "completed");
+			response.put("message", "Player linked successfully");
+			return new Outcome(200, response);
+
+		} else {
+			// Failure - check retry count
+			if (request.getRetryCount() < MAX_RETRIES) {
+				// Re-queue for retry
+				request.incrementRetryCount();
+				requestQueue.enqueue(request);
+
+				System.out.println(
+						"Request re-queued for retry (" + request.getRetryCount() + "/" + MAX_RETRIES + ")");
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("action", "requeued");
+				response.put("message", "Request re-queued for retry (attempt " + request.getRetryCount() + "/"
+						+ MAX_RETRIES + ")");
+				return new Outcome(200, response);
+
+			} else {
+				// Max retries reached - final failure
+				message.removeReaction(Emoji.fromUnicode("⏳")).queue();
+				message.addReaction(Emoji.fromUnicode("❌")).queue();
+
+				String errorMsg = errorMessage != null ? errorMessage : "Die Verarbeitung ist fehlgeschlagen.";
+				errorMsg += "\n\n*Maximale Anzahl an Wiederholungsversuchen erreicht.*";
+				MessageUtil.sendError(channel, "Verarbeitung fehlgeschlagen", errorMsg);
+				tracer.record(request.getId(), RequestTracer.Event.DISCORD_NOTIFIED);
+
+				// Keep a record so staff can replay it later instead of redoing /link
+				deadLetterStore.add(request, errorMessage);
+				requestQueue.getStatistics().recordFailed();
+				tracer.record(request.getId(), RequestTracer.Event.DEAD_LETTERED, errorMessage);
+				historyStore.record(
+						HistoryRecord.of(request, HistoryRecord.OUTCOME_DEAD_LETTERED, errorMessage, playerTag));
+
+				JSONObject response = new JSONObject();
+				response.put("success", true);
+				response.put("action", "failed");
+				response.put("message", "Request failed after max retries");
+				return new Outcome(200, response);
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package crlinkingbot.util;
+
+/**
+ * Helpers for reading optional configuration from environment variables.
+ */
+public class EnvUtil {
+
+	/**
+	 * Read a positive integer from the environment, falling back to a default
+	 *
+	 * @param name         The environment variable name
+	 * @param defaultValue Value used if the variable is unset or invalid
+	 * @return The configured value or the default
+	 */
+	public static int getInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if (parsed > 0) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// Fall through to default
+		}
+		System.out.println("Invalid " + name + " value: " + value + ", using default " + defaultValue);
+		return defaultValue;
+	}
+
+	/**
+	 * Read a boolean flag from the environment, falling back to a default
+	 *
+	 * @param name         The environment variable name
+	 * @param defaultValue Value used if the variable is unset
+	 * @return true if the variable is "true", "1" or "yes"
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isEmpty()) {
+			return defaultValue;
+		}
+		value = value.trim();
+		return value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes");
+	}
+}
@@ -0,0 +1,66 @@
+package crlinkingbot.util;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Ring of the most recent duration samples, reported as percentiles
+ */
+public class LatencySamples {
+	private final long[] samples;
+	private int count;
+	private int next;
+
+	/**
+	 * Constructor
+	 *
+	 * @param size Number of recent samples the percentiles are taken from
+	 */
+	public LatencySamples(int size) {
+		this.samples = new long[Math.max(1, size)];
+	}
+
+	/**
+	 * Add a sample, replacing the oldest one once the ring is full
+	 */
+	public synchronized void add(long value) {
+		samples[next] = value;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+	}
+
+	/**
+	 * Get the sample count and, if there are samples, p50, p90, p99 and max
+	 */
+	public JSONObject toJSON() {
+		long[] copy;
+		synchronized (this) {
+			copy = Arrays.copyOf(samples, count);
+		}
+		return summarize(copy);
+	}
+
+	/**
+	 * Get the count, p50, p90, p99 and max of the given values
+	 *
+	 * @param sorted The values, sorted in place
+	 */
+	public static JSONObject summarize(long[] sorted) {
+		Arrays.sort(sorted);
+		JSONObject json = new JSONObject();
+		json.put("samples", sorted.length);
+		if (sorted.length > 0) {
+			json.put("p50", percentile(sorted, 0.50));
+			json.put("p90", percentile(sorted, 0.90));
+			json.put("p99", percentile(sorted, 0.99));
+			json.put("max", sorted[sorted.length - 1]);
+		}
+		return json;
+	}
+
+	private static long percentile(long[] sorted, double quantile) {
+		int index = (int) Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
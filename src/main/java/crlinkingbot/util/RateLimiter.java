@@ -0,0 +1,137 @@
+package crlinkingbot.util;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token-bucket rate limiter with one bucket per key.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time at which it will
+ * be full again (the "theoretical arrival time" of the generic cell rate
+ * algorithm). Taking a token moves that time forward by one refill interval
+ * with a compare-and-set, which is equivalent to a token bucket of the
+ * configured capacity that refills continuously.
+ */
+public class RateLimiter {
+	private static final int MAX_TRACKED_KEYS = 10_000;
+	private static final List<RateLimiter> REGISTRY = new CopyOnWriteArrayList<>();
+
+	private final String name;
+	private final int capacity;
+	private final long refillIntervalNanos;
+	private final long burstNanos;
+	private final Map<String, AtomicLong> buckets;
+	private final AtomicLong allowed;
+	private final AtomicLong throttled;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name         Name used in logs and statistics
+	 * @param capacity     Maximum burst size, also the number of tokens refilled
+	 *                     per period
+	 * @param periodMillis Time in which a full bucket is refilled
+	 */
+	public RateLimiter(String name, int capacity, long periodMillis) {
+		this.name = name;
+		this.capacity = capacity;
+		this.refillIntervalNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis) / capacity;
+		this.burstNanos = refillIntervalNanos * capacity;
+		this.buckets = new ConcurrentHashMap<>();
+		this.allowed = new AtomicLong();
+		this.throttled = new AtomicLong();
+		REGISTRY.add(this);
+	}
+
+	/**
+	 * Create a limiter allowing the number of calls per minute configured in an
+	 * environment variable
+	 */
+	public static RateLimiter perMinuteFromEnv(String name, String envName, int defaultPerMinute) {
+		int perMinute = EnvUtil.getInt(envName, defaultPerMinute);
+		System.out.println("Rate limit '" + name + "': " + perMinute + " per minute");
+		return new RateLimiter(name, perMinute, TimeUnit.MINUTES.toMillis(1));
+	}
+
+	/**
+	 * Try to take a token from the bucket of the given key
+	 *
+	 * @param key The caller identity, e.g. a user ID or remote address
+	 * @return 0 if the call is allowed, otherwise the number of milliseconds
+	 *         until a token becomes available
+	 */
+	public long tryAcquire(String key) {
+		AtomicLong bucket = buckets.get(key);
+		if (bucket == null) {
+			evictIdleBuckets();
+			bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+		}
+
+		while (true) {
+			long now = System.nanoTime();
+			long fullAt = bucket.get();
+			long next = (fullAt == Long.MIN_VALUE || fullAt - now < 0 ? now : fullAt) + refillIntervalNanos;
+			long overdraft = next - now - burstNanos;
+			if (overdraft > 0) {
+				throttled.incrementAndGet();
+				return Math.max(1, TimeUnit.NANOSECONDS.toMillis(overdraft));
+			}
+			if (bucket.compareAndSet(fullAt, next)) {
+				allowed.incrementAndGet();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Drop buckets that have fully refilled once too many keys are tracked. A
+	 * full bucket behaves exactly like a missing one.
+	 */
+	private void evictIdleBuckets() {
+		if (buckets.size() < MAX_TRACKED_KEYS) {
+			return;
+		}
+		long now = System.nanoTime();
+		buckets.values().removeIf(bucket -> {
+			long fullAt = bucket.get();
+			return fullAt == Long.MIN_VALUE || fullAt - now <= 0;
+		});
+	}
+
+	/**
+	 * Statistics of this limiter
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("capacity", capacity);
+		json.put("trackedKeys", buckets.size());
+		json.put("allowed", allowed.get());
+		json.put("throttled", throttled.get());
+		return json;
+	}
+
+	/**
+	 * Statistics of all limiters, keyed by name
+	 */
+	public static JSONObject allToJSON() {
+		JSONObject json = new JSONObject();
+		for (RateLimiter limiter : REGISTRY) {
+			json.put(limiter.name, limiter.toJSON());
+		}
+		return json;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+}
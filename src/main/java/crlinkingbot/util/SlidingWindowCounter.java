@@ -0,0 +1,52 @@
+package crlinkingbot.util;
+
+/**
+ * Counts events over a sliding window of up to an hour with one-second
+ * resolution. Recording an event is O(1); reading sums the buckets of the
+ * requested window.
+ */
+public class SlidingWindowCounter {
+	private static final int MAX_WINDOW_SECONDS = 3600;
+
+	// Ring of per-second counts, indexed by epoch second
+	private final long[] buckets = new long[MAX_WINDOW_SECONDS];
+	private final long[] bucketSeconds = new long[MAX_WINDOW_SECONDS];
+	private long total;
+
+	/**
+	 * Record one event at the current time
+	 */
+	public synchronized void increment() {
+		long second = System.currentTimeMillis() / 1000;
+		int index = (int) (second % MAX_WINDOW_SECONDS);
+		if (bucketSeconds[index] != second) {
+			// The bucket still holds a second that fell out of the window
+			bucketSeconds[index] = second;
+			buckets[index] = 0;
+		}
+		buckets[index]++;
+		total++;
+	}
+
+	/**
+	 * Number of events in the last {@code seconds} seconds, at most an hour
+	 */
+	public synchronized long sum(int seconds) {
+		long now = System.currentTimeMillis() / 1000;
+		long oldest = now - Math.min(seconds, MAX_WINDOW_SECONDS) + 1;
+		long sum = 0;
+		for (int i = 0; i < MAX_WINDOW_SECONDS; i++) {
+			if (bucketSeconds[i] >= oldest && bucketSeconds[i] <= now) {
+				sum += buckets[i];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Number of events since the counter was created
+	 */
+	public synchronized long total() {
+		return total;
+	}
+}
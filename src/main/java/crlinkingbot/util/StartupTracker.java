@@ -0,0 +1,66 @@
+package crlinkingbot.util;
+
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records when each startup phase was reached, measured from JVM start, so
+ * startup time can be compared between deployments and readiness reported by
+ * the health endpoint.
+ */
+public class StartupTracker {
+
+	/**
+	 * Startup phases in the order they are usually reached. Discord and the
+	 * local state load concurrently, so the order can differ.
+	 */
+	public enum Phase {
+		CONFIG_LOADED, DISCORD_LOGIN_STARTED, QUEUE_LOADED, API_STARTED, DISCORD_READY, WORKERS_STARTED
+	}
+
+	private final long jvmStartTime;
+	private final Map<Phase, Long> reached;
+
+	/**
+	 * Constructor
+	 */
+	public StartupTracker() {
+		this.jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+		this.reached = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Mark a phase as reached and log the time since JVM start. Only the first
+	 * call per phase counts.
+	 */
+	public void reached(Phase phase) {
+		long elapsed = System.currentTimeMillis() - jvmStartTime;
+		if (reached.putIfAbsent(phase, elapsed) == null) {
+			System.out.println("Startup phase " + phase + " reached after " + elapsed + "ms");
+		}
+	}
+
+	/**
+	 * Whether a phase was reached
+	 */
+	public boolean hasReached(Phase phase) {
+		return reached.containsKey(phase);
+	}
+
+	/**
+	 * Milliseconds from JVM start until each reached phase
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		for (Phase phase : Phase.values()) {
+			Long elapsed = reached.get(phase);
+			if (elapsed != null) {
+				json.put(phase.name().toLowerCase(), elapsed);
+			}
+		}
+		return json;
+	}
+}
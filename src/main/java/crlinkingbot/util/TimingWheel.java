@@ -0,0 +1,286 @@
+package crlinkingbot.util;
+
+import org.json.JSONObject;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing wheel for delayed work such as deleting messages, request
+ * deadlines and expiring leases. A timer is a small object in one of the
+ * wheel's buckets, so pending timers cost no threads; scheduling and
+ * cancelling are O(1). A single ticker thread advances the wheel every tick
+ * and runs the due tasks, so tasks must be short and hand blocking work to
+ * another thread. Timers fire up to one tick late.
+ */
+public class TimingWheel {
+	private static final long DEFAULT_TICK_MILLIS = 50;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static volatile TimingWheel defaultWheel;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	// New and cancelled timers are handed to the ticker thread, which owns the buckets
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final Thread ticker;
+	private final long startTime;
+	private volatile boolean running = true;
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+
+	/**
+	 * A scheduled task. Cancelling is O(1) and a no-op once the task ran.
+	 */
+	public final class Timeout {
+		private static final int STATE_PENDING = 0;
+		private static final int STATE_CANCELLED = 1;
+		private static final int STATE_EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+		// Full wheel turns left before the deadline's tick comes around
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevent the task from running
+		 *
+		 * @return false if it already ran or was cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+				return false;
+			}
+			cancelledCount.incrementAndGet();
+			pending.decrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * Whether the task was cancelled before it ran
+		 */
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		/**
+		 * Whether the task ran
+		 */
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+				return;
+			}
+			pending.decrementAndGet();
+			expiredCount.incrementAndGet();
+			try {
+				task.run();
+			} catch (Exception e) {
+				System.out.println("Error in timer task: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timers that fall on one tick of the wheel
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * Run the timers due in this round, the others wait for their next turn
+		 */
+		void expire(long now) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Constructor starts the ticker thread
+	 *
+	 * @param name       Name of the ticker thread
+	 * @param tickMillis Resolution of the wheel
+	 * @param wheelSize  Number of buckets, rounded up to a power of two
+	 */
+	public TimingWheel(String name, long tickMillis, int wheelSize) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.ticker = new Thread(this::run, name);
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Get the application-wide wheel, configured by TIMER_TICK_MILLIS
+	 */
+	public static TimingWheel getDefault() {
+		TimingWheel wheel = defaultWheel;
+		if (wheel == null) {
+			synchronized (TimingWheel.class) {
+				wheel = defaultWheel;
+				if (wheel == null) {
+					wheel = new TimingWheel("timing-wheel",
+							EnvUtil.getInt("TIMER_TICK_MILLIS", (int) DEFAULT_TICK_MILLIS), DEFAULT_WHEEL_SIZE);
+					defaultWheel = wheel;
+				}
+			}
+		}
+		return wheel;
+	}
+
+	/**
+	 * Run a task after a delay
+	 *
+	 * @return Handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+		scheduledCount.incrementAndGet();
+		pending.incrementAndGet();
+		if (!running) {
+			// Stopped, nothing will ever run it
+			timeout.cancel();
+			return timeout;
+		}
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the ticker thread. Pending timers never run.
+	 */
+	public void stop() {
+		running = false;
+		ticker.interrupt();
+	}
+
+	/**
+	 * Get timer statistics
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("pending", pending.get());
+		stats.put("scheduled", scheduledCount.get());
+		stats.put("expired", expiredCount.get());
+		stats.put("cancelled", cancelledCount.get());
+		stats.put("tickMillis", TimeUnit.NANOSECONDS.toMillis(tickNanos));
+		stats.put("wheelSize", wheel.length);
+		return stats;
+	}
+
+	private void run() {
+		long tick = 0;
+		while (running) {
+			// Sleep until the end of the current tick
+			long deadline = tickNanos * (tick + 1);
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					if (!running) {
+						return;
+					}
+					continue;
+				}
+			}
+
+			removeCancelled();
+			transferAdded(tick);
+			wheel[(int) (tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Put newly scheduled timers into the bucket of their deadline's tick
+	 */
+	private void transferAdded(long currentTick) {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			// Never into a bucket that was already passed
+			long due = Math.max(currentTick, timeout.deadline / tickNanos);
+			timeout.remainingRounds = (due - currentTick) / wheel.length;
+			wheel[(int) (due & mask)].add(timeout);
+		}
+	}
+}
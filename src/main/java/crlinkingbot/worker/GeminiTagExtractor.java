@@ -0,0 +1,108 @@
+package crlinkingbot.worker;
+
+import com.google.genai.Client;
+import com.google.genai.types.Content;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.GenerateContentResponse;
+import com.google.genai.types.Part;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts player tags with Gemini. The screenshots of all requests in a
+ * batch are sent in one model call, each group introduced by its position,
+ * and the model answers with one JSON entry per position.
+ */
+public class GeminiTagExtractor implements TagExtractor {
+	private static final String DEFAULT_MODEL = "gemini-2.5-flash";
+
+	private static final String PROMPT = "You receive screenshots of Clash Royale player profiles, grouped by "
+			+ "request. Every group starts with a line 'Request <n>:' followed by its images. For every request, "
+			+ "read the player tag shown on the profile (it starts with '#' and only contains the characters "
+			+ PlayerTags.ALPHABET + ").\n"
+			+ "Answer with a JSON array containing one object per request: "
+			+ "{\"request\": <n>, \"playerTag\": \"#TAG\", \"confidence\": <0.0 to 1.0>}, where confidence is "
+			+ "how sure you are that every character of the tag is read correctly. If no player tag is visible in a request's images, "
+			+ "use {\"request\": <n>, \"playerTag\": null, \"reason\": \"<short reason>\"}.";
+
+	private final Client client;
+	private final String model;
+
+	/**
+	 * Constructor
+	 *
+	 * @param apiKey The Gemini API key
+	 */
+	public GeminiTagExtractor(String apiKey) {
+		this.client = Client.builder().apiKey(apiKey).build();
+		String configuredModel = System.getenv("GEMINI_MODEL");
+		this.model = configuredModel == null || configuredModel.isEmpty() ? DEFAULT_MODEL : configuredModel;
+	}
+
+	@Override
+	public Map<String, TagExtraction> extract(List<WorkItem> items) throws Exception {
+		List<Part> parts = new ArrayList<>();
+		parts.add(Part.fromText(PROMPT));
+		for (int i = 0; i < items.size(); i++) {
+			parts.add(Part.fromText("Request " + (i + 1) + ":"));
+			for (WorkItem.Image image : items.get(i).getImages()) {
+				parts.add(Part.fromBytes(image.getData(), image.getMimeType()));
+			}
+		}
+
+		GenerateContentConfig config = GenerateContentConfig.builder().responseMimeType("application/json")
+				.temperature(0f).build();
+		GenerateContentResponse response = client.models.generateContent(model,
+				Content.fromParts(parts.toArray(new Part[0])), config);
+
+		String text = response.text();
+		if (text == null || text.isEmpty()) {
+			throw new IllegalStateException("Empty response from " + model);
+		}
+		return parseResponse(text, items);
+	}
+
+	@Override
+	public String getName() {
+		return "gemini (" + model + ")";
+	}
+
+	@Override
+	public void close() {
+		client.close();
+	}
+
+	/**
+	 * Map the model's JSON answer back to the request IDs of the batch
+	 */
+	private static Map<String, TagExtraction> parseResponse(String text, List<WorkItem> items) {
+		Map<String, TagExtraction> results = new HashMap<>();
+		JSONArray entries = new JSONArray(text.trim());
+		for (int i = 0; i < entries.length(); i++) {
+			JSONObject entry = entries.optJSONObject(i);
+			if (entry == null) {
+				continue;
+			}
+			int position = entry.optInt("request", 0) - 1;
+			if (position < 0 || position >= items.size()) {
+				continue;
+			}
+
+			String requestId = items.get(position).getRequest().getId();
+			String tag = PlayerTags.normalize(entry.optString("playerTag", null));
+			if (tag != null) {
+				results.put(requestId, TagExtraction.found(tag, entry.optDouble("confidence", 0.5)));
+			} else {
+				String reason = entry.optString("reason", "");
+				results.put(requestId, TagExtraction.failed("Spieler-Tag nicht gefunden"
+						+ (reason.isEmpty() ? "" : " (" + reason + ")")));
+			}
+		}
+		return results;
+	}
+}
@@ -0,0 +1,29 @@
+package crlinkingbot.worker;
+
+import java.util.regex.Pattern;
+
+/**
+ * Normalization and validation of Clash Royale player tags.
+ */
+public class PlayerTags {
+	// Player tags only use these characters
+	public static final String ALPHABET = "0289PYLQGRJCUV";
+	private static final Pattern VALID_TAG = Pattern.compile("#[" + ALPHABET + "]{3,12}");
+
+	/**
+	 * Normalize a tag read from a screenshot: upper case, leading '#', and the
+	 * letter O read as zero
+	 *
+	 * @return The normalized tag, or null if it is not a valid player tag
+	 */
+	public static String normalize(String tag) {
+		if (tag == null) {
+			return null;
+		}
+		String normalized = tag.trim().toUpperCase().replace('O', '0').replace(" ", "");
+		if (!normalized.startsWith("#")) {
+			normalized = "#" + normalized;
+		}
+		return VALID_TAG.matcher(normalized).matches() ? normalized : null;
+	}
+}
@@ -0,0 +1,49 @@
+package crlinkingbot.worker;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic extractor for tests and local runs without a Gemini key. The
+ * tag is derived from the message ID, so the same request always yields the
+ * same tag. Set STUB_PLAYER_TAG to return a fixed tag instead.
+ */
+public class StubTagExtractor implements TagExtractor {
+	private final String fixedTag;
+
+	/**
+	 * Constructor
+	 */
+	public StubTagExtractor() {
+		this.fixedTag = PlayerTags.normalize(System.getenv("STUB_PLAYER_TAG"));
+	}
+
+	@Override
+	public Map<String, TagExtraction> extract(List<WorkItem> items) {
+		Map<String, TagExtraction> results = new HashMap<>();
+		for (WorkItem item : items) {
+			String tag = fixedTag != null ? fixedTag : tagFor(item.getRequest().getMessageId());
+			results.put(item.getRequest().getId(), TagExtraction.found(tag, 1.0));
+		}
+		return results;
+	}
+
+	@Override
+	public String getName() {
+		return "stub";
+	}
+
+	/**
+	 * Derive a valid player tag from a seed
+	 */
+	private static String tagFor(String seed) {
+		long value = seed.hashCode() & 0xffffffffL;
+		StringBuilder tag = new StringBuilder("#");
+		for (int i = 0; i < 8; i++) {
+			tag.append(PlayerTags.ALPHABET.charAt((int) (value % PlayerTags.ALPHABET.length())));
+			value = value / PlayerTags.ALPHABET.length() + i * 7L;
+		}
+		return tag.toString();
+	}
+}
@@ -0,0 +1,47 @@
+package crlinkingbot.worker;
+
+/**
+ * Result of extracting a player tag from the screenshots of one request.
+ */
+public class TagExtraction {
+    private final String playerTag;
+    private final String errorMessage;
+    // How sure the extractor is about the tag, between 0 and 1
+    private final double confidence;
+
+    private TagExtraction(String playerTag, String errorMessage, double confidence) {
+        this.playerTag = playerTag;
+        this.errorMessage = errorMessage;
+        this.confidence = confidence;
+    }
+
+    /**
+     * A player tag was found
+     */
+    public static TagExtraction found(String playerTag, double confidence) {
+        return new TagExtraction(playerTag, null, confidence);
+    }
+
+    /**
+     * No player tag could be extracted
+     */
+    public static TagExtraction failed(String errorMessage) {
+        return new TagExtraction(null, errorMessage, 0);
+    }
+
+    public boolean isSuccess() {
+        return playerTag != null;
+    }
+
+    public String getPlayerTag() {
+        return playerTag;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+}
@@ -0,0 +1,47 @@
+package crlinkingbot.worker;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts Clash Royale player tags from profile screenshots. Implementations
+ * receive several requests at once so they can pack them into a single call.
+ */
+public interface TagExtractor {
+
+	/**
+	 * Extract the player tag of every item in the batch
+	 *
+	 * @param items Requests with their screenshots, each with at least one image
+	 * @return Extraction per request ID. Items missing from the result are
+	 *         treated as failed.
+	 * @throws Exception If the whole batch failed, e.g. the model call errored
+	 */
+	Map<String, TagExtraction> extract(List<WorkItem> items) throws Exception;
+
+	/**
+	 * Name used in logs
+	 */
+	String getName();
+
+	/**
+	 * Release resources held by the extractor
+	 */
+	default void close() {
+	}
+
+	/**
+	 * Create the extractor configured by the WORKER_EXTRACTOR environment
+	 * variable
+	 */
+	static TagExtractor fromEnv(String genaiApiKey) {
+		String type = System.getenv("WORKER_EXTRACTOR");
+		if (type != null && type.equalsIgnoreCase("stub")) {
+			return new StubTagExtractor();
+		}
+		if (type != null && !type.isEmpty() && !type.equalsIgnoreCase("gemini")) {
+			System.out.println("Unknown WORKER_EXTRACTOR value: " + type + ", using gemini");
+		}
+		return new GeminiTagExtractor(genaiApiKey);
+	}
+}
@@ -0,0 +1,47 @@
+package crlinkingbot.worker;
+
+import crlinkingbot.queue.LinkingRequest;
+
+import java.util.List;
+
+/**
+ * A claimed request together with the downloaded screenshots of its message.
+ */
+public class WorkItem {
+    private final LinkingRequest request;
+    private final List<Image> images;
+
+    /**
+     * A downloaded screenshot
+     */
+    public static class Image {
+        private final byte[] data;
+        private final String mimeType;
+
+        public Image(byte[] data, String mimeType) {
+            this.data = data;
+            this.mimeType = mimeType;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    public WorkItem(LinkingRequest request, List<Image> images) {
+        this.request = request;
+        this.images = images;
+    }
+
+    public LinkingRequest getRequest() {
+        return request;
+    }
+
+    public List<Image> getImages() {
+        return images;
+    }
+}
@@ -0,0 +1,205 @@
+package crlinkingbot.worker;
+
+import crlinkingbot.images.ImageCache;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.ResultProcessor;
+import crlinkingbot.util.EnvUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded queue worker. Each worker thread claims a batch of requests from
+ * the queue, loads their cached screenshots, extracts all tags with a single
+ * {@link TagExtractor} call and applies the results through the same
+ * {@link ResultProcessor} as the queue API. Claims are leases, so the pool can
+ * run next to external workers.
+ */
+public class WorkerPool {
+	private final RequestQueue requestQueue;
+	private final DiscordGateway discord;
+	private final ResultProcessor resultProcessor;
+	private final TagExtractor extractor;
+	private final ImagePrefetcher imagePrefetcher;
+	private final ExecutorService executor;
+	private final int concurrency;
+	private final int batchSize;
+	private final long leaseMillis;
+	private final long pollMillis;
+	private volatile boolean running;
+
+	/**
+	 * Constructor reads the pool configuration from the environment
+	 */
+	public WorkerPool(RequestQueue requestQueue, DiscordGateway discord, ResultProcessor resultProcessor,
+			TagExtractor extractor, ImagePrefetcher imagePrefetcher) {
+		this.requestQueue = requestQueue;
+		this.discord = discord;
+		this.resultProcessor = resultProcessor;
+		this.extractor = extractor;
+		this.imagePrefetcher = imagePrefetcher;
+		this.concurrency = EnvUtil.getInt("WORKER_CONCURRENCY", 2);
+		this.batchSize = EnvUtil.getInt("WORKER_BATCH_SIZE", 4);
+		this.leaseMillis = EnvUtil.getInt("WORKER_LEASE_SECONDS", 300) * 1000L;
+		this.pollMillis = EnvUtil.getInt("WORKER_POLL_SECONDS", 5) * 1000L;
+		this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setName("link-worker-" + thread.getId());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Start the worker threads
+	 */
+	public void start() {
+		running = true;
+		String processId = String.valueOf(ProcessHandle.current().pid());
+		for (int i = 0; i < concurrency; i++) {
+			String workerId = "embedded-" + processId + "-" + i;
+			executor.submit(() -> runWorker(workerId));
+		}
+		System.out.println("Worker pool started with " + concurrency + " workers, batch size " + batchSize
+				+ ", extractor " + extractor.getName());
+	}
+
+	/**
+	 * Stop the worker threads. Batches in flight keep their lease and are handed
+	 * out again once it expires.
+	 */
+	public void shutdown() {
+		System.out.println("Shutting down worker pool...");
+		running = false;
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		extractor.close();
+		System.out.println("Worker pool stopped");
+	}
+
+	private void runWorker(String workerId) {
+		while (running) {
+			try {
+				// Requests for guilds whose shard is still connecting are left for later
+				List<LinkingRequest> claimed = requestQueue.claim(workerId, batchSize, leaseMillis,
+						request -> discord.isGuildReady(request.getGuildId()));
+				if (claimed.isEmpty()) {
+					Thread.sleep(pollMillis);
+					continue;
+				}
+				processBatch(workerId, claimed);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				System.out.println("Worker " + workerId + " failed to process batch: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Download the screenshots of a claimed batch, extract all tags in one call
+	 * and apply the results
+	 */
+	private void processBatch(String workerId, List<LinkingRequest> claimed) {
+		List<WorkItem> items = new ArrayList<>();
+		for (LinkingRequest request : claimed) {
+			// The shard dropped after the claim, the lease hands the request out later
+			if (!discord.isGuildReady(request.getGuildId())) {
+				continue;
+			}
+
+			List<WorkItem.Image> images = loadImages(request);
+			if (Thread.currentThread().isInterrupted()) {
+				// Shutting down, the lease hands the batch to another worker later
+				return;
+			}
+			if (requestQueue.findById(request.getId()) == null) {
+				// Completed from the screenshot index while the images were cached
+				continue;
+			}
+			if (images.isEmpty()) {
+				complete(request, null, "Keine Screenshots in der Nachricht gefunden", 0);
+				continue;
+			}
+			items.add(new WorkItem(request, images));
+		}
+		if (items.isEmpty()) {
+			return;
+		}
+
+		Map<String, TagExtraction> results;
+		long start = System.currentTimeMillis();
+		try {
+			results = extractor.extract(items);
+			System.out.println("Worker " + workerId + " extracted " + items.size() + " requests in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (Exception e) {
+			// The extractor itself failed, not the screenshots. Keep the retries and
+			// let the lease hand the batch out again once it expires.
+			System.out.println("Worker " + workerId + " extraction failed for " + items.size() + " requests: "
+					+ e.getMessage());
+			return;
+		}
+
+		for (WorkItem item : items) {
+			TagExtraction extraction = results.get(item.getRequest().getId());
+			if (extraction != null && extraction.isSuccess()) {
+				complete(item.getRequest(), extraction.getPlayerTag(), null, extraction.getConfidence());
+			} else {
+				complete(item.getRequest(), null,
+						extraction != null ? extraction.getErrorMessage() : "Spieler-Tag nicht gefunden", 0);
+			}
+		}
+	}
+
+	/**
+	 * Remove the request from the queue and apply the result, unless another
+	 * worker already delivered one
+	 */
+	private void complete(LinkingRequest claimed, String playerTag, String errorMessage, double confidence) {
+		LinkingRequest request = requestQueue.removeById(claimed.getId());
+		if (request == null) {
+			System.out.println("Request " + claimed.getId() + " was already completed elsewhere");
+			return;
+		}
+
+		ResultProcessor.Outcome outcome = resultProcessor.process(request, playerTag != null, playerTag,
+				errorMessage, confidence);
+		System.out.println("Embedded worker completed request " + request.getId() + ": "
+				+ outcome.getBody().optString("action", outcome.getBody().optString("error")));
+	}
+
+	/**
+	 * Load the request's screenshots from the image cache, downloading them
+	 * first if they were not prefetched
+	 */
+	private List<WorkItem.Image> loadImages(LinkingRequest request) {
+		List<WorkItem.Image> images = new ArrayList<>();
+		try {
+			for (String hash : imagePrefetcher.resolve(request)) {
+				byte[] data = imagePrefetcher.getCache().get(hash);
+				if (data != null) {
+					images.add(new WorkItem.Image(data, ImageCache.mimeTypeOf(data)));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			System.out.println("Warning: Could not load images for request " + request.getId() + " - " + e.getMessage());
+		}
+		return images;
+	}
+}
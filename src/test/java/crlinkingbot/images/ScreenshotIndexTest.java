@@ -0,0 +1,88 @@
+package crlinkingbot.images;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+
+class ScreenshotIndexTest {
+	private static final String HASH_A = "a".repeat(64);
+	private static final String HASH_B = "b".repeat(64);
+	private static final String HASH_C = "c".repeat(64);
+
+	@TempDir
+	Path dataDir;
+
+	private ScreenshotIndex index;
+
+	@BeforeEach
+	void setUp() {
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		new File(dataDir.toFile(), "crlinkingbot").mkdirs();
+		index = new ScreenshotIndex();
+	}
+
+	@AfterEach
+	void tearDown() {
+		index.close();
+		System.clearProperty(RequestQueue.DATA_DIR_PROPERTY);
+	}
+
+	@Test
+	void matchesWhenEveryScreenshotIsAKnownCopy() {
+		index.record(request(HASH_A, HASH_B), "#2PP", 0.95);
+
+		ScreenshotIndex.Match match = index.findMatch(request(HASH_B, HASH_A));
+		assertEquals("#2PP", match.getPlayerTag());
+		assertEquals("#2PP", index.findMatch(request(HASH_A)).getPlayerTag());
+	}
+
+	@Test
+	void oneUnknownScreenshotIsNoMatch() {
+		index.record(request(HASH_A), "#2PP", 0.95);
+
+		assertNull(index.findMatch(request(HASH_A, HASH_C)));
+	}
+
+	@Test
+	void screenshotsOfDifferentPlayersAreNoMatch() {
+		index.record(request(HASH_A), "#2PP", 0.95);
+		index.record(request(HASH_B), "#8QQ", 0.95);
+
+		assertNull(index.findMatch(request(HASH_A, HASH_B)));
+	}
+
+	@Test
+	void uncertainTagsAreNotRemembered() {
+		index.record(request(HASH_A), "#2PP", 0.5);
+
+		assertNull(index.findMatch(request(HASH_A)));
+	}
+
+	@Test
+	void indexSurvivesARestart() {
+		index.record(request(HASH_A), "#2PP", 0.95);
+		index.close();
+		assertFalse(new File(dataDir.toFile(), "crlinkingbot/screenshot_index.json.tmp").exists());
+
+		index = new ScreenshotIndex();
+		assertEquals("#2PP", index.findMatch(request(HASH_A)).getPlayerTag());
+	}
+
+	private static LinkingRequest request(String... imageHashes) {
+		LinkingRequest request = new LinkingRequest("1000", "500", "300", "400", "user#0001");
+		request.setImageHashes(List.of(imageHashes));
+		return request;
+	}
+}
@@ -0,0 +1,131 @@
+package crlinkingbot.listeners;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import crlinkingbot.images.ImageCache;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.queue.HistoryRecord;
+import crlinkingbot.queue.HistoryStore;
+import crlinkingbot.queue.JsonFileQueueStore;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.MessageResolver;
+import crlinkingbot.services.TestGateways;
+
+class RequestInvalidationListenerTest {
+	@TempDir
+	Path dataDir;
+
+	private RequestQueue requestQueue;
+	private HistoryStore historyStore;
+	private ImagePrefetcher imagePrefetcher;
+	private RequestInvalidationListener listener;
+
+	@BeforeEach
+	void setUp() {
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		new File(dataDir.toFile(), "crlinkingbot").mkdirs();
+		requestQueue = new RequestQueue(new JsonFileQueueStore());
+		historyStore = new HistoryStore(new File(dataDir.toFile(), "history"), 365);
+		DiscordGateway discord = TestGateways.connected();
+		MessageResolver messageResolver = new MessageResolver(discord);
+		imagePrefetcher = new ImagePrefetcher(new ImageCache(), null, requestQueue, discord, messageResolver);
+		listener = new RequestInvalidationListener(requestQueue, historyStore, messageResolver, imagePrefetcher);
+	}
+
+	@AfterEach
+	void tearDown() {
+		imagePrefetcher.shutdown();
+		historyStore.close();
+		requestQueue.close();
+		System.clearProperty(RequestQueue.DATA_DIR_PROPERTY);
+	}
+
+	@Test
+	void deletedMessageDropsItsRequest() {
+		LinkingRequest deleted = enqueue("1000", "500");
+		LinkingRequest kept = enqueue("1001", "500");
+
+		listener.messageDeleted("1000");
+
+		assertNull(requestQueue.findById(deleted.getId()));
+		assertNotNull(requestQueue.findById(kept.getId()));
+		assertEquals(1, evicted().getLong(RequestInvalidationListener.REASON_MESSAGE_DELETED));
+		assertEquals(1, evictedInHistory(RequestInvalidationListener.REASON_MESSAGE_DELETED));
+	}
+
+	@Test
+	void bulkDeleteDropsEveryListedRequest() {
+		for (int i = 0; i < 5; i++) {
+			enqueue(String.valueOf(1000 + i), "500");
+		}
+
+		// The event handler deletes the listed messages one by one
+		for (String messageId : new String[] { "1000", "1002", "1004", "9999" }) {
+			listener.messageDeleted(messageId);
+		}
+
+		assertEquals(2, requestQueue.size());
+		assertNotNull(requestQueue.findByMessageId("1001"));
+		assertNotNull(requestQueue.findByMessageId("1003"));
+		assertEquals(3, evicted().getLong("total"));
+	}
+
+	@Test
+	void deletedChannelDropsOnlyItsRequests() {
+		enqueue("1000", "500");
+		enqueue("1001", "500");
+		enqueue("1002", "500");
+		LinkingRequest other = enqueue("1003", "600");
+
+		listener.channelDeleted("500");
+
+		assertEquals(1, requestQueue.size());
+		assertNotNull(requestQueue.findById(other.getId()));
+		assertTrue(requestQueue.findByChannelId("500").isEmpty());
+		assertEquals(3, evicted().getLong(RequestInvalidationListener.REASON_CHANNEL_DELETED));
+		assertEquals(3, evictedInHistory(RequestInvalidationListener.REASON_CHANNEL_DELETED));
+	}
+
+	@Test
+	void requestCompletedBeforeTheDeleteIsNotCountedAgain() {
+		LinkingRequest request = enqueue("1000", "500");
+		requestQueue.removeById(request.getId());
+
+		listener.messageDeleted("1000");
+		listener.channelDeleted("500");
+
+		assertEquals(0, evicted().getLong("total"));
+		assertEquals(0, historyStore.count(0, Long.MAX_VALUE, null, HistoryRecord.OUTCOME_EVICTED, null)
+				.getLong("total"));
+	}
+
+	private LinkingRequest enqueue(String messageId, String channelId) {
+		LinkingRequest request = new LinkingRequest(messageId, channelId, "300", "400", "user#0001");
+		requestQueue.enqueue(request);
+		return request;
+	}
+
+	private JSONObject evicted() {
+		return requestQueue.getStatistics().toJSON().getJSONObject("evicted");
+	}
+
+	private long evictedInHistory(String reason) {
+		JSONObject groups = historyStore.count(0, Long.MAX_VALUE, null, HistoryRecord.OUTCOME_EVICTED,
+				HistoryStore.GROUP_REASON).getJSONObject("groups");
+		return groups.getJSONObject(reason).getLong("count");
+	}
+}
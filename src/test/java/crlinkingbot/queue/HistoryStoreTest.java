@@ -0,0 +1,158 @@
+package crlinkingbot.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryStoreTest {
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+	private static final int DAYS = 4;
+	private static final int RECORDS_PER_DAY = 50_000;
+
+	@TempDir
+	Path dir;
+
+	// Midnight UTC a few days ago, so every test day is over and gets sealed
+	private final long firstDay = LocalDate.now(ZoneOffset.UTC).minusDays(DAYS + 1)
+			.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+	@Test
+	void answersQueriesOverManyRecordsFromTheIndexes() {
+		HistoryStore store = new HistoryStore(dir.toFile(), 365);
+		long spacing = DAY_MILLIS / RECORDS_PER_DAY;
+		for (int day = 0; day < DAYS; day++) {
+			for (int i = 0; i < RECORDS_PER_DAY; i++) {
+				store.record(record(day * RECORDS_PER_DAY + i, firstDay + day * DAY_MILLIS + i * spacing));
+			}
+		}
+		store.close();
+
+		// Reopening seals the last day, which was still being written
+		store = new HistoryStore(dir.toFile(), 365);
+		try {
+			long to = firstDay + DAYS * DAY_MILLIS;
+			JSONObject total = store.count(firstDay, to, null, null, HistoryStore.GROUP_DAY);
+			assertEquals(DAYS * RECORDS_PER_DAY, total.getLong("total"));
+			assertEquals(DAYS, total.getInt("segmentsFromIndex"));
+			assertEquals(0, total.getInt("segmentsScanned"));
+			assertEquals(RECORDS_PER_DAY, total.getJSONObject("groups").getJSONObject(day(0)).getLong("count"));
+
+			assertEquals(DAYS * RECORDS_PER_DAY / 10, store.count(firstDay, to, "g3", null, null).getLong("total"));
+			assertEquals(DAYS * RECORDS_PER_DAY / 4,
+					store.count(firstDay, to, null, HistoryRecord.OUTCOME_DEAD_LETTERED, null).getLong("total"));
+
+			// From noon to noon: half of two days, read from the segment files
+			JSONObject partial = store.count(firstDay + DAY_MILLIS / 2, firstDay + DAY_MILLIS * 3 / 2, null, null,
+					null);
+			assertEquals(RECORDS_PER_DAY, partial.getLong("total"));
+			assertEquals(2, partial.getInt("segmentsScanned"));
+
+			// No query range, no segment
+			assertEquals(0, store.count(to + DAY_MILLIS, to + 2 * DAY_MILLIS, null, null, null)
+					.getInt("segmentsScanned"));
+		} finally {
+			store.close();
+		}
+
+		store = new HistoryStore(dir.toFile(), 365);
+		try {
+			JSONArray segments = store.getStats().getJSONArray("segments");
+			assertEquals(DAYS, segments.length());
+			for (int i = 0; i < segments.length(); i++) {
+				assertTrue(segments.getJSONObject(i).getBoolean("sealed"));
+			}
+			assertEquals(DAYS * RECORDS_PER_DAY, store.getStats().getLong("records"));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void sealInterruptedBeforeTheSwapKeepsThePlainRecords() throws Exception {
+		writeDay(100);
+		// The compressed copy was still being written
+		Files.writeString(file(".jsonl.gz.tmp").toPath(), "partial", StandardCharsets.UTF_8);
+
+		assertRecoveredAndSealed(100);
+		assertFalse(file(".jsonl.gz.tmp").exists());
+	}
+
+	@Test
+	void sealInterruptedAfterTheSwapDoesNotCountRecordsTwice() throws Exception {
+		writeDay(100);
+		// The compressed file is in place, but the plain file was not deleted yet
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file(".jsonl.gz")))) {
+			out.write(Files.readAllBytes(file(".jsonl").toPath()));
+		}
+
+		assertRecoveredAndSealed(100);
+	}
+
+	@Test
+	void tornLastLineIsSkipped() throws Exception {
+		writeDay(100);
+		Files.writeString(file(".jsonl").toPath(), "{\"requestId\":\"torn", StandardCharsets.UTF_8,
+				StandardOpenOption.APPEND);
+
+		assertRecoveredAndSealed(100);
+	}
+
+	/**
+	 * Reopen the store twice: the first start recovers and seals the day, the
+	 * second must find only the sealed segment with the same records
+	 */
+	private void assertRecoveredAndSealed(int expected) {
+		for (int start = 0; start < 2; start++) {
+			HistoryStore store = new HistoryStore(dir.toFile(), 365);
+			try {
+				assertEquals(expected, store.count(firstDay, firstDay + DAY_MILLIS, null, null, null).getLong("total"));
+				assertEquals(expected, store.count(firstDay, firstDay + DAY_MILLIS, null, null, HistoryStore.GROUP_REASON)
+						.getLong("total"));
+			} finally {
+				store.close();
+			}
+		}
+		assertFalse(file(".jsonl").exists());
+		assertTrue(file(".jsonl.gz").exists());
+		assertTrue(file(".idx.json").exists());
+	}
+
+	private void writeDay(int count) {
+		HistoryStore store = new HistoryStore(dir.toFile(), 365);
+		for (int i = 0; i < count; i++) {
+			store.record(record(i, firstDay + i * 1000L));
+		}
+		// The active day is left as a plain file
+		store.close();
+	}
+
+	private File file(String suffix) {
+		return new File(dir.toFile(), day(0) + suffix);
+	}
+
+	private String day(int offset) {
+		return LocalDate.ofEpochDay(firstDay / DAY_MILLIS + offset).toString();
+	}
+
+	private static HistoryRecord record(int i, long finishedAt) {
+		String outcome = i % 4 == 0 ? HistoryRecord.OUTCOME_DEAD_LETTERED : HistoryRecord.OUTCOME_COMPLETED;
+		return new HistoryRecord("req-" + i, "g" + (i % 10), "user-" + (i % 1000), outcome, null, "#2PP",
+				finishedAt - 60_000, finishedAt, i % 4 == 0 ? 3 : 0);
+	}
+}
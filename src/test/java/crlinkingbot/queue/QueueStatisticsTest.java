@@ -0,0 +1,60 @@
+package crlinkingbot.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class QueueStatisticsTest {
+	private static LinkingRequest request(int n) {
+		return new LinkingRequest("request-" + n, String.valueOf(1000 + n), "500", "600", "400", "user#0001",
+				1_000_000L + n, 0);
+	}
+
+	@Test
+	void oldestAndNewestFollowTheRemovals() {
+		QueueStatistics statistics = new QueueStatistics();
+		List<LinkingRequest> requests = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			requests.add(request(i));
+			statistics.recordEnqueued(requests.get(i));
+		}
+
+		statistics.recordRemoved(requests.get(0));
+		statistics.recordRemoved(requests.get(4));
+		JSONObject json = statistics.toJSON();
+		assertEquals(3, json.getInt("depth"));
+		assertEquals(requests.get(1).getTimestamp(), json.getLong("oldestRequest"));
+		assertEquals(requests.get(3).getTimestamp(), json.getLong("newestRequest"));
+
+		// Queued again, it is the newest now
+		statistics.recordEnqueued(requests.get(1));
+		json = statistics.toJSON();
+		assertEquals(requests.get(2).getTimestamp(), json.getLong("oldestRequest"));
+		assertEquals(requests.get(1).getTimestamp(), json.getLong("newestRequest"));
+
+		for (LinkingRequest request : requests) {
+			statistics.recordRemoved(request);
+		}
+		json = statistics.toJSON();
+		assertEquals(0, json.getInt("depth"));
+		assertFalse(json.has("oldestRequest"));
+		assertFalse(json.has("newestRequest"));
+	}
+
+	@Test
+	void resetKeepsTheOrderOfTheReloadedRequests() {
+		QueueStatistics statistics = new QueueStatistics();
+		statistics.recordEnqueued(request(9));
+		statistics.reset(List.of(request(3), request(1), request(2)));
+
+		JSONObject json = statistics.toJSON();
+		assertEquals(3, json.getInt("depth"));
+		assertEquals(request(3).getTimestamp(), json.getLong("oldestRequest"));
+		assertEquals(request(2).getTimestamp(), json.getLong("newestRequest"));
+	}
+}
@@ -0,0 +1,76 @@
+package crlinkingbot.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class RequestQueueClaimTest {
+	@TempDir
+	Path dataDir;
+
+	private RequestQueue queue;
+
+	static Stream<Arguments> stores() {
+		return Stream.of(Arguments.of("json", (Supplier<QueueStore>) JsonFileQueueStore::new),
+				Arguments.of("h2", (Supplier<QueueStore>) SqlQueueStore::new));
+	}
+
+	@BeforeEach
+	void setUp() {
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		new File(dataDir.toFile(), "crlinkingbot").mkdirs();
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (queue != null) {
+			queue.close();
+		}
+		System.clearProperty(RequestQueue.DATA_DIR_PROPERTY);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("stores")
+	void ineligibleRequestsAreSkippedAndStayClaimable(String name, Supplier<QueueStore> store) {
+		queue = new RequestQueue(store.get());
+		// More waiting requests than one page of the SQL store
+		for (int i = 0; i < 150; i++) {
+			queue.enqueue(new LinkingRequest(String.valueOf(1000 + i), "500", "cold", "400", "user#0001"));
+		}
+		for (int i = 0; i < 20; i++) {
+			queue.enqueue(new LinkingRequest(String.valueOf(2000 + i), "500", "warm", "400", "user#0001"));
+		}
+
+		List<LinkingRequest> claimed = queue.claim("worker-1", 10, 60_000,
+				request -> request.getGuildId().equals("warm"));
+		assertEquals(10, claimed.size());
+		for (LinkingRequest request : claimed) {
+			assertEquals("warm", request.getGuildId());
+			assertEquals("worker-1", queue.findById(request.getId()).getClaimedBy());
+		}
+		for (LinkingRequest request : queue.getAll()) {
+			if (request.getGuildId().equals("cold")) {
+				assertNull(request.getClaimedBy());
+			}
+		}
+
+		// The rest of the eligible requests, then nothing
+		assertEquals(10, queue.claim("worker-2", 50, 60_000, request -> request.getGuildId().equals("warm")).size());
+		assertTrue(queue.claim("worker-3", 50, 60_000, request -> request.getGuildId().equals("warm")).isEmpty());
+		// Skipped requests are still there for a claim that accepts them
+		assertEquals(150, queue.claim("worker-4", 500, 60_000).size());
+	}
+}
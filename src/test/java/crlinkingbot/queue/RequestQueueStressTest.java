@@ -0,0 +1,183 @@
+package crlinkingbot.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Hammers the queue from many threads with a random mix of enqueues, batch
+ * enqueues, removals, dequeues, claims and updates on a small set of
+ * messages, so operations on the same message collide. Afterwards the queue
+ * must be in a state some sequential execution of those operations could
+ * have produced.
+ */
+class RequestQueueStressTest {
+	private static final int THREADS = 16;
+	private static final int OPERATIONS_PER_THREAD = 2000;
+	private static final int MESSAGES = 300;
+	private static final int BATCH_SIZE = 5;
+
+	@TempDir
+	Path dataDir;
+
+	private final Set<String> enqueued = ConcurrentHashMap.newKeySet();
+	private final Set<String> removed = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger doubleRemovals = new AtomicInteger();
+	private RequestQueue queue;
+
+	static Stream<Arguments> stores() {
+		return Stream.of(Arguments.of("json", (Supplier<QueueStore>) JsonFileQueueStore::new),
+				Arguments.of("h2", (Supplier<QueueStore>) SqlQueueStore::new));
+	}
+
+	@BeforeEach
+	void setUp() {
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		new File(dataDir.toFile(), "crlinkingbot").mkdirs();
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (queue != null) {
+			queue.close();
+		}
+		System.clearProperty(RequestQueue.DATA_DIR_PROPERTY);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("stores")
+	void concurrentOperationsKeepTheQueueConsistent(String name, Supplier<QueueStore> store) throws Exception {
+		queue = new RequestQueue(store.get());
+
+		// The queue logs every operation, which would dominate the run
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				String worker = "stress-" + t;
+				Random random = new Random(t);
+				futures.add(callers.submit(() -> {
+					for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+						step(worker, random);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			callers.shutdown();
+			System.setOut(out);
+		}
+
+		assertEquals(0, doubleRemovals.get(), "requests removed twice");
+		List<LinkingRequest> inMemory = queue.getAll();
+		Set<String> messageIds = new HashSet<>();
+		Set<String> memoryIds = new HashSet<>();
+		for (LinkingRequest request : inMemory) {
+			memoryIds.add(request.getId());
+			assertTrue(messageIds.add(request.getMessageId()), "message queued twice: " + request.getMessageId());
+			assertSame(request, queue.findById(request.getId()));
+			assertSame(request, queue.findByMessageId(request.getMessageId()));
+			assertTrue(queue.findByChannelId(request.getChannelId()).contains(request));
+		}
+		Set<String> expected = new HashSet<>(enqueued);
+		expected.removeAll(removed);
+		assertEquals(expected, memoryIds, "remaining requests differ from the enqueued and not removed ones");
+		assertEquals(inMemory.size(), queue.getStatistics().getDepth());
+
+		// Read the queue back through a fresh store once pending writes are flushed
+		queue.close();
+		queue = null;
+		QueueStore reopened = store.get();
+		Set<String> storedIds = new HashSet<>();
+		for (LinkingRequest request : reopened.loadAll()) {
+			storedIds.add(request.getId());
+		}
+		reopened.close();
+		assertEquals(memoryIds, storedIds);
+	}
+
+	/**
+	 * Perform one random operation and record what it enqueued or removed
+	 */
+	private void step(String worker, Random random) {
+		int operation = random.nextInt(10);
+		String messageId = "m" + random.nextInt(MESSAGES);
+		if (operation < 4) {
+			LinkingRequest request = new LinkingRequest(messageId, "c" + random.nextInt(10),
+					"g" + random.nextInt(5), "u", "stress#0");
+			if (queue.enqueueIfAbsent(request) == null) {
+				enqueued.add(request.getId());
+			}
+		} else if (operation < 6) {
+			LinkingRequest queued = queue.findByMessageId(messageId);
+			if (queued != null) {
+				recordRemoval(queue.removeById(queued.getId()));
+			}
+		} else if (operation < 7) {
+			recordRemoval(queue.dequeue());
+		} else if (operation < 8) {
+			// A worker that gives up on its claim and queues the message again
+			for (LinkingRequest claimed : queue.claim(worker, 3, 1)) {
+				LinkingRequest request = queue.removeById(claimed.getId());
+				if (request == null) {
+					continue;
+				}
+				recordRemoval(request);
+				LinkingRequest again = new LinkingRequest(request.getMessageId(), request.getChannelId(),
+						request.getGuildId(), "u", "stress#0");
+				if (queue.enqueueIfAbsent(again) == null) {
+					enqueued.add(again.getId());
+				}
+			}
+		} else if (operation < 9) {
+			List<LinkingRequest> batch = new ArrayList<>();
+			for (int k = 0; k < BATCH_SIZE; k++) {
+				batch.add(new LinkingRequest("m" + random.nextInt(MESSAGES), "c1", "g1", "u", "stress#0"));
+			}
+			for (LinkingRequest added : queue.enqueueAll(batch)) {
+				enqueued.add(added.getId());
+			}
+		} else {
+			LinkingRequest queued = queue.findByMessageId(messageId);
+			if (queued != null) {
+				queued.setImageHashes(List.of("stress"));
+				queue.update(queued);
+			}
+		}
+	}
+
+	private void recordRemoval(LinkingRequest request) {
+		if (request != null && !removed.add(request.getId())) {
+			doubleRemovals.incrementAndGet();
+		}
+	}
+}
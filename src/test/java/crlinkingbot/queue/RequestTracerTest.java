@@ -0,0 +1,109 @@
+package crlinkingbot.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RequestTracerTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void repeatedEventsAreRecordedOnce() {
+		RequestTracer tracer = new RequestTracer(10, null, 0);
+		tracer.record("r1", RequestTracer.Event.ENQUEUED);
+		tracer.record("r1", RequestTracer.Event.LISTED);
+		tracer.record("r1", RequestTracer.Event.LISTED);
+		tracer.record("r1", RequestTracer.Event.CLAIMED, "worker-1");
+		tracer.record("r1", RequestTracer.Event.CLAIMED, "worker-2");
+
+		assertEquals(4, tracer.getTrace("r1").getJSONArray("events").length());
+	}
+
+	@Test
+	void evictedUnfinishedTraceIsSpilledAndFoundAgain() {
+		File spillFile = new File(dir.toFile(), "traces.jsonl");
+		RequestTracer tracer = new RequestTracer(2, spillFile, 1024 * 1024);
+		tracer.record("r1", RequestTracer.Event.ENQUEUED);
+		tracer.record("r1", RequestTracer.Event.CLAIMED, "worker-1");
+		tracer.record("r2", RequestTracer.Event.ENQUEUED);
+		tracer.record("r3", RequestTracer.Event.ENQUEUED);
+		tracer.close();
+
+		JSONObject trace = tracer.getTrace("r1");
+		assertNotNull(trace);
+		assertFalse(trace.getBoolean("finished"));
+		assertEquals("claimed", trace.getJSONArray("events").getJSONObject(1).getString("event"));
+		assertEquals(1, tracer.getStats().getLong("spilled"));
+	}
+
+	@Test
+	void finishedTraceIsSpilledOnceAndWinsOverEarlierLines() {
+		File spillFile = new File(dir.toFile(), "traces.jsonl");
+		RequestTracer tracer = new RequestTracer(1, spillFile, 1024 * 1024);
+		tracer.record("r1", RequestTracer.Event.ENQUEUED);
+		// Pushes the unfinished r1 out of memory
+		tracer.record("r2", RequestTracer.Event.ENQUEUED);
+		tracer.record("r1", RequestTracer.Event.COMPLETED);
+		// Pushes the finished r1 out again, it is not written a second time
+		tracer.record("r3", RequestTracer.Event.ENQUEUED);
+		tracer.close();
+
+		JSONObject trace = tracer.getTrace("r1");
+		assertTrue(trace.getBoolean("finished"));
+		assertEquals("completed", trace.getString("outcome"));
+		// r1 unfinished, r2 unfinished, r1 finished
+		assertEquals(3, tracer.getStats().getLong("spilled"));
+	}
+
+	@Test
+	void spillFileIsRotatedAndOnlyOneGenerationKept() throws Exception {
+		File spillFile = new File(dir.toFile(), "traces.jsonl");
+		File rotated = new File(spillFile.getPath() + ".1");
+		RequestTracer tracer = new RequestTracer(1, spillFile, 400);
+		for (int i = 0; i < 20; i++) {
+			tracer.record("r" + i, RequestTracer.Event.ENQUEUED);
+			tracer.record("r" + i, RequestTracer.Event.COMPLETED);
+		}
+		tracer.close();
+
+		assertTrue(rotated.exists());
+		List<String> current = Files.readAllLines(spillFile.toPath(), StandardCharsets.UTF_8);
+		List<String> previous = Files.readAllLines(rotated.toPath(), StandardCharsets.UTF_8);
+		assertTrue(current.size() + previous.size() < 20);
+
+		String inRotated = new JSONObject(previous.get(0)).getString("requestId");
+		assertNotNull(tracer.getTrace(inRotated));
+		assertNotNull(tracer.getTrace("r18"));
+		// Older generations are gone
+		assertNull(tracer.getTrace("r0"));
+	}
+
+	@Test
+	void finishedTracesFeedOutcomesAndStages() {
+		RequestTracer tracer = new RequestTracer(10, null, 0);
+		tracer.record("r1", RequestTracer.Event.ENQUEUED);
+		tracer.record("r1", RequestTracer.Event.CLAIMED);
+		tracer.record("r1", RequestTracer.Event.RESULT_RECEIVED);
+		tracer.record("r1", RequestTracer.Event.COMPLETED);
+		tracer.record("r2", RequestTracer.Event.ENQUEUED);
+		tracer.record("r2", RequestTracer.Event.EVICTED, "messageDeleted");
+
+		JSONObject stats = tracer.getStats();
+		assertEquals(1, stats.getJSONObject("outcomes").getLong("completed"));
+		assertEquals(1, stats.getJSONObject("outcomes").getLong("evicted"));
+		assertTrue(tracer.getTrace("r1").getJSONObject("stages").has("totalMillis"));
+	}
+}
@@ -0,0 +1,89 @@
+package crlinkingbot.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SqlQueueStoreTest {
+	@TempDir
+	Path dataDir;
+
+	private final List<SqlQueueStore> stores = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		new File(dataDir.toFile(), "crlinkingbot").mkdirs();
+	}
+
+	@AfterEach
+	void tearDown() {
+		for (SqlQueueStore store : stores) {
+			store.close();
+		}
+		System.clearProperty(RequestQueue.DATA_DIR_PROPERTY);
+	}
+
+	@Test
+	void duplicatesAreSkippedWithoutLosingTheRestOfTheBatch() {
+		SqlQueueStore store = open();
+		assertTrue(store.add(request("1001")));
+
+		List<LinkingRequest> batch = List.of(request("1000"), request("1001"), request("1002"), request("1002"),
+				request("1003"));
+		List<LinkingRequest> added = store.addAll(batch);
+
+		assertEquals(List.of(batch.get(0), batch.get(2), batch.get(4)), added);
+		assertEquals(4, store.count());
+	}
+
+	@Test
+	void overlappingBatchesFromTwoProcessesAddEveryMessageOnce() {
+		SqlQueueStore first = open();
+		SqlQueueStore second = open();
+		for (int round = 0; round < 20; round++) {
+			List<LinkingRequest> left = new ArrayList<>();
+			List<LinkingRequest> right = new ArrayList<>();
+			// Half of each batch overlaps with the other
+			for (int i = 0; i < 50; i++) {
+				left.add(request(String.valueOf(round * 1000 + i)));
+				right.add(request(String.valueOf(round * 1000 + 25 + i)));
+			}
+
+			CompletableFuture<List<LinkingRequest>> fromFirst = CompletableFuture.supplyAsync(() -> first.addAll(left));
+			List<LinkingRequest> fromSecond = second.addAll(right);
+
+			Set<String> messageIds = new HashSet<>();
+			for (LinkingRequest request : fromFirst.join()) {
+				assertTrue(messageIds.add(request.getMessageId()));
+			}
+			for (LinkingRequest request : fromSecond) {
+				assertTrue(messageIds.add(request.getMessageId()), "added twice: " + request.getMessageId());
+			}
+			assertEquals(75, messageIds.size());
+			assertEquals((round + 1) * 75, first.count());
+		}
+	}
+
+	private SqlQueueStore open() {
+		SqlQueueStore store = new SqlQueueStore();
+		stores.add(store);
+		return store;
+	}
+
+	private static LinkingRequest request(String messageId) {
+		return new LinkingRequest(messageId, "500", "300", "400", "user#0001");
+	}
+}
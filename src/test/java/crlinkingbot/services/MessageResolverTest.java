@@ -0,0 +1,143 @@
+package crlinkingbot.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import crlinkingbot.queue.LinkingRequest;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+
+class MessageResolverTest {
+	private static final String CHANNEL_ID = "500";
+
+	/**
+	 * Resolver reading from an in-memory channel history instead of Discord
+	 */
+	private static class FakeHistoryResolver extends MessageResolver {
+		final NavigableMap<Long, Message> history = new TreeMap<>();
+		int windowCalls;
+		int singleCalls;
+
+		FakeHistoryResolver(DiscordGateway discord) {
+			super(discord);
+		}
+
+		@Override
+		protected List<Message> retrieveWindow(MessageChannelUnion channel, String after) {
+			windowCalls++;
+			// Discord answers newest first
+			List<Message> window = new ArrayList<>();
+			for (Message message : history.tailMap(Long.parseLong(after), false).values()) {
+				if (window.size() == 100) {
+					break;
+				}
+				window.add(0, message);
+			}
+			return window;
+		}
+
+		@Override
+		protected Message retrieveMessage(MessageChannelUnion channel, String messageId) {
+			singleCalls++;
+			Message message = history.get(Long.parseLong(messageId));
+			if (message == null) {
+				throw new IllegalStateException("Unknown Message");
+			}
+			return message;
+		}
+	}
+
+	private final FakeHistoryResolver resolver = new FakeHistoryResolver(
+			TestGateways.connected(TestGateways.channel(CHANNEL_ID)));
+
+	@Test
+	void resolvesNearbyMessagesWithOneWindow() {
+		List<LinkingRequest> requests = new ArrayList<>();
+		for (long id = 1000; id < 1300; id++) {
+			resolver.history.put(id, TestGateways.message(id));
+			if (id % 10 == 0) {
+				requests.add(request(id));
+			}
+		}
+
+		// 30 requests spread over 300 messages: three windows, no single lookups
+		Map<String, Message> resolved = resolver.resolveAll(requests);
+		assertEquals(requests.size(), resolved.size());
+		assertEquals(3, resolver.windowCalls);
+		assertEquals(0, resolver.singleCalls);
+		for (LinkingRequest request : requests) {
+			assertEquals(request.getMessageId(), resolved.get(request.getMessageId()).getId());
+		}
+	}
+
+	@Test
+	void messageMissingFromACoveredWindowIsDeleted() {
+		for (long id = 1000; id < 1050; id++) {
+			resolver.history.put(id, TestGateways.message(id));
+		}
+		resolver.history.remove(1020L);
+
+		Map<String, Message> resolved = resolver.resolveAll(List.of(request(1010), request(1020), request(1030)));
+		assertEquals(2, resolved.size());
+		assertFalse(resolved.containsKey("1020"));
+		assertEquals(1, resolver.windowCalls);
+		assertEquals(0, resolver.singleCalls);
+	}
+
+	@Test
+	void messagesBeyondTheWindowBudgetAreLookedUpOneByOne() {
+		List<LinkingRequest> requests = new ArrayList<>();
+		// Each request is the only one in its window
+		for (int i = 0; i < 7; i++) {
+			long id = 10_000 + i * 1000L;
+			for (long filler = id; filler < id + 150; filler++) {
+				resolver.history.put(filler, TestGateways.message(filler));
+			}
+			requests.add(request(id));
+		}
+
+		Map<String, Message> resolved = resolver.resolveAll(requests);
+		assertEquals(requests.size(), resolved.size());
+		assertEquals(5, resolver.windowCalls);
+		assertEquals(2, resolver.singleCalls);
+	}
+
+	@Test
+	void resolvedMessagesAreServedFromTheCache() {
+		resolver.history.put(1000L, TestGateways.message(1000));
+		resolver.history.put(1001L, TestGateways.message(1001));
+
+		Map<String, Message> resolved = resolver.resolveAll(List.of(request(1000), request(1001)));
+		assertSame(resolved.get("1000"), resolver.resolve(request(1000)));
+		assertEquals(1, resolver.windowCalls);
+		assertEquals(0, resolver.singleCalls);
+
+		resolver.invalidate("1000");
+		resolver.history.remove(1000L);
+		assertNull(resolver.resolve(request(1000)));
+		assertEquals(1, resolver.singleCalls);
+	}
+
+	@Test
+	void singleRequestIsLookedUpDirectly() {
+		resolver.history.put(1000L, TestGateways.message(1000));
+
+		assertEquals("1000", resolver.resolveAll(List.of(request(1000))).get("1000").getId());
+		assertEquals(0, resolver.windowCalls);
+		assertEquals(1, resolver.singleCalls);
+	}
+
+	private static LinkingRequest request(long messageId) {
+		return new LinkingRequest(String.valueOf(messageId), CHANNEL_ID, "300", "400", "user#0001");
+	}
+}
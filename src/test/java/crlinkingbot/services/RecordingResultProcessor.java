@@ -0,0 +1,68 @@
+package crlinkingbot.services;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.JSONObject;
+
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+
+/**
+ * Result processor that only records what it was handed instead of talking
+ * to Discord and lostcrmanager
+ */
+public class RecordingResultProcessor extends ResultProcessor {
+	/**
+	 * A result as passed to {@link #process}
+	 */
+	public static class Result {
+		private final LinkingRequest request;
+		private final String playerTag;
+		private final String errorMessage;
+
+		Result(LinkingRequest request, String playerTag, String errorMessage) {
+			this.request = request;
+			this.playerTag = playerTag;
+			this.errorMessage = errorMessage;
+		}
+
+		public LinkingRequest getRequest() {
+			return request;
+		}
+
+		public String getPlayerTag() {
+			return playerTag;
+		}
+
+		public String getErrorMessage() {
+			return errorMessage;
+		}
+	}
+
+	private final List<Result> results = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Constructor
+	 */
+	public RecordingResultProcessor(RequestQueue requestQueue) {
+		super(requestQueue, null, null, null, null, null);
+	}
+
+	@Override
+	public Outcome process(LinkingRequest request, boolean success, String playerTag, String errorMessage,
+			double confidence) {
+		results.add(new Result(request, playerTag, errorMessage));
+		JSONObject body = new JSONObject();
+		body.put("success", success);
+		body.put("action", success ? "linked" : "failed");
+		return new Outcome(200, body);
+	}
+
+	/**
+	 * Get the recorded results in the order they arrived
+	 */
+	public List<Result> getResults() {
+		return results;
+	}
+}
@@ -0,0 +1,101 @@
+package crlinkingbot.services;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+
+/**
+ * Discord gateways and entities for tests that run without a Discord
+ * connection. Calls a fake does not answer itself return null, zero or false.
+ */
+public final class TestGateways {
+	private TestGateways() {
+	}
+
+	/**
+	 * Gateway whose single shard reports itself connected, so every guild is
+	 * ready, and which knows the given channels
+	 */
+	public static DiscordGateway connected(MessageChannelUnion... channels) {
+		Map<String, MessageChannelUnion> channelsById = new HashMap<>();
+		for (MessageChannelUnion channel : channels) {
+			channelsById.put(channel.getId(), channel);
+		}
+		JDA jda = fake(JDA.class, (method, args) -> {
+			switch (method.getName()) {
+			case "getStatus":
+				return JDA.Status.CONNECTED;
+			case "getChannelById":
+				return args[1] instanceof String ? channelsById.get(args[1]) : null;
+			default:
+				return null;
+			}
+		});
+		return DiscordGateway.single(jda, CacheProfile.DEFAULT);
+	}
+
+	/**
+	 * Channel that only knows its ID
+	 */
+	public static MessageChannelUnion channel(String id) {
+		return fake(MessageChannelUnion.class, (method, args) -> snowflake(method, Long.parseLong(id)));
+	}
+
+	/**
+	 * Message that only knows its ID
+	 */
+	public static Message message(long id) {
+		return fake(Message.class, (method, args) -> snowflake(method, id));
+	}
+
+	private interface Answer {
+		Object answer(Method method, Object[] args);
+	}
+
+	private static Object snowflake(Method method, long id) {
+		switch (method.getName()) {
+		case "getId":
+			return String.valueOf(id);
+		case "getIdLong":
+			return id;
+		default:
+			return null;
+		}
+	}
+
+	private static <T> T fake(Class<T> type, Answer answer) {
+		Object fake = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Fake" + type.getSimpleName();
+			default:
+				break;
+			}
+			Object result = answer.answer(method, args);
+			if (result != null) {
+				return result;
+			}
+			Class<?> returnType = method.getReturnType();
+			if (returnType == boolean.class) {
+				return false;
+			}
+			if (returnType == int.class) {
+				return 0;
+			}
+			if (returnType == long.class) {
+				return 0L;
+			}
+			return null;
+		});
+		return type.cast(fake);
+	}
+}
@@ -0,0 +1,190 @@
+package crlinkingbot.worker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import crlinkingbot.images.ImageCache;
+import crlinkingbot.images.ImagePrefetcher;
+import crlinkingbot.queue.JsonFileQueueStore;
+import crlinkingbot.queue.LinkingRequest;
+import crlinkingbot.queue.RequestQueue;
+import crlinkingbot.services.DiscordGateway;
+import crlinkingbot.services.RecordingResultProcessor;
+import crlinkingbot.services.TestGateways;
+
+class WorkerPoolTest {
+	@TempDir
+	Path dataDir;
+
+	private RequestQueue requestQueue;
+	private DiscordGateway discord;
+	private RecordingResultProcessor resultProcessor;
+	private ImagePrefetcher imagePrefetcher;
+	private String imageHash;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		System.setProperty(RequestQueue.DATA_DIR_PROPERTY, dataDir.toString());
+		new File(dataDir.toFile(), "crlinkingbot").mkdirs();
+		requestQueue = new RequestQueue(new JsonFileQueueStore());
+		discord = TestGateways.connected();
+		resultProcessor = new RecordingResultProcessor(requestQueue);
+		imagePrefetcher = new ImagePrefetcher(new ImageCache(), null, requestQueue, discord, null);
+		imageHash = imagePrefetcher.getCache().put(screenshot());
+	}
+
+	@AfterEach
+	void tearDown() {
+		imagePrefetcher.shutdown();
+		requestQueue.close();
+		System.clearProperty(RequestQueue.DATA_DIR_PROPERTY);
+	}
+
+	@Test
+	void completesEveryRequestOnceWithTheStubTag() throws Exception {
+		StubTagExtractor stub = new StubTagExtractor();
+		List<LinkingRequest> requests = enqueue(20);
+		Map<String, String> expected = new HashMap<>();
+		for (LinkingRequest request : requests) {
+			WorkItem item = new WorkItem(request, List.of());
+			expected.put(request.getId(), stub.extract(List.of(item)).get(request.getId()).getPlayerTag());
+		}
+
+		WorkerPool pool = new WorkerPool(requestQueue, discord, resultProcessor, stub, imagePrefetcher);
+		pool.start();
+		try {
+			awaitResults(requests.size());
+		} finally {
+			pool.shutdown();
+		}
+
+		Set<String> seen = new HashSet<>();
+		for (RecordingResultProcessor.Result result : resultProcessor.getResults()) {
+			assertTrue(seen.add(result.getRequest().getId()), "completed twice: " + result.getRequest().getId());
+			assertEquals(expected.get(result.getRequest().getId()), result.getPlayerTag());
+		}
+		assertEquals(requests.size(), seen.size());
+		assertTrue(requestQueue.isEmpty());
+	}
+
+	@Test
+	void missingTagCompletesTheRequestWithAnError() throws Exception {
+		List<LinkingRequest> requests = enqueue(2);
+		String found = requests.get(0).getId();
+		TagExtractor extractor = new TagExtractor() {
+			@Override
+			public Map<String, TagExtraction> extract(List<WorkItem> items) {
+				return Map.of(found, TagExtraction.found("#2PP", 0.95));
+			}
+
+			@Override
+			public String getName() {
+				return "partial";
+			}
+		};
+
+		WorkerPool pool = new WorkerPool(requestQueue, discord, resultProcessor, extractor, imagePrefetcher);
+		pool.start();
+		try {
+			awaitResults(requests.size());
+		} finally {
+			pool.shutdown();
+		}
+
+		for (RecordingResultProcessor.Result result : resultProcessor.getResults()) {
+			if (result.getRequest().getId().equals(found)) {
+				assertEquals("#2PP", result.getPlayerTag());
+			} else {
+				assertEquals("Spieler-Tag nicht gefunden", result.getErrorMessage());
+			}
+		}
+		assertTrue(requestQueue.isEmpty());
+	}
+
+	@Test
+	void extractorFailureLeavesTheBatchLeasedWithoutUsingRetries() throws Exception {
+		List<LinkingRequest> requests = enqueue(3);
+		CountDownLatch called = new CountDownLatch(1);
+		TagExtractor failing = new TagExtractor() {
+			@Override
+			public Map<String, TagExtraction> extract(List<WorkItem> items) throws Exception {
+				called.countDown();
+				throw new IllegalStateException("quota exceeded");
+			}
+
+			@Override
+			public String getName() {
+				return "failing";
+			}
+		};
+
+		WorkerPool pool = new WorkerPool(requestQueue, discord, resultProcessor, failing, imagePrefetcher);
+		pool.start();
+		try {
+			assertTrue(called.await(30, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdown();
+		}
+
+		assertTrue(resultProcessor.getResults().isEmpty());
+		assertEquals(requests.size(), requestQueue.size());
+		for (LinkingRequest request : requests) {
+			LinkingRequest queued = requestQueue.findById(request.getId());
+			assertNotNull(queued);
+			assertEquals(0, queued.getRetryCount());
+			assertNotNull(queued.getClaimedBy());
+		}
+	}
+
+	private List<LinkingRequest> enqueue(int count) {
+		List<LinkingRequest> requests = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			LinkingRequest request = new LinkingRequest(String.valueOf(1000 + i), "200", "300", "400", "user#0001");
+			request.setImageHashes(List.of(imageHash));
+			requestQueue.enqueue(request);
+			requests.add(request);
+		}
+		return requests;
+	}
+
+	private void awaitResults(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30_000;
+		while (resultProcessor.getResults().size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(count, resultProcessor.getResults().size());
+	}
+
+	private static byte[] screenshot() throws Exception {
+		BufferedImage image = new BufferedImage(64, 128, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, (x * 4) << 16 | (y * 2) << 8);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+}
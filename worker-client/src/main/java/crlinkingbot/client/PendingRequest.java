@@ -0,0 +1,125 @@
+package crlinkingbot.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A linking request leased to a worker by {@code GET /api/queue/pending}
+ */
+public class PendingRequest {
+    private final String id;
+    private final String messageId;
+    private final String channelId;
+    private final String guildId;
+    private final String userId;
+    private final String userTag;
+    private final long timestamp;
+    private final int retryCount;
+    private final long leaseUntil;
+    private final List<String> imageUrls;
+    // Paths of the cached screenshots on the queue API, preferred over imageUrls
+    private final List<String> imagePaths;
+
+    public PendingRequest(String id, String messageId, String channelId, String guildId, String userId,
+                          String userTag, long timestamp, int retryCount, long leaseUntil,
+                          List<String> imageUrls, List<String> imagePaths) {
+        this.id = id;
+        this.messageId = messageId;
+        this.channelId = channelId;
+        this.guildId = guildId;
+        this.userId = userId;
+        this.userTag = userTag;
+        this.timestamp = timestamp;
+        this.retryCount = retryCount;
+        this.leaseUntil = leaseUntil;
+        this.imageUrls = new ArrayList<>(imageUrls);
+        this.imagePaths = new ArrayList<>(imagePaths);
+    }
+
+    /**
+     * Create from an entry of the pending listing
+     */
+    public static PendingRequest fromJSON(JSONObject json) {
+        List<String> imageUrls = new ArrayList<>();
+        JSONArray urls = json.optJSONArray("imageUrls");
+        if (urls != null) {
+            for (int i = 0; i < urls.length(); i++) {
+                imageUrls.add(urls.getString(i));
+            }
+        }
+        List<String> imagePaths = new ArrayList<>();
+        JSONArray images = json.optJSONArray("images");
+        if (images != null) {
+            for (int i = 0; i < images.length(); i++) {
+                imagePaths.add(images.getJSONObject(i).getString("path"));
+            }
+        }
+        return new PendingRequest(
+            json.getString("id"),
+            json.optString("messageId", null),
+            json.optString("channelId", null),
+            json.optString("guildId", null),
+            json.optString("userId", null),
+            json.optString("userTag", null),
+            json.optLong("timestamp", 0),
+            json.optInt("retryCount", 0),
+            json.optLong("leaseUntil", 0),
+            imageUrls,
+            imagePaths
+        );
+    }
+
+    /**
+     * Check whether the lease ran out, after which the result may be rejected
+     */
+    public boolean isLeaseExpired(long now) {
+        return leaseUntil > 0 && leaseUntil <= now;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getChannelId() {
+        return channelId;
+    }
+
+    public String getGuildId() {
+        return guildId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getUserTag() {
+        return userTag;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public long getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public List<String> getImageUrls() {
+        return imageUrls;
+    }
+
+    public List<String> getImagePaths() {
+        return imagePaths;
+    }
+}
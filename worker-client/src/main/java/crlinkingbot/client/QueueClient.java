@@ -0,0 +1,229 @@
+package crlinkingbot.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Client for the queue API. All calls share one HTTP client, so connections
+ * to the bot are kept alive and reused instead of opened per call. Calls that
+ * are answered with 429 or 503 are retried after the server's
+ * {@code Retry-After}, or with exponential backoff if it sent none.
+ */
+public class QueueClient {
+	private static final int DEFAULT_MAX_ATTEMPTS = 5;
+	private static final long INITIAL_BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+	private final HttpClient httpClient;
+	private final String baseUrl;
+	private final String secret;
+	private final int maxAttempts;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong backoffs = new AtomicLong();
+	private final AtomicLong backoffMillis = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param baseUrl URL of the queue API, e.g. http://localhost:8090
+	 * @param secret  The bot's QUEUE_API_SECRET
+	 */
+	public QueueClient(String baseUrl, String secret) {
+		this(baseUrl, secret, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param baseUrl     URL of the queue API, e.g. http://localhost:8090
+	 * @param secret      The bot's QUEUE_API_SECRET
+	 * @param maxAttempts How often a throttled call is tried before giving up
+	 */
+	public QueueClient(String baseUrl, String secret, int maxAttempts) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		this.secret = secret;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		// The queue API speaks HTTP/1.1 only, skip the upgrade attempt on every connection
+		this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(10)).build();
+	}
+
+	/**
+	 * Create a client from QUEUE_API_URL and QUEUE_API_SECRET
+	 */
+	public static QueueClient fromEnv() {
+		String url = System.getenv("QUEUE_API_URL");
+		String secret = System.getenv("QUEUE_API_SECRET");
+		if (secret == null || secret.isEmpty()) {
+			throw new IllegalStateException("QUEUE_API_SECRET environment variable must be set");
+		}
+		return new QueueClient(url != null && !url.isEmpty() ? url : "http://localhost:8090", secret);
+	}
+
+	/**
+	 * Lease up to {@code limit} requests
+	 *
+	 * @param workerId     Identifier of the claiming worker
+	 * @param limit        Maximum number of requests
+	 * @param leaseSeconds How long the requests are reserved for this worker
+	 * @return The leased requests, empty if nothing is due
+	 */
+	public List<PendingRequest> claim(String workerId, int limit, int leaseSeconds)
+			throws IOException, InterruptedException {
+		String path = "/api/queue/pending?claim=" + URLEncoder.encode(workerId, StandardCharsets.UTF_8) + "&limit="
+				+ limit + "&leaseSeconds=" + leaseSeconds;
+		JSONObject response = new JSONObject(new String(send(path, null), StandardCharsets.UTF_8));
+		List<PendingRequest> requests = new ArrayList<>();
+		JSONArray array = response.getJSONArray("requests");
+		for (int i = 0; i < array.length(); i++) {
+			requests.add(PendingRequest.fromJSON(array.getJSONObject(i)));
+		}
+		return requests;
+	}
+
+	/**
+	 * Submit a single result
+	 */
+	public SubmitOutcome submit(WorkResult result) throws IOException, InterruptedException {
+		List<SubmitOutcome> outcomes = submitAll(List.of(result));
+		return outcomes.get(0);
+	}
+
+	/**
+	 * Submit several results in one call. Each result is answered on its own,
+	 * e.g. a result for a request that was meanwhile completed by someone else
+	 * is rejected with 404 while the others are applied.
+	 *
+	 * @return The outcome per result, in submission order
+	 */
+	public List<SubmitOutcome> submitAll(List<WorkResult> results) throws IOException, InterruptedException {
+		JSONArray array = new JSONArray();
+		for (WorkResult result : results) {
+			array.put(result.toJSON());
+		}
+		JSONObject body = new JSONObject();
+		body.put("results", array);
+
+		JSONObject response = new JSONObject(
+				new String(send("/api/queue/results", body.toString()), StandardCharsets.UTF_8));
+		List<SubmitOutcome> outcomes = new ArrayList<>();
+		JSONArray items = response.getJSONArray("results");
+		for (int i = 0; i < items.length(); i++) {
+			JSONObject item = items.getJSONObject(i);
+			outcomes.add(new SubmitOutcome(item.optString("requestId", null), item.getInt("status"),
+					item.optBoolean("replay"), item.optJSONObject("response")));
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Download a cached screenshot
+	 *
+	 * @param path The path from {@link PendingRequest#getImagePaths()}
+	 */
+	public byte[] fetchImage(String path) throws IOException, InterruptedException {
+		return send(path, null);
+	}
+
+	/**
+	 * Get client statistics: calls made and time spent backing off
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("calls", calls.get());
+		stats.put("backoffs", backoffs.get());
+		stats.put("backoffMillis", backoffMillis.get());
+		return stats;
+	}
+
+	/**
+	 * Send a GET, or a POST if a body is given, retrying throttled calls
+	 *
+	 * @return The decoded response body
+	 */
+	private byte[] send(String path, String body) throws IOException, InterruptedException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path))
+				.timeout(Duration.ofSeconds(60)).header("Authorization", "Bearer " + secret)
+				.header("Accept-Encoding", "gzip");
+		if (body != null) {
+			builder.header("Content-Type", "application/json")
+					.POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+		}
+		HttpRequest request = builder.build();
+
+		for (int attempt = 1;; attempt++) {
+			calls.incrementAndGet();
+			HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+			byte[] data = decode(response);
+			int status = response.statusCode();
+			if (status == 200) {
+				return data;
+			}
+
+			if ((status == 429 || status == 503) && attempt < maxAttempts) {
+				long delay = backoff(response, attempt);
+				backoffs.incrementAndGet();
+				backoffMillis.addAndGet(delay);
+				Thread.sleep(delay);
+				continue;
+			}
+			throw new QueueClientException(status, request.method() + " " + path + " failed with HTTP " + status
+					+ ": " + errorOf(data));
+		}
+	}
+
+	/**
+	 * Delay before the next attempt: the server's Retry-After if present,
+	 * otherwise doubling per attempt with jitter so workers do not retry in
+	 * lockstep
+	 */
+	private static long backoff(HttpResponse<?> response, int attempt) {
+		String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+		if (retryAfter != null) {
+			try {
+				return Math.min(MAX_BACKOFF_MILLIS, Long.parseLong(retryAfter.trim()) * 1000);
+			} catch (NumberFormatException e) {
+				// HTTP dates are not used by the queue API, fall through
+			}
+		}
+		long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private static byte[] decode(HttpResponse<byte[]> response) throws IOException {
+		byte[] data = response.body();
+		String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+		if (!encoding.equalsIgnoreCase("gzip") || data.length == 0) {
+			return data;
+		}
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+			return in.readAllBytes();
+		}
+	}
+
+	private static String errorOf(byte[] data) {
+		String text = new String(data, StandardCharsets.UTF_8);
+		try {
+			return new JSONObject(text).optString("error", text);
+		} catch (Exception e) {
+			return text;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package crlinkingbot.client;
+
+import java.io.IOException;
+
+/**
+ * The queue API answered with an error status
+ */
+public class QueueClientException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	/**
+	 * Constructor
+	 *
+	 * @param status The HTTP status of the response
+	 * @param message Description including the API's error message
+	 */
+	public QueueClientException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	/**
+	 * Get the HTTP status of the response
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
@@ -0,0 +1,270 @@
+package crlinkingbot.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the bot's queue API, for testing workers without
+ * Discord. It serves the endpoints {@link QueueClient} uses with the same
+ * request and response format, keeps leases, and can answer with 429 or 503 on
+ * demand to exercise the backoff.
+ */
+public class QueueTestServer implements AutoCloseable {
+	private final HttpServer server;
+	private final String secret;
+	// Queued requests by ID, in enqueue order
+	private final LinkedHashMap<String, JSONObject> requests = new LinkedHashMap<>();
+	private final Map<String, byte[]> images = new HashMap<>();
+	private final List<WorkResult> results = new ArrayList<>();
+	private final AtomicInteger calls = new AtomicInteger();
+	private int throttleStatus;
+	private int throttleRemaining;
+
+	/**
+	 * Start a server on a free local port
+	 *
+	 * @param secret The secret clients must send
+	 */
+	public QueueTestServer(String secret) throws IOException {
+		this.secret = secret;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/api/queue/pending", exchange -> handle(exchange, this::pending));
+		server.createContext("/api/queue/result", exchange -> handle(exchange, this::result));
+		server.createContext("/api/queue/results", exchange -> handle(exchange, this::batchResults));
+		server.createContext("/api/queue/image/", exchange -> handle(exchange, this::image));
+		server.start();
+	}
+
+	/**
+	 * URL to create a {@link QueueClient} with
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Queue a request whose screenshots are served from the image endpoint
+	 *
+	 * @return The request ID
+	 */
+	public synchronized String enqueue(String userId, byte[]... screenshots) {
+		String id = UUID.randomUUID().toString();
+		JSONObject request = new JSONObject();
+		request.put("id", id);
+		request.put("messageId", String.valueOf(requests.size() + 1));
+		request.put("channelId", "1");
+		request.put("guildId", "1");
+		request.put("userId", userId);
+		request.put("userTag", "user" + userId);
+		request.put("imageUrls", new JSONArray());
+		request.put("timestamp", System.currentTimeMillis());
+		request.put("retryCount", 0);
+		JSONArray imageList = new JSONArray();
+		for (int i = 0; i < screenshots.length; i++) {
+			String hash = id + "-" + i;
+			images.put(hash, screenshots[i]);
+			JSONObject image = new JSONObject();
+			image.put("hash", hash);
+			image.put("path", "/api/queue/image/" + hash);
+			imageList.put(image);
+		}
+		request.put("images", imageList);
+		requests.put(id, request);
+		return id;
+	}
+
+	/**
+	 * Answer the next {@code count} calls with the given status, e.g. 429
+	 */
+	public synchronized void throttleNext(int status, int count) {
+		this.throttleStatus = status;
+		this.throttleRemaining = count;
+	}
+
+	/**
+	 * Number of requests still queued
+	 */
+	public synchronized int size() {
+		return requests.size();
+	}
+
+	/**
+	 * Results submitted so far, in the order they were applied
+	 */
+	public synchronized List<WorkResult> getResults() {
+		return new ArrayList<>(results);
+	}
+
+	/**
+	 * Number of HTTP calls received, including throttled ones
+	 */
+	public int getCallCount() {
+		return calls.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private interface Endpoint {
+		JSONObject handle(HttpExchange exchange, int[] status) throws IOException;
+	}
+
+	private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+		calls.incrementAndGet();
+		try {
+			if (!("Bearer " + secret).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+				send(exchange, 401, error("Unauthorized"));
+				return;
+			}
+			synchronized (this) {
+				if (throttleRemaining > 0) {
+					throttleRemaining--;
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					send(exchange, throttleStatus, error(throttleStatus == 429 ? "Too many requests"
+							: "Discord connection is warming up"));
+					return;
+				}
+			}
+			int[] status = { 200 };
+			JSONObject response = endpoint.handle(exchange, status);
+			if (response != null) {
+				send(exchange, status[0], response);
+			}
+		} catch (Exception e) {
+			send(exchange, 500, error("Internal server error: " + e.getMessage()));
+		}
+	}
+
+	private synchronized JSONObject pending(HttpExchange exchange, int[] status) {
+		Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+		String worker = params.get("claim");
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 10;
+		long leaseMillis = (params.containsKey("leaseSeconds") ? Long.parseLong(params.get("leaseSeconds")) : 300)
+				* 1000;
+		long now = System.currentTimeMillis();
+
+		JSONArray array = new JSONArray();
+		for (JSONObject request : requests.values()) {
+			if (worker != null) {
+				if (array.length() >= limit || request.optLong("leaseUntil", 0) > now) {
+					continue;
+				}
+				request.put("claimedBy", worker);
+				request.put("leaseUntil", now + leaseMillis);
+			}
+			array.put(new JSONObject(request.toString()));
+		}
+		JSONObject response = new JSONObject();
+		response.put("success", true);
+		response.put("count", array.length());
+		response.put("requests", array);
+		return response;
+	}
+
+	private JSONObject result(HttpExchange exchange, int[] status) throws IOException {
+		JSONObject body = new JSONObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+		return apply(body, status);
+	}
+
+	private JSONObject batchResults(HttpExchange exchange, int[] status) throws IOException {
+		JSONArray submitted = new JSONObject(
+				new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getJSONArray("results");
+		JSONArray items = new JSONArray();
+		for (int i = 0; i < submitted.length(); i++) {
+			JSONObject body = submitted.getJSONObject(i);
+			int[] itemStatus = { 200 };
+			JSONObject response = apply(body, itemStatus);
+			JSONObject item = new JSONObject();
+			item.put("requestId", body.opt("requestId"));
+			item.put("status", itemStatus[0]);
+			item.put("replay", false);
+			item.put("response", response);
+			items.put(item);
+		}
+		JSONObject response = new JSONObject();
+		response.put("success", true);
+		response.put("count", items.length());
+		response.put("results", items);
+		return response;
+	}
+
+	private synchronized JSONObject apply(JSONObject body, int[] status) {
+		String requestId = body.optString("requestId", null);
+		if (requestId == null || !body.has("success")) {
+			status[0] = 400;
+			return error("Missing required fields: requestId and success");
+		}
+		if (requests.remove(requestId) == null) {
+			status[0] = 404;
+			return error("Request not found in queue");
+		}
+		results.add(new WorkResult(requestId, body.getBoolean("success"), body.optString("playerTag", null),
+				body.optString("errorMessage", null), body.optDouble("confidence", 1.0)));
+		JSONObject response = new JSONObject();
+		response.put("success", true);
+		response.put("message", "Result processed");
+		return response;
+	}
+
+	private synchronized JSONObject image(HttpExchange exchange, int[] status) throws IOException {
+		String hash = exchange.getRequestURI().getPath().substring("/api/queue/image/".length());
+		byte[] data = images.get(hash);
+		if (data == null) {
+			status[0] = 404;
+			return error("Image not found");
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.sendResponseHeaders(200, data.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(data);
+		}
+		return null;
+	}
+
+	private static JSONObject error(String message) {
+		JSONObject error = new JSONObject();
+		error.put("success", false);
+		error.put("error", message);
+		return error;
+	}
+
+	private static void send(HttpExchange exchange, int status, JSONObject response) throws IOException {
+		byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> params = new HashMap<>();
+		if (query == null || query.isEmpty()) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int idx = pair.indexOf('=');
+			String key = idx >= 0 ? pair.substring(0, idx) : pair;
+			String value = idx >= 0 ? pair.substring(idx + 1) : "";
+			params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+}
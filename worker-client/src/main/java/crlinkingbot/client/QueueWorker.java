@@ -0,0 +1,307 @@
+package crlinkingbot.client;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link RequestHandler} over the queue. Three stages overlap so the
+ * handler never waits for the network:
+ * <ul>
+ * <li>a fetcher leases the next batch while the current one is processed and
+ * keeps at most one batch buffered,</li>
+ * <li>{@code concurrency} threads run the handler on buffered requests,</li>
+ * <li>a submitter collects results and posts them in batches, at the latest
+ * after {@code flushMillis}.</li>
+ * </ul>
+ * Requests whose lease ran out while buffered are skipped, the queue hands
+ * them out again.
+ */
+public class QueueWorker {
+	private static final int DEFAULT_LEASE_SECONDS = 300;
+	private static final long DEFAULT_POLL_MILLIS = 5000;
+	private static final long DEFAULT_FLUSH_MILLIS = 1000;
+
+	/**
+	 * Processes one request, e.g. by extracting the player tag from its
+	 * screenshots
+	 */
+	public interface RequestHandler {
+		/**
+		 * @param request The leased request
+		 * @param client  Client to download the cached screenshots with
+		 * @return The result to submit; an exception is submitted as failure
+		 */
+		WorkResult handle(PendingRequest request, QueueClient client) throws Exception;
+	}
+
+	private final QueueClient client;
+	private final String workerId;
+	private final RequestHandler handler;
+	private final int concurrency;
+	private final int batchSize;
+	private final int leaseSeconds;
+	private final long pollMillis;
+	private final long flushMillis;
+	private final BlockingQueue<PendingRequest> buffer;
+	private final BlockingQueue<WorkResult> results;
+	private final ExecutorService executor;
+	private volatile boolean running;
+	// Handler threads still running, the submitter waits for their results
+	private final AtomicInteger activeProcessors = new AtomicInteger();
+
+	private final AtomicLong claimed = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong submitCalls = new AtomicLong();
+	private final AtomicLong emptyPolls = new AtomicLong();
+
+	/**
+	 * Constructor with the default lease, poll and flush intervals
+	 *
+	 * @param client      The queue API client
+	 * @param workerId    Identifier the requests are leased to
+	 * @param handler     Processes the requests
+	 * @param concurrency Number of handler threads
+	 * @param batchSize   Requests leased and results submitted per call
+	 */
+	public QueueWorker(QueueClient client, String workerId, RequestHandler handler, int concurrency,
+			int batchSize) {
+		this(client, workerId, handler, concurrency, batchSize, DEFAULT_LEASE_SECONDS, DEFAULT_POLL_MILLIS,
+				DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param leaseSeconds How long leased requests are reserved
+	 * @param pollMillis   Pause after the queue had nothing due
+	 * @param flushMillis  Longest time a result waits for its batch to fill
+	 */
+	public QueueWorker(QueueClient client, String workerId, RequestHandler handler, int concurrency,
+			int batchSize, int leaseSeconds, long pollMillis, long flushMillis) {
+		this.client = client;
+		this.workerId = workerId;
+		this.handler = handler;
+		this.concurrency = Math.max(1, concurrency);
+		this.batchSize = Math.max(1, batchSize);
+		this.leaseSeconds = leaseSeconds;
+		this.pollMillis = pollMillis;
+		this.flushMillis = flushMillis;
+		// The batch being processed plus the one fetched ahead
+		this.buffer = new ArrayBlockingQueue<>(this.batchSize * 2);
+		this.results = new LinkedBlockingQueue<>();
+		this.executor = Executors.newFixedThreadPool(this.concurrency + 2, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setName("queue-worker-" + thread.getId());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Start fetching, processing and submitting
+	 */
+	public void start() {
+		running = true;
+		activeProcessors.set(concurrency);
+		executor.submit(this::runFetcher);
+		for (int i = 0; i < concurrency; i++) {
+			executor.submit(this::runProcessor);
+		}
+		executor.submit(this::runSubmitter);
+		System.out.println("Queue worker " + workerId + " started with " + concurrency + " threads, batch size "
+				+ batchSize);
+	}
+
+	/**
+	 * Stop leasing new requests, finish the buffered ones and submit all
+	 * results
+	 *
+	 * @param timeoutMillis How long to wait for the buffer to drain
+	 */
+	public void stop(long timeoutMillis) {
+		running = false;
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Queue worker " + workerId + " stopped, " + buffer.size()
+				+ " buffered requests left to their lease");
+	}
+
+	/**
+	 * Get worker statistics
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("claimed", claimed.get());
+		stats.put("processed", processed.get());
+		stats.put("expired", expired.get());
+		stats.put("submitted", submitted.get());
+		stats.put("rejected", rejected.get());
+		stats.put("submitCalls", submitCalls.get());
+		stats.put("emptyPolls", emptyPolls.get());
+		stats.put("buffered", buffer.size());
+		stats.put("client", client.getStats());
+		return stats;
+	}
+
+	private void runFetcher() {
+		while (running) {
+			try {
+				// Fetch ahead only while at most one batch is waiting
+				if (buffer.remainingCapacity() < batchSize) {
+					Thread.sleep(50);
+					continue;
+				}
+				List<PendingRequest> batch = client.claim(workerId, batchSize, leaseSeconds);
+				if (batch.isEmpty()) {
+					emptyPolls.incrementAndGet();
+					Thread.sleep(pollMillis);
+					continue;
+				}
+				claimed.addAndGet(batch.size());
+				for (PendingRequest request : batch) {
+					buffer.put(request);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				System.out.println("Queue worker " + workerId + " could not lease requests: " + e.getMessage());
+				sleepQuietly(pollMillis);
+			}
+		}
+	}
+
+	private void runProcessor() {
+		try {
+			process();
+		} finally {
+			activeProcessors.decrementAndGet();
+		}
+	}
+
+	private void process() {
+		while (running || !buffer.isEmpty()) {
+			PendingRequest request;
+			try {
+				request = buffer.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (request == null) {
+				continue;
+			}
+			if (request.isLeaseExpired(System.currentTimeMillis())) {
+				expired.incrementAndGet();
+				continue;
+			}
+
+			WorkResult result;
+			try {
+				result = handler.handle(request, client);
+			} catch (Exception e) {
+				result = WorkResult.failure(request.getId(), e.getMessage());
+			}
+			processed.incrementAndGet();
+			if (result != null) {
+				results.add(result);
+			}
+		}
+	}
+
+	private void runSubmitter() {
+		List<WorkResult> pending = new ArrayList<>();
+		while (running || activeProcessors.get() > 0 || !results.isEmpty() || !pending.isEmpty()) {
+			try {
+				if (pending.isEmpty()) {
+					WorkResult first = results.poll(flushMillis, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					pending.add(first);
+				}
+				// Give the batch until the flush interval to fill up
+				long deadline = System.currentTimeMillis() + flushMillis;
+				while (pending.size() < batchSize) {
+					long wait = deadline - System.currentTimeMillis();
+					WorkResult next = wait > 0 ? results.poll(wait, TimeUnit.MILLISECONDS) : results.poll();
+					if (next == null) {
+						break;
+					}
+					pending.add(next);
+				}
+				pending = submit(pending);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Submit a batch of results
+	 *
+	 * @return The results to submit again later
+	 */
+	private List<WorkResult> submit(List<WorkResult> batch) throws InterruptedException {
+		List<WorkResult> retry = new ArrayList<>();
+		List<SubmitOutcome> outcomes;
+		try {
+			submitCalls.incrementAndGet();
+			outcomes = client.submitAll(batch);
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			System.out.println("Queue worker " + workerId + " could not submit " + batch.size() + " results: "
+					+ e.getMessage());
+			Thread.sleep(pollMillis);
+			return batch;
+		}
+
+		for (int i = 0; i < outcomes.size() && i < batch.size(); i++) {
+			SubmitOutcome outcome = outcomes.get(i);
+			if (outcome.isAccepted()) {
+				submitted.incrementAndGet();
+			} else if (outcome.isRetryable()) {
+				retry.add(batch.get(i));
+			} else {
+				// E.g. 404 after the lease expired and another worker completed it
+				rejected.incrementAndGet();
+				System.out.println("Result for request " + outcome.getRequestId() + " rejected with HTTP "
+						+ outcome.getStatus());
+			}
+		}
+		if (!retry.isEmpty()) {
+			Thread.sleep(flushMillis);
+		}
+		return retry;
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package crlinkingbot.client;
+
+import org.json.JSONObject;
+
+/**
+ * How the queue API answered one submitted result
+ */
+public class SubmitOutcome {
+    private final String requestId;
+    private final int status;
+    private final boolean replay;
+    private final JSONObject response;
+
+    public SubmitOutcome(String requestId, int status, boolean replay, JSONObject response) {
+        this.requestId = requestId;
+        this.status = status;
+        this.replay = replay;
+        this.response = response;
+    }
+
+    /**
+     * The result was applied, now or by an earlier submission
+     */
+    public boolean isAccepted() {
+        return status == 200;
+    }
+
+    /**
+     * The result could not be delivered yet and should be submitted again
+     * later, e.g. because the guild's shard is still connecting
+     */
+    public boolean isRetryable() {
+        return status == 429 || status == 503;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isReplay() {
+        return replay;
+    }
+
+    public JSONObject getResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,76 @@
+package crlinkingbot.client;
+
+import org.json.JSONObject;
+
+/**
+ * Outcome of processing a request, as submitted to {@code POST /api/queue/result}
+ */
+public class WorkResult {
+    private final String requestId;
+    private final boolean success;
+    private final String playerTag;
+    private final String errorMessage;
+    private final double confidence;
+
+    public WorkResult(String requestId, boolean success, String playerTag, String errorMessage,
+                      double confidence) {
+        this.requestId = requestId;
+        this.success = success;
+        this.playerTag = playerTag;
+        this.errorMessage = errorMessage;
+        this.confidence = confidence;
+    }
+
+    /**
+     * A player tag was found
+     */
+    public static WorkResult success(String requestId, String playerTag, double confidence) {
+        return new WorkResult(requestId, true, playerTag, null, confidence);
+    }
+
+    /**
+     * No player tag could be found, the bot retries or dead-letters the request
+     */
+    public static WorkResult failure(String requestId, String errorMessage) {
+        return new WorkResult(requestId, false, null, errorMessage, 0);
+    }
+
+    /**
+     * Convert to the JSON body expected by the queue API
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("requestId", requestId);
+        json.put("success", success);
+        if (playerTag != null) {
+            json.put("playerTag", playerTag);
+        }
+        if (errorMessage != null) {
+            json.put("errorMessage", errorMessage);
+        }
+        if (success) {
+            json.put("confidence", confidence);
+        }
+        return json;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getPlayerTag() {
+        return playerTag;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+}